@@ -0,0 +1,82 @@
+package org.dsa.iot.etsdb.benchmark;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.DatabaseFactory;
+import org.etsdb.DbConfig;
+import org.etsdb.Serializer;
+import org.etsdb.WriteBatch;
+import org.etsdb.impl.DatabaseImpl;
+import org.etsdb.impl.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Databases and data shared by the benchmarks. The engine benchmarks store doubles, so that they measure the engine
+ * rather than the serialization of DSLink values, which has a benchmark of its own.
+ */
+public class Fixtures {
+
+    /**
+     * The timestamp of the first shard the benchmarks write to.
+     */
+    public static final long START = Utils.getTimestamp(1400, 0);
+    /**
+     * The time range of a shard, with the default shard bits.
+     */
+    public static final long SHARD_LENGTH = Utils.getTimestamp(1, 0);
+
+    public static File createDirectory() throws IOException {
+        return Files.createTempDirectory("etsdb-benchmark").toFile();
+    }
+
+    /**
+     * @return the configuration used by the benchmarks, which doesn't add a shutdown hook or scan for corruption.
+     */
+    public static DbConfig createConfig() {
+        DbConfig config = new DbConfig();
+        config.setAddShutdownHook(false);
+        config.setRunCorruptionScan(false);
+        return config;
+    }
+
+    public static DatabaseImpl<Double> createDatabase(File dir, DbConfig config) {
+        return DatabaseFactory.createDatabase(dir, new DoubleSerializer(), config);
+    }
+
+    /**
+     * Fills a shard of a series with rows at even intervals, loading them directly into the shard files.
+     *
+     * @return the interval between the rows.
+     */
+    public static long fillShard(DatabaseImpl<Double> db, String seriesId, long shardId, int rows) {
+        long start = Utils.getTimestamp(shardId, 0);
+        long interval = SHARD_LENGTH / rows;
+        WriteBatch<Double> batch = new WriteBatch<>();
+        for (int i = 0; i < rows; i++) {
+            batch.add(seriesId, start + i * interval, (double) i);
+        }
+        db.load(batch);
+        return interval;
+    }
+
+    public static void close(DatabaseImpl<?> db, File dir) throws IOException {
+        if (db != null) {
+            db.close();
+        }
+        Utils.delete(dir);
+    }
+
+    public static class DoubleSerializer extends Serializer<Double> {
+        @Override
+        public void toByteArray(ByteArrayBuilder b, Double value, long ts) {
+            b.putDouble(value);
+        }
+
+        @Override
+        public Double fromByteArray(ByteArrayBuilder b, long ts) {
+            return b.getDouble();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.dsa.iot.etsdb.benchmark;
+
+import org.etsdb.DbConfig;
+import org.etsdb.impl.DatabaseImpl;
+import org.etsdb.impl.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The maintenance paths: deleting a range of rows, and the Janitor's flush with many open shards.
+ */
+public class MaintenanceBenchmark {
+
+    private static final long SHARD = Utils.getShardId(Fixtures.START);
+
+    /**
+     * Deletes a tenth of a shard, from the middle. Each invocation gets a freshly filled shard.
+     */
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @State(Scope.Thread)
+    public static class Delete {
+        private static final String SERIES = "delete";
+
+        @Param({"10000", "1000000"})
+        public int rows;
+
+        File dir;
+        DatabaseImpl<Double> db;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = Fixtures.createDirectory();
+            db = Fixtures.createDatabase(dir, Fixtures.createConfig());
+        }
+
+        @Setup(Level.Invocation)
+        public void fill() {
+            db.deleteSeries(SERIES);
+            Fixtures.fillShard(db, SERIES, SHARD, rows);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Fixtures.close(db, dir);
+        }
+
+        @Benchmark
+        public long delete() {
+            long from = Utils.getTimestamp(SHARD, 0) + Fixtures.SHARD_LENGTH / 2;
+            return db.delete(SERIES, from, from + Fixtures.SHARD_LENGTH / 10);
+        }
+    }
+
+    /**
+     * Flushes with a row queued in each of many open shards: the scheduled flush that the Janitor runs, which only
+     * visits the shards that are due, and a forced flush, which writes all of them.
+     */
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @State(Scope.Thread)
+    public static class Flush {
+
+        @Param({"100", "10000"})
+        public int shards;
+
+        File dir;
+        DatabaseImpl<Double> db;
+        long ts = Fixtures.START;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = Fixtures.createDirectory();
+            DbConfig config = Fixtures.createConfig();
+            config.setUseWriteQueue(true);
+            config.setMaxOpenFiles(shards * 4);
+            db = Fixtures.createDatabase(dir, config);
+        }
+
+        @Setup(Level.Invocation)
+        public void queue() {
+            ts++;
+            for (int i = 0; i < shards; i++) {
+                db.write("flush/s" + i, ts, (double) ts);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Fixtures.close(db, dir);
+        }
+
+        @Benchmark
+        public void scheduled() throws IOException {
+            db.flush(false);
+        }
+
+        @Benchmark
+        public void forced() throws IOException {
+            db.flush(true);
+        }
+    }
+}
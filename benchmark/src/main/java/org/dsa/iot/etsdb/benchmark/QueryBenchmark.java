@@ -0,0 +1,97 @@
+package org.dsa.iot.etsdb.benchmark;
+
+import org.etsdb.DbConfig;
+import org.etsdb.QueryCallback;
+import org.etsdb.impl.DatabaseImpl;
+import org.etsdb.impl.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries a shard forwards and in reverse: the whole shard, and the first rows from a random time, as a trend and a
+ * "last value before" lookup would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    private static final String SERIES = "query";
+    private static final long SHARD = Utils.getShardId(Fixtures.START);
+    private static final int LIMIT = 100;
+
+    /**
+     * The number of rows in the shard.
+     */
+    @Param({"1000", "1000000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean reverse;
+
+    @Param({"false", "true"})
+    public boolean mapped;
+
+    File dir;
+    DatabaseImpl<Double> db;
+    final Random random = new Random(0);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Fixtures.createDirectory();
+        DbConfig config = Fixtures.createConfig();
+        config.setMappedReads(mapped);
+        db = Fixtures.createDatabase(dir, config);
+        Fixtures.fillShard(db, SERIES, SHARD, rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.close(db, dir);
+    }
+
+    @Benchmark
+    public void queryShard(final Blackhole bh) {
+        long from = Utils.getTimestamp(SHARD, 0);
+        db.query(SERIES, from, from + Fixtures.SHARD_LENGTH, Integer.MAX_VALUE, reverse, new Callback(bh));
+    }
+
+    @Benchmark
+    public void queryLimit(final Blackhole bh) {
+        long from = Utils.getTimestamp(SHARD, 0);
+        long ts = from + (long) (random.nextDouble() * Fixtures.SHARD_LENGTH);
+        if (reverse) {
+            db.query(SERIES, from, ts, LIMIT, true, new Callback(bh));
+        } else {
+            db.query(SERIES, ts, from + Fixtures.SHARD_LENGTH, LIMIT, false, new Callback(bh));
+        }
+    }
+
+    static class Callback implements QueryCallback<Double> {
+        private final Blackhole bh;
+
+        Callback(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void sample(String seriesId, long ts, Double value) {
+            bh.consume(ts);
+            bh.consume(value);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.dsa.iot.etsdb.benchmark;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.etsdb.serializer.ByteData;
+import org.dsa.iot.etsdb.serializer.ValueSerializer;
+import org.etsdb.ByteArrayBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes DSLink values with the serializer the historian stores them with.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+    private static final long TS = Fixtures.START;
+
+    @Param({"int", "double", "bool", "string", "map"})
+    public String type;
+
+    final ValueSerializer serializer = new ValueSerializer();
+    final ByteArrayBuilder b = new ByteArrayBuilder();
+    ByteData data;
+    byte[] encoded;
+
+    @Setup
+    public void setup() {
+        Value value;
+        switch (type) {
+            case "int":
+                value = new Value(123456);
+                break;
+            case "double":
+                value = new Value(1234.5678);
+                break;
+            case "bool":
+                value = new Value(true);
+                break;
+            case "string":
+                value = new Value("The quick brown fox jumps over the lazy dog");
+                break;
+            case "map":
+                JsonObject obj = new JsonObject();
+                obj.put("status", "ok");
+                obj.put("value", 1234.5678);
+                value = new Value(obj);
+                break;
+            default:
+                throw new IllegalArgumentException(type);
+        }
+        data = new ByteData();
+        data.setValue(value);
+
+        b.clear();
+        serializer.toByteArray(b, data, TS);
+        encoded = new byte[b.getAvailable()];
+        b.get(encoded);
+    }
+
+    @Benchmark
+    public int encode() {
+        b.clear();
+        serializer.toByteArray(b, data, TS);
+        return b.getAvailable();
+    }
+
+    /**
+     * Decodes the value too, rather than only the bytes, since ByteData defers that until the value is asked for.
+     */
+    @Benchmark
+    public Value decode() {
+        return serializer.fromByteArray(new ByteArrayBuilder(encoded), TS).getValue();
+    }
+}
@@ -0,0 +1,110 @@
+package org.dsa.iot.etsdb.benchmark;
+
+import org.etsdb.DbConfig;
+import org.etsdb.impl.DatabaseImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Appends to the database, with the rows written to the files immediately or queued, by one and by as many threads
+ * as there are processors.
+ * <p>
+ * Each thread writes to series of its own, in turn, so that every write is an append rather than a backdate.
+ * <p>
+ * The Janitor's flush runs too rarely to drain the queue during a run, so the queue is flushed before each iteration
+ * and sized to hold an iteration's writes. The trial fails if any write was discarded, since the results would then
+ * measure the discard path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+
+    /**
+     * The number of rows the queue holds before writes are discarded.
+     */
+    private static final int QUEUE_SIZE = 10000000;
+
+    @Param({"immediate", "queued"})
+    public String mode;
+
+    /**
+     * The number of series each thread writes to.
+     */
+    @Param({"1", "1000", "100000"})
+    public int series;
+
+    File dir;
+    DatabaseImpl<Double> db;
+    final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Fixtures.createDirectory();
+        DbConfig config = Fixtures.createConfig();
+        config.setUseWriteQueue("queued".equals(mode));
+        config.setQueueMaxQueueSize(QUEUE_SIZE);
+        config.setQueueDiscardQueueSize(QUEUE_SIZE);
+        db = Fixtures.createDatabase(dir, config);
+    }
+
+    @Setup(Level.Iteration)
+    public void flush() throws IOException {
+        db.flush(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        long discarded = db.getDiscardCount();
+        Fixtures.close(db, dir);
+        if (discarded > 0) {
+            throw new IllegalStateException(discarded + " writes were discarded. Use shorter iterations.");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        String[] seriesIds;
+        long count;
+
+        @Setup(Level.Trial)
+        public void setup(WriteBenchmark benchmark) {
+            int thread = benchmark.threads.getAndIncrement();
+            seriesIds = new String[benchmark.series];
+            for (int i = 0; i < seriesIds.length; i++) {
+                seriesIds[i] = "t" + thread + "/s" + i;
+            }
+        }
+
+        void write(DatabaseImpl<Double> db) {
+            long n = count++;
+            db.write(seriesIds[(int) (n % seriesIds.length)], Fixtures.START + n, (double) n);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void write(Writer writer) {
+        writer.write(db);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void writeContended(Writer writer) {
+        writer.write(db);
+    }
+}
@@ -0,0 +1,86 @@
+package org.etsdb.impl;
+
+import org.dsa.iot.etsdb.benchmark.Fixtures;
+import org.etsdb.DbConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts batches of backdates into a filled shard, as a backdate poster does. The backdates are inserted directly
+ * rather than through the backdate queue, so that the cost of the insert is measured rather than the queue. This is
+ * why the benchmark is in the engine's package.
+ * <p>
+ * With an overlay merge size of 0 every batch rewrites the shard. Otherwise the cost of the merges is amortized over
+ * the batches that are appended to the overlay.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class InsertBenchmark {
+
+    private static final String SERIES = "insert";
+    private static final long SHARD = Utils.getShardId(Fixtures.START);
+
+    @Param({"10000", "1000000"})
+    public int rows;
+
+    @Param({"10", "1000"})
+    public int batch;
+
+    @Param({"0", "1048576"})
+    public long overlayMergeSize;
+
+    File dir;
+    DatabaseImpl<Double> db;
+    long interval;
+    final Random random = new Random(0);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Fixtures.createDirectory();
+        DbConfig config = Fixtures.createConfig();
+        config.setOverlayMergeSize(overlayMergeSize);
+        db = Fixtures.createDatabase(dir, config);
+        interval = Fixtures.fillShard(db, SERIES, SHARD, rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.close(db, dir);
+    }
+
+    @Benchmark
+    public void insert() {
+        db.insert(SERIES, SHARD, createBackdates());
+    }
+
+    /**
+     * @return backdates in time order, between the rows of the shard.
+     */
+    private List<Backdate> createBackdates() {
+        List<Backdate> backdates = new ArrayList<>(batch);
+        byte[] data = new byte[8];
+        for (int i = 0; i < batch; i++) {
+            long offset = random.nextInt(rows) * interval + 1 + (long) (random.nextDouble() * (interval - 1));
+            backdates.add(new Backdate(SERIES, SHARD, offset, data, 0, data.length));
+        }
+        Collections.sort(backdates);
+        return backdates;
+    }
+}
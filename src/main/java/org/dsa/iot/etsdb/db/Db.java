@@ -70,7 +70,7 @@ public class Db extends Database {
 
     private void setDiskSpaceRemaining(int space) {
         long totalSize = fPath.getTotalSpace();
-        this.diskSpaceRemaining = totalSize * (space / 100);
+        this.diskSpaceRemaining = totalSize * space / 100;
     }
 
     @Override
@@ -325,6 +325,36 @@ public class Db extends Database {
             });
         }
 
+        {
+            NodeBuilder b = parent.createChild("rd");
+            b.setDisplayName("Rows Discarded");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getDiscardCount()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setDiscardCountHandler(new Handler<Long>() {
+                @Override
+                public void handle(Long event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
+        {
+            NodeBuilder b = parent.createChild("bt");
+            b.setDisplayName("Blocked Time (ms)");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getBlockedMillis()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setBlockedMillisHandler(new Handler<Long>() {
+                @Override
+                public void handle(Long event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
         {
             NodeBuilder b = parent.createChild("fcf");
             b.setDisplayName("Forced Rows Flushed");
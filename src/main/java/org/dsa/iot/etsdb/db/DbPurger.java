@@ -2,7 +2,6 @@ package org.dsa.iot.etsdb.db;
 
 import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.etsdb.serializer.ByteData;
-import org.etsdb.TimeRange;
 import org.etsdb.impl.DatabaseImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,32 +57,28 @@ public class DbPurger {
                     File path = db.getPath();
                     long curr = path.getUsableSpace();
                     long request = db.getDiskSpaceRemaining();
-                    long delCount = 0;
+                    long shards = 0;
+                    long freed = 0;
                     while (curr - request <= 0) {
                         if (!running) {
                             break;
                         }
                         DatabaseImpl<ByteData> realDb = db.getDb();
 
-                        List<String> series = realDb.getSeriesIds();
-                        TimeRange range = realDb.getTimeRange(series);
-                        if (range == null || range.isUndefined()) {
-                            break;
-                        }
-
-                        long from = range.getFrom();
-                        for (String s : series) {
-                            delCount += realDb.delete(s, from, from + 1);
-                        }
-
-                        if (delCount <= 0) {
+                        // Drop the oldest shard across all series. This
+                        // only unlinks files, so it is cheap regardless of
+                        // how much data the shard holds.
+                        long bytes = realDb.purgeOldestShard();
+                        if (bytes < 0) {
                             break;
                         }
+                        shards++;
+                        freed += bytes;
                         curr = path.getUsableSpace();
                     }
-                    if (delCount > 0) {
+                    if (shards > 0) {
                         String p = path.getPath();
-                        LOGGER.info("Deleted {} records from {}", delCount, p);
+                        LOGGER.info("Purged {} shards ({} bytes) from {}", shards, freed, p);
                     }
                 }
             }
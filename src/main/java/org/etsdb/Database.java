@@ -25,6 +25,21 @@ public interface Database<T> {
 
     void write(String seriesId, long ts, T value);
 
+    /**
+     * Writes the sample, unless the write queue is full. Unlike write, it never waits for room in the queue or writes
+     * out queued rows, whatever the overflow policy.
+     *
+     * @return false if the queue was full, in which case the sample was not written.
+     */
+    boolean tryWrite(String seriesId, long ts, T value);
+
+    /**
+     * Writes all of the samples in the batch. The samples are grouped by series and shard, so that each shard is
+     * locked and flushed once for the whole batch instead of once per sample. Samples of a series are written in time
+     * order, with samples of the same time kept in the order they were added.
+     */
+    void writeBatch(WriteBatch<T> batch);
+
     void query(String seriesId, long fromTs, long toTs, final QueryCallback<T> cb);
 
     void query(String seriesId, long fromTs, long toTs, int limit, final QueryCallback<T> cb);
@@ -96,6 +111,20 @@ public interface Database<T> {
 
     void setQueueSizeHandler(Handler<Integer> handler);
 
+    /**
+     * @return the number of samples that were dropped because the write queue was full.
+     */
+    long getDiscardCount();
+
+    void setDiscardCountHandler(Handler<Long> handler);
+
+    /**
+     * @return the total time in milliseconds that writers have waited for room in the write queue.
+     */
+    long getBlockedMillis();
+
+    void setBlockedMillisHandler(Handler<Long> handler);
+
     int getOpenShards();
 
     void setOpenShardsHandler(Handler<Integer> handler);
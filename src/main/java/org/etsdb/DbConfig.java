@@ -14,22 +14,89 @@ public class DbConfig {
     private int fileLockCheckInterval = 1000;
     private int flushInterval = 1000 * 60 * 5;
 
+    /**
+     * The number of threads the flush process uses. The series are divided among them, so that the writing of queued
+     * rows and closing of stale shards in different series can be done in parallel, e.g. on machines with many disks.
+     */
+    private int flushThreads = 1;
+
     /**
      * If the shard has not been accessed within this time, it's output streams are closed. The flush process is what
      * enacts this value, so the flush interval should best be equal to or less than this value.
      */
     private int shardStalePeriod = 1000 * 60 * 60;
 
+    /**
+     * If true, a shard of a past time period that had rows appended to it is rewritten as compressed blocks when it
+     * goes stale.
+     */
+    private boolean compressStaleShards = true;
+
     private int maxOpenFiles = 500;
+
+    /**
+     * If true, queries read shard data files that are not open for appending through memory mappings. The mappings
+     * are kept in a cache of at most maxMappedFiles files.
+     */
+    private boolean mappedReads = false;
+    private int maxMappedFiles = 100;
+    /**
+     * The size of the database is kept as a running total of the file changes. It is checked against the actual size
+     * of the database directory in the background at this interval in milliseconds. 0 disables the check.
+     */
+    private int sizeCheckInterval = 1000 * 60 * 60 * 6;
     private boolean ignoreBackdates = false;
     private int backdateStartDelay = 5000;
 
+    /**
+     * The maximum number of threads that insert backdates. Backdates are grouped by series and shard as they arrive,
+     * and the posters insert the groups of different shards in parallel.
+     */
+    private int backdatePosters = 2;
+
+    /**
+     * The approximate number of bytes of memory that backdates waiting to be inserted may take. Once it is reached, the
+     * waiting backdates are spilled to a log in the base directory, which is replayed on the next start if the
+     * database isn't closed cleanly. 0 means no limit.
+     */
+    private long backdateMemoryLimit = 64 * 1024 * 1024;
+
+    /**
+     * Backdates are appended to an overlay file of their shard, which queries merge with the data file. Once the overlay
+     * is larger than this many bytes, or than the data file, it is merged into the data file with a rewrite. 0 rewrites
+     * the data file for every insert of backdates.
+     */
+    private long overlayMergeSize = 1024 * 1024;
+
     /**
      * If true, writes will be queued in memory, and written out according to the queue parameters. If false, writes
      * will be written directly to files in process.
      */
     private boolean useWriteQueue = false;
 
+    /**
+     * If true and the write queue is used, queued writes are also appended to a write-ahead log in the base directory,
+     * which is replayed when the database is opened after a crash. Segments of the log are deleted by the flush
+     * process once their rows have been written to the shards.
+     */
+    private boolean writeAheadLog = false;
+
+    /**
+     * If greater than 0 and the write queue is not used, rows are appended to an in-memory buffer of their shard, and
+     * the buffers of all shards written to are flushed to their files once per this interval in milliseconds. This
+     * turns many small writes into one per shard, at the cost of losing up to an interval of writes in a crash.
+     * Queries always see the buffered rows. If 0, each write is flushed to the file before it returns.
+     * <p>
+     * With the write queue and the write-ahead log, the log is written out once per this interval instead of once per
+     * write.
+     */
+    private int groupCommitInterval = 0;
+
+    /**
+     * If true, each group commit also forces the written data files to the storage device.
+     */
+    private boolean forceOnCommit = false;
+
     /**
      * The minimum amount of time in milliseconds shard updates will be cached until they are written to disk by a run
      * of the flush process.
@@ -68,6 +135,17 @@ public class DbConfig {
      */
     private int queueDiscardQueueSize = 1000000;
 
+    /**
+     * What a write does when the queue holds queueDiscardQueueSize rows.
+     */
+    private QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.DISCARD;
+
+    /**
+     * The maximum amount of time in milliseconds a write waits for room in the queue with the BLOCK overflow policy.
+     * A write that times out throws a QueueFullException.
+     */
+    private int queueBlockTimeout = 10000;
+
     public void validate() throws ConfigException {
         if (fileLockCheckInterval <= 0)
             throw new ConfigException("fileLockCheckInterval must be greater than 0");
@@ -75,6 +153,9 @@ public class DbConfig {
         if (flushInterval <= 0)
             throw new ConfigException("flushInterval must be greater than 0");
 
+        if (flushThreads < 1)
+            throw new ConfigException("flushThreads must be greater than 0");
+
         if (flushInterval < 300000) {
             logger.warn("Flush interval too low, setting it to 5 minutes (300000 ms)");
             flushInterval = 300000;
@@ -83,9 +164,33 @@ public class DbConfig {
         if (shardStalePeriod < 0)
             throw new ConfigException("shardStalePeriod cannot be negative");
 
+        if (mappedReads && maxMappedFiles <= 0)
+            throw new ConfigException("maxMappedFiles must be greater than 0");
+
+        if (sizeCheckInterval < 0)
+            throw new ConfigException("sizeCheckInterval cannot be negative");
+
         if (backdateStartDelay < 0)
             throw new ConfigException("backdateStartDelay cannot be negative");
 
+        if (backdatePosters < 1)
+            throw new ConfigException("backdatePosters must be greater than 0");
+
+        if (backdateMemoryLimit < 0)
+            throw new ConfigException("backdateMemoryLimit cannot be negative");
+
+        if (overlayMergeSize < 0)
+            throw new ConfigException("overlayMergeSize cannot be negative");
+
+        if (groupCommitInterval < 0)
+            throw new ConfigException("groupCommitInterval cannot be negative");
+
+        if (useWriteQueue && !writeAheadLog && groupCommitInterval > 0)
+            logger.warn("groupCommitInterval is ignored when the write queue is used without the write-ahead log");
+
+        if (writeAheadLog && !useWriteQueue)
+            logger.warn("writeAheadLog is ignored when the write queue is not used");
+
         if (useWriteQueue) {
             if (queueExpireMinimum < 0)
                 throw new ConfigException("queueExpireMinimum cannot be negative");
@@ -101,6 +206,12 @@ public class DbConfig {
 
             if (queueDiscardQueueSize < queueMaxQueueSize)
                 throw new ConfigException("queueDiscardQueueSize must be greater than queueMaxQueueSize");
+
+            if (queueOverflowPolicy == null)
+                throw new ConfigException("queueOverflowPolicy cannot be null");
+
+            if (queueBlockTimeout < 0)
+                throw new ConfigException("queueBlockTimeout cannot be negative");
         }
     }
 
@@ -144,6 +255,14 @@ public class DbConfig {
         this.flushInterval = flushInterval;
     }
 
+    public int getFlushThreads() {
+        return flushThreads;
+    }
+
+    public void setFlushThreads(int flushThreads) {
+        this.flushThreads = flushThreads;
+    }
+
     public int getShardStalePeriod() {
         return shardStalePeriod;
     }
@@ -152,6 +271,14 @@ public class DbConfig {
         this.shardStalePeriod = shardStalePeriod;
     }
 
+    public boolean isCompressStaleShards() {
+        return compressStaleShards;
+    }
+
+    public void setCompressStaleShards(boolean compressStaleShards) {
+        this.compressStaleShards = compressStaleShards;
+    }
+
     public int getMaxOpenFiles() {
         return maxOpenFiles;
     }
@@ -160,6 +287,30 @@ public class DbConfig {
         this.maxOpenFiles = maxOpenFiles;
     }
 
+    public boolean isMappedReads() {
+        return mappedReads;
+    }
+
+    public void setMappedReads(boolean mappedReads) {
+        this.mappedReads = mappedReads;
+    }
+
+    public int getMaxMappedFiles() {
+        return maxMappedFiles;
+    }
+
+    public void setMaxMappedFiles(int maxMappedFiles) {
+        this.maxMappedFiles = maxMappedFiles;
+    }
+
+    public int getSizeCheckInterval() {
+        return sizeCheckInterval;
+    }
+
+    public void setSizeCheckInterval(int sizeCheckInterval) {
+        this.sizeCheckInterval = sizeCheckInterval;
+    }
+
     public boolean isIgnoreBackdates() {
         return ignoreBackdates;
     }
@@ -176,6 +327,30 @@ public class DbConfig {
         this.backdateStartDelay = backdateStartDelay;
     }
 
+    public int getBackdatePosters() {
+        return backdatePosters;
+    }
+
+    public void setBackdatePosters(int backdatePosters) {
+        this.backdatePosters = backdatePosters;
+    }
+
+    public long getBackdateMemoryLimit() {
+        return backdateMemoryLimit;
+    }
+
+    public void setBackdateMemoryLimit(long backdateMemoryLimit) {
+        this.backdateMemoryLimit = backdateMemoryLimit;
+    }
+
+    public long getOverlayMergeSize() {
+        return overlayMergeSize;
+    }
+
+    public void setOverlayMergeSize(long overlayMergeSize) {
+        this.overlayMergeSize = overlayMergeSize;
+    }
+
     public boolean isUseWriteQueue() {
         return useWriteQueue;
     }
@@ -184,6 +359,30 @@ public class DbConfig {
         this.useWriteQueue = useWriteQueue;
     }
 
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public void setWriteAheadLog(boolean writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    public int getGroupCommitInterval() {
+        return groupCommitInterval;
+    }
+
+    public void setGroupCommitInterval(int groupCommitInterval) {
+        this.groupCommitInterval = groupCommitInterval;
+    }
+
+    public boolean isForceOnCommit() {
+        return forceOnCommit;
+    }
+
+    public void setForceOnCommit(boolean forceOnCommit) {
+        this.forceOnCommit = forceOnCommit;
+    }
+
     public int getQueueExpireMinimum() {
         return queueExpireMinimum;
     }
@@ -231,4 +430,20 @@ public class DbConfig {
     public void setQueueDiscardQueueSize(int queueDiscardQueueSize) {
         this.queueDiscardQueueSize = queueDiscardQueueSize;
     }
+
+    public QueueOverflowPolicy getQueueOverflowPolicy() {
+        return queueOverflowPolicy;
+    }
+
+    public void setQueueOverflowPolicy(QueueOverflowPolicy queueOverflowPolicy) {
+        this.queueOverflowPolicy = queueOverflowPolicy;
+    }
+
+    public int getQueueBlockTimeout() {
+        return queueBlockTimeout;
+    }
+
+    public void setQueueBlockTimeout(int queueBlockTimeout) {
+        this.queueBlockTimeout = queueBlockTimeout;
+    }
 }
@@ -0,0 +1,12 @@
+package org.etsdb;
+
+/**
+ * Thrown by writes that time out waiting for room in the write queue with the BLOCK overflow policy.
+ */
+public class QueueFullException extends EtsdbException {
+    private static final long serialVersionUID = 1L;
+
+    public QueueFullException(String message) {
+        super(message);
+    }
+}
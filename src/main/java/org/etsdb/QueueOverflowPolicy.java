@@ -0,0 +1,22 @@
+package org.etsdb;
+
+/**
+ * What a write does when the write queue holds queueDiscardQueueSize rows.
+ */
+public enum QueueOverflowPolicy {
+    /**
+     * The sample is dropped and counted as a discard.
+     */
+    DISCARD,
+
+    /**
+     * The caller waits, for at most queueBlockTimeout milliseconds, for the flush process to make room. If the time
+     * runs out, the write throws a QueueFullException and the sample is not written.
+     */
+    BLOCK,
+
+    /**
+     * The caller writes the queued rows of the sample's shard, and the sample itself, directly to the shard's files.
+     */
+    FLUSH
+}
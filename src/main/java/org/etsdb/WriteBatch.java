@@ -0,0 +1,68 @@
+package org.etsdb;
+
+import java.util.Arrays;
+
+/**
+ * A set of samples, possibly of many series, to be written to the database with a single call to
+ * {@link Database#writeBatch(WriteBatch)}. A batch can be cleared and reused.
+ *
+ * @param <T> the type of value that is stored in the database.
+ */
+public class WriteBatch<T> {
+    private String[] seriesIds;
+    private long[] timestamps;
+    private Object[] values;
+    private int size;
+
+    public WriteBatch() {
+        this(64);
+    }
+
+    public WriteBatch(int initialCapacity) {
+        if (initialCapacity < 1)
+            initialCapacity = 1;
+        seriesIds = new String[initialCapacity];
+        timestamps = new long[initialCapacity];
+        values = new Object[initialCapacity];
+    }
+
+    public void add(String seriesId, long ts, T value) {
+        if (size == seriesIds.length) {
+            int capacity = size << 1;
+            seriesIds = Arrays.copyOf(seriesIds, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        seriesIds[size] = seriesId;
+        timestamps[size] = ts;
+        values[size] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(seriesIds, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    public String getSeriesId(int index) {
+        return seriesIds[index];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getValue(int index) {
+        return (T) values[index];
+    }
+}
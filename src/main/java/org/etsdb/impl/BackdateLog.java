@@ -0,0 +1,271 @@
+package org.etsdb.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backdates that were spilled from memory to disk while they wait to be inserted. Each spill writes the waiting
+ * backdates to a new segment file in the base directory, as one run per shard in time order, so that a shard's spilled
+ * backdates can be read back with one sequential read per spill.
+ * <p>
+ * A segment is deleted once all of its runs have been inserted. Until then, a release record is appended to the segment
+ * for each run that has been inserted. Segments that are left over from a crash are replayed into the shards when the
+ * database is opened, skipping the released runs, so that a run is not inserted again over rows that were written or
+ * deleted after it. Each record is followed by a checksum, so that a record that was only partially written is
+ * detected on replay.
+ * <p>
+ * A segment with a run that fails to be inserted on replay is kept, so that the run is tried again on the next open.
+ */
+class BackdateLog {
+    private static final Logger logger = LoggerFactory.getLogger(BackdateLog.class.getName());
+
+    private static final String SUFFIX = ".spill";
+    private static final int RUN = 1;
+    private static final int RELEASE = 2;
+
+    private final SegmentFiles segments;
+    private final AtomicLong databaseSize;
+    /**
+     * The number of runs in each segment that have not been inserted yet.
+     */
+    private final Map<Long, Integer> runCounts = new TreeMap<>();
+    private long segment;
+
+    BackdateLog(File baseDir, AtomicLong databaseSize) {
+        segments = new SegmentFiles(baseDir, SUFFIX, "Backdate spill", databaseSize);
+        this.databaseSize = databaseSize;
+    }
+
+    /**
+     * Inserts the unreleased runs of all existing segments in the order they were written, and deletes the segments
+     * whose runs were all inserted.
+     *
+     * @return the number of runs that were inserted.
+     */
+    synchronized int replay(ReplayCallback cb) throws IOException {
+        // Once a run of a shard fails, the shard's later runs are kept too, so that they are not inserted before it.
+        Set<String> failedShards = new HashSet<>();
+        int inserted = 0;
+        for (long s : segments.getSegments()) {
+            segment = s + 1;
+            inserted += replay(s, cb, failedShards);
+        }
+        return inserted;
+    }
+
+    /**
+     * Writes the given lists of backdates to a new segment. Each list must hold the backdates of a single shard in
+     * time order.
+     *
+     * @return the runs in the segment, in the order of the lists.
+     */
+    synchronized List<Run> write(List<List<Backdate>> lists) throws IOException {
+        long s = segment++;
+        File file = segments.getFile(s);
+        List<Run> runs = new ArrayList<>(lists.size());
+        ChecksumOutputStream out = new ChecksumOutputStream(new FileOutputStream(file));
+        try {
+            for (List<Backdate> list : lists) {
+                runs.add(new Run(s, out.position()));
+                writeRun(out, list);
+            }
+            out.close();
+        } catch (IOException e) {
+            Utils.closeQuietly(out);
+            Utils.deleteWithRetry(file);
+            throw e;
+        }
+
+        databaseSize.addAndGet(file.length());
+        runCounts.put(s, runs.size());
+        return runs;
+    }
+
+    /**
+     * Reads the backdates of a run.
+     */
+    List<Backdate> read(Run run) throws IOException {
+        ChecksumInputStream in = new ChecksumInputStream(segments.getFile(run.segment));
+        try {
+            in.seek(run.position);
+            SegmentFiles.readByte(in);
+            return readRun(in);
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Called once a run has been inserted. The segment is deleted when all of its runs have been.
+     */
+    synchronized void release(Run run) {
+        Integer count = runCounts.get(run.segment);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            runCounts.put(run.segment, count - 1);
+            try {
+                writeRelease(run.segment, run.position);
+            } catch (IOException e) {
+                logger.warn("Failed to record the release of a backdate run in " + segments.getFile(run.segment), e);
+            }
+        } else {
+            runCounts.remove(run.segment);
+            segments.delete(run.segment);
+        }
+    }
+
+    //
+    //
+    // Private
+    //
+    private int replay(long s, ReplayCallback cb, Set<String> failedShards) throws IOException {
+        final Map<Long, List<Backdate>> runs = new LinkedHashMap<>();
+        final Set<Long> released = new HashSet<>();
+        segments.read(s, new SegmentFiles.RecordReader() {
+            @Override
+            public void read(int type, long position, ChecksumInput in) throws IOException {
+                if (type == RUN) {
+                    runs.put(position, readRun(in));
+                } else if (type == RELEASE) {
+                    long run = SegmentFiles.readLong(in);
+                    SegmentFiles.checkSum(in);
+                    released.add(run);
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+        });
+
+        int inserted = 0;
+        boolean kept = false;
+        for (Map.Entry<Long, List<Backdate>> e : runs.entrySet()) {
+            if (released.contains(e.getKey())) {
+                continue;
+            }
+
+            Backdate first = e.getValue().get(0);
+            String shard = first.getSeriesId() + "/" + first.getShardId();
+            if (failedShards.contains(shard)) {
+                kept = true;
+                continue;
+            }
+
+            try {
+                cb.insert(e.getValue());
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Failed to insert spilled backdates of series " + first.getSeriesId() + ", shard "
+                        + first.getShardId(), ex);
+                failedShards.add(shard);
+                kept = true;
+                continue;
+            }
+            inserted++;
+
+            try {
+                writeRelease(s, e.getKey());
+            } catch (IOException ex) {
+                logger.warn("Failed to record the release of a backdate run in " + segments.getFile(s), ex);
+            }
+        }
+
+        if (kept) {
+            logger.error("Backdate spill segment " + segments.getFile(s) + " is kept, because some of its runs could"
+                    + " not be inserted. They are tried again when the database is next opened");
+        } else {
+            segments.delete(s);
+        }
+        return inserted;
+    }
+
+    /**
+     * Appends a record to a segment that marks the run at the given position as inserted. The record is not forced to
+     * the storage device, since neither is the insert.
+     */
+    private void writeRelease(long s, long position) throws IOException {
+        File file = segments.getFile(s);
+        long before = file.length();
+        ChecksumOutputStream out = new ChecksumOutputStream(new FileOutputStream(file, true), before);
+        try {
+            out.write(RELEASE);
+            SegmentFiles.writeLong(out, position);
+            out.writeSum();
+            out.flush();
+        } finally {
+            Utils.closeQuietly(out);
+        }
+        databaseSize.addAndGet(file.length() - before);
+    }
+
+    private static void writeRun(ChecksumOutputStream out, List<Backdate> list) throws IOException {
+        Backdate first = list.get(0);
+
+        // A marker, so that the end of the segment can be told apart from a run.
+        out.write(RUN);
+        SegmentFiles.writeId(out, first.getSeriesId());
+        SegmentFiles.writeLong(out, first.getShardId());
+        Utils.writeCompactInt(out, list.size());
+        for (Backdate backdate : list) {
+            Utils.write4ByteUnsigned(out, backdate.getOffset());
+            Utils.writeCompactInt(out, backdate.getData().length);
+            out.write(backdate.getData(), 0, backdate.getData().length);
+        }
+        out.writeSum();
+    }
+
+    /**
+     * Reads a run whose marker has already been read.
+     */
+    private static List<Backdate> readRun(ChecksumInput in) throws IOException {
+        String seriesId = SegmentFiles.readId(in);
+        long shardId = SegmentFiles.readLong(in);
+        int count = Utils.readCompactInt(in);
+        if (count < 0) {
+            throw new IOException("Bad count " + count);
+        }
+
+        List<Backdate> run = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            long offset = Utils.read4ByteUnsigned(in);
+            byte[] data = SegmentFiles.readBytes(in, Utils.readCompactInt(in));
+            run.add(new Backdate(seriesId, shardId, offset, data, 0, data.length));
+        }
+        SegmentFiles.checkSum(in);
+        return run;
+    }
+
+    /**
+     * The location of a shard's run of backdates in a segment.
+     */
+    static class Run {
+        final long segment;
+        final long position;
+
+        Run(long segment, long position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    interface ReplayCallback {
+        /**
+         * Inserts a run, throwing if it could not be inserted, in which case its segment is kept.
+         *
+         * @param run the backdates of a single shard, in time order.
+         */
+        void insert(List<Backdate> run) throws IOException;
+    }
+}
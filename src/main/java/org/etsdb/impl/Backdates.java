@@ -3,11 +3,30 @@ package org.etsdb.impl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * A queue for writing backdated samples.
  * <p>
+ * Backdates are grouped by series and shard as they arrive, so that a poster can take all of a shard's backdates at
+ * once and insert them with a single rewrite. Up to maxPosters posters insert the groups of different shards in
+ * parallel. A shard is only ever inserted into by one poster at a time.
+ * <p>
+ * The memory taken by the waiting backdates is accounted. Once the limit is reached, a spiller thread writes all of the
+ * waiting backdates to the {@link BackdateLog}, sorted by shard, and posters read a shard's spilled runs back when they
+ * get to it. Writers call in with their shard's write lock held, so they only hand the spill off. The backdates are
+ * taken out of the queue under its lock, but written to the log outside of it, so that the writers and the posters are
+ * not held up by the spill. If a spill fails, its backdates stay in memory for the posters.
+ * <p>
+ * Only if the spiller cannot be started, or the memory reaches twice the limit because the spiller is not keeping up,
+ * is the writer that adds a backdate handed its shard's waiting backdates to insert itself.
+ * <p>
+ * A spilled run that cannot be read back is queued again to be retried. After MAX_READ_ATTEMPTS failures it is given
+ * up on, but its segment is kept, so that the run is replayed when the database is next opened. The same goes for a
+ * run that fails to be inserted. The shard's later backdates must not be inserted ahead of such a run, since the replay
+ * would then write the older run over them. So from then on, the shard's backdates are written to the log behind it
+ * rather than inserted, as BackdateLog.replay does with the later runs of a shard that failed.
  *
  * @author Matthew
  */
@@ -15,36 +34,558 @@ class Backdates {
 
     static final Logger logger = LoggerFactory.getLogger(Backdates.class.getName());
 
+    /**
+     * The approximate number of bytes a backdate takes in addition to its data.
+     */
+    private static final int BACKDATE_OVERHEAD = 64;
+    private static final int MAX_READ_ATTEMPTS = 3;
+
     final DatabaseImpl<?> db;
     final int startDelay;
-    final List<Backdate> backdates = new LinkedList<>();
+    final int maxPosters;
+    final long memoryLimit;
+    final BackdateLog log;
 
-    BackdatePoster poster;
+    /**
+     * The waiting backdates by shard, in the order in which the shards got their first waiting backdate.
+     */
+    private final LinkedHashMap<ShardKey, Queued> pending = new LinkedHashMap<>();
+    /**
+     * The shards that posters are currently inserting into.
+     */
+    private final Set<ShardKey> posting = new HashSet<>();
+    /**
+     * The shards with a spilled run that was given up on, whose later backdates are kept in the log behind it.
+     */
+    private final Set<ShardKey> failedShards = new HashSet<>();
+    private final List<BackdatePoster> posters = new ArrayList<>();
+    private long memory;
+    private int posterCount;
+    private BackdateSpiller spiller;
+    private boolean closing;
 
-    Backdates(DatabaseImpl<?> db, int startDelay) {
+    Backdates(DatabaseImpl<?> db, int startDelay, int maxPosters, long memoryLimit, BackdateLog log) {
         this.db = db;
         this.startDelay = startDelay;
+        this.maxPosters = maxPosters;
+        this.memoryLimit = memoryLimit;
+        this.log = log;
+    }
+
+    /**
+     * Adds a backdate to the queue. Must be called with the write lock of the backdate's shard held.
+     *
+     * @return null if the backdate was queued, or the waiting backdates of its shard including the given one, in
+     * time order, if the memory limit was reached and they could not be handed to the spiller. The caller must then
+     * insert them.
+     */
+    List<Backdate> add(Backdate backdate) {
+        ShardKey key = new ShardKey(backdate.getSeriesId(), backdate.getShardId());
+        synchronized (pending) {
+            Queued queued = pending.get(key);
+            if (queued == null) {
+                queued = new Queued();
+                pending.put(key, queued);
+            }
+            queued.rows.add(backdate);
+            memory += getMemory(backdate);
+
+            if (memoryLimit > 0 && memory >= memoryLimit) {
+                if (spiller == null && !closing) {
+                    try {
+                        spiller = new BackdateSpiller();
+                    } catch (OutOfMemoryError e) {
+                        // Thrown when the thread cannot be created.
+                        logger.warn("Failed to start the backdate spiller", e);
+                    }
+                }
+
+                // The spiller is not keeping up, e.g. because spills fail.
+                if (spiller == null || memory >= memoryLimit * 2) {
+                    List<Backdate> result = takeInline(key);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            }
+            startPoster();
+            return null;
+        }
     }
 
-    void add(Backdate backdate) {
-        synchronized (backdates) {
-            backdates.add(backdate);
-            if (poster == null) {
-                poster = new BackdatePoster();
+    /**
+     * Inserts the runs that were spilled before the database was last closed, e.g. by a crash. Called while the
+     * database is opened.
+     */
+    void replay() throws IOException {
+        long start = System.currentTimeMillis();
+        int runs = log.replay(new BackdateLog.ReplayCallback() {
+            @Override
+            public void insert(List<Backdate> run) {
+                Backdate first = run.get(0);
+                db.insert(first.getSeriesId(), first.getShardId(), run);
             }
+        });
+        if (runs > 0) {
+            logger.info("Replay of " + runs + " spilled backdate runs took " + (System.currentTimeMillis() - start)
+                    + "ms");
         }
     }
 
+    /**
+     * @return the approximate number of bytes taken by the waiting backdates.
+     */
+    long getMemory() {
+        synchronized (pending) {
+            return memory;
+        }
+    }
+
+    /**
+     * Waits for the posters to insert the waiting backdates. Must be called without holding the database lock, since
+     * the posters need it.
+     */
     void close() {
-        BackdatePoster _poster;
-        synchronized (backdates) {
-            _poster = poster;
+        BackdateSpiller _spiller;
+        List<BackdatePoster> _posters;
+        synchronized (pending) {
+            closing = true;
+            _spiller = spiller;
+            _posters = new ArrayList<>(posters);
+        }
+
+        // The spiller stops after its current spill.
+        if (_spiller != null) {
+            _spiller.join();
         }
 
-        if (_poster != null) {
+        for (BackdatePoster poster : _posters) {
             // Break the poster out of its start wait in case that's what it is doing.
-            _poster.notify();
-            _poster.join();
+            poster.wake();
+            poster.join();
+        }
+    }
+
+    /**
+     * Inserts any backdates that were added after the posters finished, in the calling thread.
+     */
+    void drain() {
+        while (true) {
+            ShardKey key;
+            Queued queued;
+            synchronized (pending) {
+                Iterator<Map.Entry<ShardKey, Queued>> iter = pending.entrySet().iterator();
+                if (!iter.hasNext()) {
+                    break;
+                }
+                Map.Entry<ShardKey, Queued> e = iter.next();
+                iter.remove();
+                key = e.getKey();
+                queued = e.getValue();
+                take(queued);
+            }
+            post(key, queued);
+        }
+    }
+
+    //
+    //
+    // Private
+    //
+    private void startPoster() {
+        if (!closing && posters.size() < maxPosters && posters.size() < pending.size()) {
+            posters.add(new BackdatePoster(++posterCount));
+        }
+    }
+
+    /**
+     * Moves the backdates in memory of all shards to be spilled. They stay accounted until they are written. Requires
+     * the pending lock.
+     *
+     * @return the backdates to write, or null if there are none.
+     */
+    private List<Spilled> takeSpill() {
+        List<Spilled> spill = new ArrayList<>();
+        for (Queued queued : pending.values()) {
+            if (!queued.rows.isEmpty()) {
+                Collections.sort(queued.rows);
+                Spilled spilled = new Spilled(queued.rows);
+                queued.spilled.add(spilled);
+                queued.rows = new ArrayList<>();
+                spill.add(spilled);
+            }
+        }
+        return spill.isEmpty() ? null : spill;
+    }
+
+    /**
+     * Writes the backdates in memory to the log, and attaches the runs to their shards' queues. Called by the spiller.
+     *
+     * @return whether there is more to spill.
+     */
+    private boolean spill() {
+        List<Spilled> spill;
+        synchronized (pending) {
+            spill = closing || memory < memoryLimit ? null : takeSpill();
+            if (spill == null) {
+                spiller = null;
+                return false;
+            }
+        }
+
+        List<List<Backdate>> lists = new ArrayList<>(spill.size());
+        for (Spilled spilled : spill) {
+            lists.add(spilled.rows);
+        }
+        List<BackdateLog.Run> runs = null;
+        try {
+            runs = log.write(lists);
+        } catch (IOException e) {
+            // The backdates stay in memory for the posters.
+            logger.warn("Failed to spill backdates", e);
+        }
+
+        List<BackdateLog.Run> release = new ArrayList<>();
+        synchronized (pending) {
+            if (runs != null) {
+                for (int i = 0; i < spill.size(); i++) {
+                    Spilled spilled = spill.get(i);
+                    spilled.run = runs.get(i);
+                    if (spilled.taken) {
+                        // The backdates were taken from memory while they were being written.
+                        release.add(spilled.run);
+                    } else {
+                        memory -= getMemory(spilled.rows);
+                        spilled.rows = null;
+                    }
+                }
+            } else {
+                spiller = null;
+            }
+            startPoster();
+        }
+
+        for (BackdateLog.Run run : release) {
+            log.release(run);
+        }
+        return runs != null;
+    }
+
+    /**
+     * Takes a shard's waiting backdates for the writer to insert itself. If a poster is inserting into the shard, it
+     * is waiting for the writer's lock, and its backdates are older. The same goes for spilled runs, and for a run that
+     * was given up on. So the backdates are left queued rather than being inserted before them. Requires the pending
+     * lock.
+     *
+     * @return the backdates in time order, or null if they must stay queued.
+     */
+    private List<Backdate> takeInline(ShardKey key) {
+        Queued queued = pending.get(key);
+        if (queued == null || queued.hasRuns() || posting.contains(key) || failedShards.contains(key)) {
+            return null;
+        }
+
+        pending.remove(key);
+        take(queued);
+        List<Backdate> result = new ArrayList<>();
+        for (Spilled spilled : queued.spilled) {
+            result.addAll(spilled.rows);
+        }
+        result.addAll(queued.rows);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Frees the memory of a shard's backdates that were removed from the queue to be inserted. Backdates that are
+     * being spilled are inserted from memory, and their run is released when it has been written. Requires the pending
+     * lock.
+     */
+    private void take(Queued queued) {
+        memory -= getMemory(queued.rows);
+        for (Spilled spilled : queued.spilled) {
+            if (spilled.run == null) {
+                spilled.taken = true;
+                memory -= getMemory(spilled.rows);
+            }
+        }
+    }
+
+    private void post(ShardKey key, Queued queued) {
+        boolean failed;
+        synchronized (pending) {
+            failed = failedShards.contains(key);
+        }
+        // The backdates that must be written to the log behind a run that was given up on, and the runs among them
+        // that were read back from older segments.
+        List<List<Backdate>> keep = new ArrayList<>();
+        List<BackdateLog.Run> moved = new ArrayList<>();
+
+        // The spilled backdates are older than the backdates in memory, so they go first.
+        for (int i = 0; i < queued.spilled.size(); i++) {
+            Spilled spilled = queued.spilled.get(i);
+            if (spilled.taken) {
+                if (failed || !insert(key, spilled.rows)) {
+                    fail(key);
+                    failed = true;
+                    keep.add(spilled.rows);
+                }
+                continue;
+            }
+
+            if (failed) {
+                // The run is not released, so it is replayed when the database is next opened. Unless backdates before
+                // it are kept in a newer segment, in which case it must move there too, to stay behind them.
+                if (!keep.isEmpty()) {
+                    try {
+                        keep.add(log.read(spilled.run));
+                        moved.add(spilled.run);
+                    } catch (IOException e) {
+                        logger.error("Failed to read spilled backdates of series " + key.seriesId + ", shard "
+                                + key.shardId + ". They will be inserted out of order when the database is next"
+                                + " opened", e);
+                    }
+                }
+                continue;
+            }
+
+            List<Backdate> run;
+            try {
+                run = log.read(spilled.run);
+            } catch (IOException e) {
+                if (++spilled.attempts < MAX_READ_ATTEMPTS) {
+                    logger.warn("Failed to read spilled backdates of series " + key.seriesId + ", shard "
+                            + key.shardId + ". Retrying", e);
+                    requeue(key, queued.spilled.subList(i, queued.spilled.size()), queued.rows);
+                    return;
+                }
+
+                // The run is not released, so its segment is kept and replayed when the database is next opened.
+                logger.error("Failed to read spilled backdates of series " + key.seriesId + ", shard " + key.shardId
+                        + " after " + spilled.attempts + " attempts. They will be inserted when the database is next"
+                        + " opened", e);
+                fail(key);
+                failed = true;
+                continue;
+            }
+            // A run that fails to insert is not released either, so it is replayed when the database is next opened.
+            if (insert(key, run)) {
+                log.release(spilled.run);
+            } else {
+                fail(key);
+                failed = true;
+            }
+        }
+
+        if (!queued.rows.isEmpty()) {
+            Collections.sort(queued.rows);
+            if (failed || !insert(key, queued.rows)) {
+                fail(key);
+                keep.add(queued.rows);
+            }
+        }
+
+        if (!keep.isEmpty()) {
+            keep(key, keep, moved);
+        }
+    }
+
+    /**
+     * Notes that a run of the shard was given up on, so that its later backdates are kept behind it.
+     */
+    private void fail(ShardKey key) {
+        synchronized (pending) {
+            failedShards.add(key);
+        }
+    }
+
+    /**
+     * Writes a shard's backdates to the log behind a run of it that was given up on, so that they are inserted after
+     * it when the database is next opened. The given runs, whose backdates are among them, are released once they
+     * have been written.
+     */
+    private void keep(ShardKey key, List<List<Backdate>> lists, List<BackdateLog.Run> moved) {
+        int count = 0;
+        for (List<Backdate> list : lists) {
+            count += list.size();
+        }
+        try {
+            log.write(lists);
+        } catch (IOException e) {
+            logger.error("Failed to keep " + count + " backdates of series " + key.seriesId + ", shard "
+                    + key.shardId + " in the spill log. They are lost", e);
+            return;
+        }
+        for (BackdateLog.Run run : moved) {
+            log.release(run);
+        }
+        logger.warn("Kept " + count + " backdates of series " + key.seriesId + ", shard " + key.shardId + " in the"
+                + " spill log behind a run that could not be inserted. They will be inserted when the database is next"
+                + " opened");
+    }
+
+    /**
+     * Puts a shard's backdates that could not be inserted back in the queue, ahead of any that were added since.
+     */
+    private void requeue(ShardKey key, List<Spilled> spilled, List<Backdate> rows) {
+        Queued queued = new Queued();
+        long requeued = 0;
+        for (Spilled s : spilled) {
+            if (s.taken) {
+                // The spill that is writing these releases its run, so they go back in memory.
+                s = new Spilled(s.rows);
+                requeued += getMemory(s.rows);
+            }
+            queued.spilled.add(s);
+        }
+        if (!rows.isEmpty()) {
+            Collections.sort(rows);
+            queued.spilled.add(new Spilled(rows));
+            requeued += getMemory(rows);
+        }
+
+        synchronized (pending) {
+            memory += requeued;
+
+            Queued newer = pending.remove(key);
+            if (newer != null) {
+                queued.spilled.addAll(newer.spilled);
+                queued.rows = newer.rows;
+            }
+            pending.put(key, queued);
+            startPoster();
+        }
+    }
+
+    private boolean insert(ShardKey key, List<Backdate> list) {
+        try {
+            db.insert(key.seriesId, key.shardId, list);
+            return true;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to insert " + list.size() + " backdates into series " + key.seriesId + ", shard "
+                    + key.shardId, e);
+            return false;
+        }
+    }
+
+    private static long getMemory(List<Backdate> list) {
+        long memory = 0;
+        for (Backdate backdate : list) {
+            memory += getMemory(backdate);
+        }
+        return memory;
+    }
+
+    private static long getMemory(Backdate backdate) {
+        return backdate.getData().length + BACKDATE_OVERHEAD;
+    }
+
+    /**
+     * The waiting backdates of a shard.
+     */
+    static class Queued {
+        /**
+         * Backdates that were spilled, oldest first.
+         */
+        final List<Spilled> spilled = new ArrayList<>();
+        /**
+         * Backdates in memory, which are newer than those that were spilled.
+         */
+        List<Backdate> rows = new ArrayList<>();
+
+        boolean hasRuns() {
+            for (Spilled s : spilled) {
+                if (s.run != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A shard's backdates that were moved out of its queue by a spill.
+     */
+    static class Spilled {
+        /**
+         * The backdates in time order, until they are written to the log.
+         */
+        List<Backdate> rows;
+        /**
+         * Where the backdates were written, or null if they have not been (yet).
+         */
+        BackdateLog.Run run;
+        /**
+         * Whether a poster took the backdates from memory before they were written.
+         */
+        boolean taken;
+        int attempts;
+
+        Spilled(List<Backdate> rows) {
+            this.rows = rows;
+        }
+    }
+
+    static class ShardKey {
+        final String seriesId;
+        final long shardId;
+
+        ShardKey(String seriesId, long shardId) {
+            this.seriesId = seriesId;
+            this.shardId = shardId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ShardKey that = (ShardKey) o;
+            return shardId == that.shardId && seriesId.equals(that.seriesId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * seriesId.hashCode() + (int) (shardId ^ (shardId >>> 32));
+        }
+    }
+
+    /**
+     * Spills the backdates in memory until they are below the memory limit again, so that the writers don't have to.
+     */
+    class BackdateSpiller implements Runnable {
+
+        private final Thread thread;
+
+        BackdateSpiller() {
+            thread = new Thread(this, "ETSDB Backdate Spiller");
+            thread.setPriority(Thread.MAX_PRIORITY - 1);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (spill()) {
+                    // Keep spilling.
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Backdate spiller failed with exception", e);
+            } finally {
+                synchronized (pending) {
+                    if (spiller == this) {
+                        spiller = null;
+                    }
+                }
+            }
+        }
+
+        void join() {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // no op
+            }
         }
     }
 
@@ -52,8 +593,8 @@ class Backdates {
 
         private final Thread thread;
 
-        BackdatePoster() {
-            thread = new Thread(this, "ETSDB Backdate Poster");
+        BackdatePoster(int number) {
+            thread = new Thread(this, "ETSDB Backdate Poster " + number);
             thread.setPriority(Thread.MAX_PRIORITY - 1);
             thread.start();
         }
@@ -64,54 +605,64 @@ class Backdates {
                 runImpl();
             } catch (Exception e) {
                 logger.warn("Backdate poster failed with exception", e);
+            } finally {
+                synchronized (pending) {
+                    posters.remove(this);
+                }
             }
         }
 
         private void runImpl() throws Exception {
             if (startDelay > 0) {
                 synchronized (this) {
-                    wait(startDelay);
+                    if (!isClosing()) {
+                        wait(startDelay);
+                    }
                 }
             }
 
-            List<Backdate> shardInserts = new ArrayList<>();
             while (true) {
-                Backdate first;
+                ShardKey key = null;
+                Queued queued;
 
-                synchronized (backdates) {
-                    if (backdates.isEmpty()) {
-                        poster = null;
+                synchronized (pending) {
+                    // Take the backdates of the first shard that no other poster is inserting into.
+                    for (ShardKey k : pending.keySet()) {
+                        if (!posting.contains(k)) {
+                            key = k;
+                            break;
+                        }
+                    }
+                    if (key == null) {
+                        posters.remove(this);
                         break;
                     }
 
-                    first = backdates.remove(0);
-                    shardInserts.add(first);
+                    queued = pending.remove(key);
+                    take(queued);
+                    posting.add(key);
+                }
 
-                    // Collect all of the backdates for the same shard.
-                    Iterator<Backdate> iter = backdates.iterator();
-                    while (iter.hasNext()) {
-                        Backdate bd = iter.next();
-                        if (bd.getSeriesId().equals(first.getSeriesId()) && bd.getShardId() == first.getShardId()) {
-                            iter.remove();
-                            shardInserts.add(bd);
-                        }
+                try {
+                    post(key, queued);
+                } finally {
+                    synchronized (pending) {
+                        posting.remove(key);
                     }
                 }
-
-                // Sort the shard inserts.
-                Collections.sort(shardInserts);
-
-                // Insert the backdates into the shard.
-                db.insert(first.getSeriesId(), first.getShardId(), shardInserts);
-
-                shardInserts.clear();
             }
+        }
 
-            synchronized (backdates) {
-                poster = null;
+        private boolean isClosing() {
+            synchronized (pending) {
+                return closing;
             }
         }
 
+        synchronized void wake() {
+            notify();
+        }
+
         void join() {
             try {
                 thread.join();
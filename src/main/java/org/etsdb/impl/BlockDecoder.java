@@ -0,0 +1,194 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the rows of a block written by BlockEncoder. The block is read and its checksum verified as a whole, after
+ * which the rows are decoded one at a time.
+ */
+class BlockDecoder {
+    private final CRC32 crc = new CRC32();
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+    private int recordLength;
+    private int position;
+    private int remaining;
+    private boolean first;
+
+    private long prevOffset;
+    private long prevDelta;
+    private final byte[] prev = new byte[Utils.MAX_DATA_LENGTH];
+    private int prevLength;
+
+    /**
+     * Reads a block from the input. The block header must already have been read.
+     *
+     * @return false if the block's checksum does not match.
+     */
+    boolean read(ChecksumInput in) throws IOException {
+        clear();
+
+        int rows;
+        int len;
+        try {
+            rows = Utils.readCompactInt(in);
+            len = Utils.readCompactInt(in);
+        } catch (IOException e) {
+            throw new BadRowException("Block length error: IOException: " + e.getMessage());
+        }
+        if (rows <= 0 || rows > Utils.MAX_BLOCK_ROWS) {
+            throw new BadRowException("Block row count error: must be between 1 and " + Utils.MAX_BLOCK_ROWS + ": "
+                    + rows);
+        }
+        if (len <= 0 || len > Utils.MAX_BLOCK_LENGTH) {
+            throw new BadRowException("Block length error: must be between 1 and " + Utils.MAX_BLOCK_LENGTH + ": "
+                    + len);
+        }
+
+        if (buffer.length < len) {
+            buffer = new byte[Utils.MAX_BLOCK_LENGTH];
+        }
+        int done = 0;
+        while (done < len) {
+            int count = in.read(buffer, done, len - done);
+            if (count == -1) {
+                throw new BadRowException("EOF before block was completely read");
+            }
+            done += count;
+        }
+
+        long sum = Utils.read4ByteUnsigned(in);
+        if (in.isEof()) {
+            throw new BadRowException("EOF before block was completely read");
+        }
+        in.resetSum();
+
+        crc.reset();
+        crc.update(buffer, 0, len);
+        if (crc.getValue() != sum) {
+            return false;
+        }
+
+        length = len;
+        recordLength = BlockEncoder.getRecordLength(rows, len);
+        remaining = rows;
+        first = true;
+        return true;
+    }
+
+    /**
+     * @return the length in the file of the block that was read, if it has a trailer.
+     */
+    int getRecordLength() {
+        return recordLength;
+    }
+
+    boolean hasNext() {
+        return remaining > 0;
+    }
+
+    /**
+     * Decodes the next row into the given builder.
+     *
+     * @return the time offset of the row.
+     */
+    long next(ByteArrayBuilder data) throws IOException {
+        if (first) {
+            first = false;
+            prevOffset = getCompactLong();
+            prevDelta = 0;
+            prevLength = (int) getCompactLong();
+            get(prev, 0, prevLength);
+        } else {
+            long dod = unZigZag(getCompactLong());
+            prevDelta += dod;
+            prevOffset += prevDelta;
+
+            int tag = getByte();
+            if (tag == BlockEncoder.TAG_RAW) {
+                prevLength = (int) getCompactLong();
+                get(prev, 0, prevLength);
+            } else if (tag != BlockEncoder.TAG_SAME) {
+                int lead;
+                int significant;
+                if (tag == BlockEncoder.TAG_XOR) {
+                    lead = (int) getCompactLong();
+                    significant = (int) getCompactLong();
+                } else if (tag >= BlockEncoder.TAG_PACKED_MIN) {
+                    lead = (tag >> 4) - 1;
+                    significant = (tag & 0xf) + 1;
+                } else {
+                    throw new BadRowException("Unknown row tag in block: " + tag);
+                }
+
+                if (lead + significant > prevLength) {
+                    throw new BadRowException("Row in block exceeds data length");
+                }
+                ensureAvailable(significant);
+                for (int i = lead; i < lead + significant; i++) {
+                    prev[i] ^= buffer[position++];
+                }
+            }
+        }
+
+        remaining--;
+        if (remaining == 0 && position != length) {
+            throw new BadRowException("Block length error: " + (length - position) + " bytes left after the last row");
+        }
+
+        data.clear();
+        data.put(prev, 0, prevLength);
+        return prevOffset;
+    }
+
+    void clear() {
+        remaining = 0;
+        length = 0;
+        position = 0;
+    }
+
+    static long unZigZag(long l) {
+        return (l >>> 1) ^ -(l & 1);
+    }
+
+    //
+    //
+    // Private
+    //
+    private int getByte() throws BadRowException {
+        ensureAvailable(1);
+        return buffer[position++] & 0xff;
+    }
+
+    private void get(byte[] dst, int off, int len) throws BadRowException {
+        if (len < 0 || len > Utils.MAX_DATA_LENGTH) {
+            throw new BadRowException("Length error: cannot be negative or exceed " + Utils.MAX_DATA_LENGTH + ": "
+                    + len);
+        }
+        ensureAvailable(len);
+        System.arraycopy(buffer, position, dst, off, len);
+        position += len;
+    }
+
+    private long getCompactLong() throws BadRowException {
+        long result = 0;
+        int count = 0;
+        while (true) {
+            long l = getByte();
+            result |= (l & 0x7f) << (count++ * 7);
+            if (l < 128)
+                break;
+        }
+        return result;
+    }
+
+    private void ensureAvailable(int len) throws BadRowException {
+        if (length - position < len) {
+            throw new BadRowException("Row in block exceeds block length");
+        }
+    }
+}
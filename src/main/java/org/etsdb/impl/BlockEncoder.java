@@ -0,0 +1,187 @@
+package org.etsdb.impl;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Packs a run of samples into a single compressed block record. Time offsets are stored as delta-of-deltas, and each
+ * sample's data is stored as the XOR against the previous sample's data with the leading and trailing zero bytes
+ * removed. Numeric series that change slowly and are written at a steady rate compress to a few bytes per sample.
+ * <p>
+ * The block is written as the block header, the row count, the encoded length, the encoded rows, a CRC32 of the
+ * encoded rows, and a trailer holding the length of the whole record. The single checksum covers all of the rows in
+ * the block.
+ * <p>
+ * Row encoding: the first row is the offset and the data length as compact ints, followed by the data. Subsequent rows
+ * are the zig-zag encoded delta-of-delta as a compact long, then a tag byte:
+ * <ul>
+ * <li>TAG_SAME: the data is the same as the previous row's.</li>
+ * <li>TAG_RAW: the data length as a compact int, followed by the data. Used when the length changed.</li>
+ * <li>TAG_XOR: the number of leading zero bytes and the number of remaining significant bytes as compact ints,
+ * followed by the significant bytes of the XOR.</li>
+ * <li>Otherwise the high nibble minus one is the number of leading zero bytes (0-14) and the low nibble plus one is the
+ * number of significant bytes (1-16), followed by the significant bytes of the XOR.</li>
+ * </ul>
+ */
+class BlockEncoder {
+    static final int TAG_SAME = 0;
+    static final int TAG_RAW = 1;
+    static final int TAG_XOR = 2;
+    static final int TAG_PACKED_MIN = 0x10;
+
+    /**
+     * The most that a single row can add to the encoded length beyond the length of its data.
+     */
+    private static final int ROW_OVERHEAD = 16;
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+    private int rows;
+
+    private long firstOffset;
+    private long prevOffset;
+    private long prevDelta;
+    private final byte[] prev = new byte[Utils.MAX_DATA_LENGTH];
+    private int prevLength;
+
+    boolean isEmpty() {
+        return rows == 0;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    long getFirstOffset() {
+        return firstOffset;
+    }
+
+    /**
+     * @return true if a sample of the given data length can still be added to the block.
+     */
+    boolean hasRoom(int len) {
+        return rows < Utils.MAX_BLOCK_ROWS && length + len + ROW_OVERHEAD <= Utils.MAX_BLOCK_LENGTH;
+    }
+
+    void add(long offset, byte[] data, int off, int len) {
+        ensureCapacity(len + ROW_OVERHEAD);
+
+        if (rows == 0) {
+            firstOffset = offset;
+            putCompactLong(offset);
+            putCompactLong(len);
+            put(data, off, len);
+            prevDelta = 0;
+        } else {
+            long delta = offset - prevOffset;
+            putCompactLong(zigZag(delta - prevDelta));
+            prevDelta = delta;
+
+            if (len != prevLength) {
+                putByte(TAG_RAW);
+                putCompactLong(len);
+                put(data, off, len);
+            } else {
+                int lead = 0;
+                while (lead < len && data[off + lead] == prev[lead]) {
+                    lead++;
+                }
+
+                if (lead == len) {
+                    putByte(TAG_SAME);
+                } else {
+                    int trail = 0;
+                    while (data[off + len - 1 - trail] == prev[len - 1 - trail]) {
+                        trail++;
+                    }
+
+                    int significant = len - lead - trail;
+                    if (lead < 15 && significant <= 16) {
+                        putByte(((lead + 1) << 4) | (significant - 1));
+                    } else {
+                        putByte(TAG_XOR);
+                        putCompactLong(lead);
+                        putCompactLong(significant);
+                    }
+                    for (int i = lead; i < lead + significant; i++) {
+                        buffer[length++] = (byte) (data[off + i] ^ prev[i]);
+                    }
+                }
+            }
+        }
+
+        System.arraycopy(data, off, prev, 0, len);
+        prevLength = len;
+        prevOffset = offset;
+        rows++;
+    }
+
+    /**
+     * Writes the block to the given stream and clears it.
+     */
+    void write(ChecksumOutputStream out) throws IOException {
+        crc.reset();
+        crc.update(buffer, 0, length);
+
+        out.write(Utils.TRAILED_BLOCK_HEADER);
+        Utils.writeCompactInt(out, rows);
+        Utils.writeCompactInt(out, length);
+        out.write(buffer, 0, length);
+        Utils.write4ByteUnsigned(out, crc.getValue());
+        DataShard.writeTrailer(out, getRecordLength(rows, length));
+
+        clear();
+    }
+
+    void clear() {
+        length = 0;
+        rows = 0;
+    }
+
+    /**
+     * @return the length in the file of a trailed block with the given row count and encoded length.
+     */
+    static int getRecordLength(int rows, int length) {
+        return Utils.TRAILED_BLOCK_HEADER.length + Utils.getCompactIntLength(rows) + Utils.getCompactIntLength(length)
+                + length + 4 + Utils.TRAILER_LENGTH;
+    }
+
+    static long zigZag(long l) {
+        return (l << 1) ^ (l >> 63);
+    }
+
+    //
+    //
+    // Private
+    //
+    private void putByte(int b) {
+        buffer[length++] = (byte) b;
+    }
+
+    private void put(byte[] data, int off, int len) {
+        System.arraycopy(data, off, buffer, length, len);
+        length += len;
+    }
+
+    private void putCompactLong(long l) {
+        while ((l & ~0x7fL) != 0) {
+            buffer[length++] = (byte) (l | 0x80);
+            l >>>= 7;
+        }
+        buffer[length++] = (byte) l;
+    }
+
+    private void ensureCapacity(int len) {
+        if (buffer.length < length + len) {
+            int newLength = buffer.length << 1;
+            while (newLength < length + len) {
+                newLength <<= 1;
+            }
+            byte[] b = new byte[newLength];
+            System.arraycopy(buffer, 0, b, 0, length);
+            buffer = b;
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package org.etsdb.impl;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
-class ChecksumDataInput implements ChecksumInput, Closeable {
+class ChecksumDataInput implements ShardInput {
     private final RandomAccessFile delegate;
 
     private byte sum;
@@ -22,6 +21,11 @@ class ChecksumDataInput implements ChecksumInput, Closeable {
         return match;
     }
 
+    @Override
+    public void resetSum() {
+        sum = 0;
+    }
+
     @Override
     public int read() throws IOException {
         if (eof)
@@ -57,6 +61,18 @@ class ChecksumDataInput implements ChecksumInput, Closeable {
         return eof;
     }
 
+    @Override
+    public long position() throws IOException {
+        return delegate.getFilePointer();
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        delegate.seek(position);
+        eof = false;
+        sum = 0;
+    }
+
     @Override
     public void close() throws IOException {
         delegate.close();
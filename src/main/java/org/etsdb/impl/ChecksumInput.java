@@ -10,5 +10,10 @@ import java.io.IOException;
 interface ChecksumInput extends Input {
     boolean checkSum() throws IOException;
 
+    /**
+     * Discards the sum of the bytes read so far, e.g. after reading a block that has its own checksum.
+     */
+    void resetSum();
+
     boolean isEof();
 }
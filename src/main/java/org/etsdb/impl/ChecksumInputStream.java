@@ -2,7 +2,7 @@ package org.etsdb.impl;
 
 import java.io.*;
 
-class ChecksumInputStream extends InputStream implements ChecksumInput {
+class ChecksumInputStream extends InputStream implements ShardInput {
     private final InputStream delegate;
 
     private byte sum;
@@ -38,6 +38,11 @@ class ChecksumInputStream extends InputStream implements ChecksumInput {
         return match;
     }
 
+    @Override
+    public void resetSum() {
+        sum = 0;
+    }
+
     @Override
     public int read() throws IOException {
         if (eof)
@@ -70,10 +75,23 @@ class ChecksumInputStream extends InputStream implements ChecksumInput {
         return count;
     }
 
-    long position() {
+    @Override
+    public long position() {
         return position;
     }
 
+    /**
+     * Only seeking forward is supported.
+     */
+    @Override
+    public void seek(long position) throws IOException {
+        if (position < this.position) {
+            throw new IOException("Cannot seek backward in a stream");
+        }
+        Utils.skip(this, position - this.position);
+        sum = 0;
+    }
+
     @Override
     public int available() throws IOException {
         return delegate.available();
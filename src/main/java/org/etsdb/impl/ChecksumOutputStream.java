@@ -8,8 +8,17 @@ class ChecksumOutputStream extends OutputStream {
     private final OutputStream delegate;
 
     private byte sum;
+    private long position;
 
     ChecksumOutputStream(OutputStream delegate) {
+        this(delegate, 0);
+    }
+
+    /**
+     * @param position the number of bytes already in the destination, e.g. the length of a file being appended to.
+     */
+    ChecksumOutputStream(OutputStream delegate, long position) {
+        this.position = position;
         if (delegate instanceof BufferedOutputStream) {
             this.delegate = delegate;
         } else {
@@ -19,6 +28,14 @@ class ChecksumOutputStream extends OutputStream {
 
     void writeSum() throws IOException {
         delegate.write(sum);
+        position++;
+        sum = 0;
+    }
+
+    /**
+     * Discards the sum of the bytes written so far, e.g. after writing a block that has its own checksum.
+     */
+    void resetSum() {
         sum = 0;
     }
 
@@ -26,6 +43,7 @@ class ChecksumOutputStream extends OutputStream {
     public void write(int b) throws IOException {
         sum += b;
         delegate.write(b);
+        position++;
     }
 
     @Override
@@ -33,6 +51,11 @@ class ChecksumOutputStream extends OutputStream {
         for (int i = 0; i < len; i++)
             sum += b[i + off];
         delegate.write(b, off, len);
+        position += len;
+    }
+
+    long position() {
+        return position;
     }
 
     @Override
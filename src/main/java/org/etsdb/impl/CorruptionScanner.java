@@ -6,7 +6,9 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 class CorruptionScanner {
 
@@ -32,35 +34,41 @@ class CorruptionScanner {
     }
 
     void scan() throws IOException {
-        scan(db.getBaseDir());
+        Set<String> seriesIds = new HashSet<>();
+        scan(db.getBaseDir(), seriesIds);
+        db.catalog.reconcile(seriesIds);
     }
 
-    private void scan(File parent) throws IOException {
+    private void scan(File parent, Set<String> seriesIds) throws IOException {
         File[] subdirs = parent.listFiles();
         if (subdirs != null) {
             for (File subdir : subdirs) {
                 File[] seriesDirs = subdir.listFiles();
                 if (seriesDirs != null) {
+                    int subPos = subdir.getPath().length() + 1;
                     for (File seriesDir : seriesDirs) {
-                        checkSeriesDir(seriesDir);
-                        deepScan(seriesDir);
+                        checkSeriesDir(seriesDir, subPos, seriesIds);
+                        deepScan(seriesDir, subPos, seriesIds);
                     }
                 }
             }
         }
     }
 
-    private void deepScan(File parent) throws IOException {
+    private void deepScan(File parent, int subPos, Set<String> seriesIds) throws IOException {
         File[] subdirs = parent.listFiles();
         if (subdirs != null) {
             for (File subdir : subdirs) {
-                checkSeriesDir(subdir);
-                deepScan(subdir);
+                checkSeriesDir(subdir, subPos, seriesIds);
+                deepScan(subdir, subPos, seriesIds);
             }
         }
     }
 
-    private void checkSeriesDir(File seriesDir) throws IOException {
+    /**
+     * Checks the files in a series directory, and adds its id to the given set if it has any data files.
+     */
+    private void checkSeriesDir(File seriesDir, int subPos, Set<String> seriesIds) throws IOException {
         if (!seriesDir.isDirectory()) {
             return;
         }
@@ -71,6 +79,7 @@ class CorruptionScanner {
             long shardId = Utils.getShardId(temp.getName(), 10);
             File data = new File(seriesDir, shardId + ".data");
             File meta = new File(seriesDir, shardId + ".meta");
+            File index = new File(seriesDir, shardId + ".idx");
 
             if (data.exists()) {
                 // If the data file exists, then just delete the file
@@ -82,6 +91,8 @@ class CorruptionScanner {
                 logger.warn("Found temp file " + temp + " without data but with meta file. Moving.");
                 Utils.renameWithRetry(temp, data);
                 Utils.deleteWithRetry(meta);
+                Utils.deleteWithRetry(index);
+                Utils.deleteWithRetry(new File(seriesDir, SeriesSummary.FILENAME));
             } else if (temp.length() > 0) {
                 // A lonely temp file, but with content. Rename to data and see wht the corruption check has to say.
                 logger.warn("Found temp file " + temp + " without data or meta file, with content. Moving.");
@@ -127,6 +138,44 @@ class CorruptionScanner {
         for (File data : datas) {
             checkFile(data);
         }
+
+        if (!datas.isEmpty()) {
+            seriesIds.add(seriesDir.getPath().substring(subPos));
+        }
+
+        // Ensure there is an index for every data file, and delete any index without a data file.
+        List<File> indexes = getFiles(seriesDir, ".idx");
+        for (File data : datas) {
+            long shardId = Utils.getShardId(data.getName());
+            File index = new File(seriesDir, shardId + ".idx");
+            if (!indexes.remove(index)) {
+                logger.info("Rebuilding missing index in series " + seriesId + ", shard " + shardId + ".");
+                new ShardIndex(index).rebuild(data);
+            }
+        }
+
+        for (File index : indexes) {
+            logger.warn("Index file without data file at " + index + ". Deleting file");
+            Utils.deleteWithRetry(index);
+        }
+
+        // Tombstones are useless without a data file.
+        for (File tomb : getFiles(seriesDir, ".tomb")) {
+            long shardId = Utils.getShardId(tomb.getName());
+            if (!new File(seriesDir, shardId + ".data").exists()) {
+                logger.warn("Tombstone file without data file at " + tomb + ". Deleting file");
+                Utils.deleteWithRetry(tomb);
+            }
+        }
+
+        // So are overlays.
+        for (File overlay : getFiles(seriesDir, ".ovl")) {
+            long shardId = Utils.getShardId(overlay.getName(), 4);
+            if (!new File(seriesDir, shardId + ".data").exists()) {
+                logger.warn("Overlay file without data file at " + overlay + ". Deleting file");
+                Utils.deleteWithRetry(overlay);
+            }
+        }
     }
 
     private List<File> getFiles(File dir, String suffix) {
@@ -147,8 +196,12 @@ class CorruptionScanner {
                 break;
             }
 
-            // If any corruption was found, delete the meta file so that it gets recreated.
-            Utils.deleteWithRetry(new File(data.getParent(), Utils.getShardId(data.getName()) + ".meta"));
+            // If any corruption was found, delete the meta and index files so that they get recreated, and the series
+            // summary so that the shards are summarized again.
+            long shardId = Utils.getShardId(data.getName());
+            Utils.deleteWithRetry(new File(data.getParent(), shardId + ".meta"));
+            Utils.deleteWithRetry(new File(data.getParent(), shardId + ".idx"));
+            Utils.deleteWithRetry(new File(data.getParent(), SeriesSummary.FILENAME));
 
             logger.warn("Corruption detected in " + data + " at position " + position);
             fixCorruption(data, position);
@@ -191,7 +244,8 @@ class CorruptionScanner {
 
             while (true) {
                 in.read();
-                in.mark(Utils.MAX_DATA_LENGTH + 10);
+                in.mark(Utils.MAX_RECORD_LENGTH * 3);
+                scanInfo.reset();
                 long position = in.position();
                 if (!checkRow(in, scanInfo)) {
                     // Bad row. Keep looking for a good one.
@@ -236,21 +290,13 @@ class CorruptionScanner {
     }
 
     private boolean checkRow(ChecksumInputStream in, ScanInfo scanInfo) throws IOException {
+        // ??? Check that the record's ts is greater than 0, greater than the last, and less than the shard max.
+        // Verify the checksum. If no row was read because we normally reached the EOF, this is also true.
         try {
-            DataShard._readSample(in, scanInfo);
+            return DataShard._readSample(in, scanInfo);
         } catch (BadRowException e) {
             return false;
         }
-
-        if (scanInfo.isEof()) // No row was read because we normally reached the EOF.
-        {
-            return true;
-        }
-
-        // ??? Check that the record's ts is greater than 0, greater than the last, and less than the shard max.
-        // Verify the checksum.
-        return in.checkSum();
-
     }
 
     /**
@@ -43,6 +43,10 @@ public class DBProperties extends AbstractProperties {
         setString(key, Integer.toString(value));
     }
 
+    public void setLong(String key, long value) {
+        setString(key, Long.toString(value));
+    }
+
     public void setBoolean(String key, boolean value) {
         setString(key, Boolean.toString(value));
     }
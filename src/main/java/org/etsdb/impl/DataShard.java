@@ -1,6 +1,7 @@
 package org.etsdb.impl;
 
 import org.etsdb.ByteArrayBuilder;
+import org.etsdb.QueueOverflowPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,11 +10,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.TreeMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -26,26 +30,69 @@ class DataShard {
     private final long shardId;
     private final File dataFile;
     private final File metaFile;
+    private final ShardIndex index;
+    private final Tombstones tombstones;
+    private final Overlay overlay;
 
     private final PendingWriteList cache;
+    private final SeriesSummary seriesSummary;
+    /**
+     * The shard's entry in the series summary, or null if the shard has not been summarized since the summary file
+     * was lost. In that case it is summarized from the data file when it is needed, and changes are ignored until
+     * then.
+     */
+    private ShardSummary summary;
 
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final AtomicInteger metaClosures = new AtomicInteger();
     /**
      * This field is the latest time in the data file *only*. There may be cache records with a later ts that this value does not represent.
      */
     private long latestTime = -Long.MAX_VALUE;
     private MappedByteBuffer metaBuf;
     private ChecksumOutputStream dataOut;
+    private FileChannel dataChannel;
+    /**
+     * True if rows have been appended to the data output but not yet flushed to the file, and the shard is waiting
+     * for the group commit.
+     */
+    private volatile boolean pendingAppends;
+    /**
+     * The oldest write-ahead log segment that holds rows in the cache, or Long.MAX_VALUE if there are none.
+     */
+    private volatile long walSegment = Long.MAX_VALUE;
+    /**
+     * The length of the data file that has been added to the database size.
+     */
+    private long accountedLength;
+    private boolean indexLoaded;
+    private boolean tombstonesLoaded;
+    private boolean overlayLoaded;
+    /**
+     * The number of rows appended individually since the shard was opened. Used to decide whether the shard should be
+     * compacted into blocks when it goes stale.
+     */
+    private int appendedRows;
     private long lastAccess;
     private boolean closed;
+    /**
+     * The time of the shard's earliest entry in the flush schedule. Guarded by the schedule.
+     */
+    volatile long nextCheck = Long.MAX_VALUE;
+    /**
+     * The shard's entry in the flush schedule, if it has one. Guarded by the schedule.
+     */
+    ShardSchedule.Entry scheduleEntry;
 
-    DataShard(DatabaseImpl<?> db, File seriesDir, String seriesId, long shardId) throws IOException {
+    DataShard(DatabaseImpl<?> db, File seriesDir, String seriesId, long shardId, SeriesSummary seriesSummary)
+            throws IOException {
         this.db = db;
         this.seriesId = seriesId;
         this.shardId = shardId;
         metaFile = new File(seriesDir, shardId + ".meta");
         dataFile = new File(seriesDir, shardId + ".data");
+        index = new ShardIndex(new File(seriesDir, shardId + ".idx"));
+        tombstones = new Tombstones(new File(seriesDir, shardId + ".tomb"));
+        overlay = new Overlay(new File(seriesDir, shardId + ".ovl"));
 
         if (dataFile.exists() && !metaFile.exists()) {
             recreateMetaFile();
@@ -53,43 +100,117 @@ class DataShard {
 
         cache = db.useQueue() ? new PendingWriteList(db.queueInfo) : null;
 
+        this.seriesSummary = seriesSummary;
+        summary = seriesSummary.get(shardId);
+        if (summary == null && !dataFile.exists()) {
+            // A new shard. It is added to the series summary with its first row.
+            summary = new ShardSummary();
+        }
+        seriesSummary.opened();
+
         updateLastAccess();
     }
 
     static void _writeSample(ChecksumOutputStream out, long tsOffset, byte[] data, int offset, int length)
             throws IOException {
-        out.write(Utils.SAMPLE_HEADER);
+        out.write(Utils.TRAILED_SAMPLE_HEADER);
         Utils.write4ByteUnsigned(out, tsOffset);
         Utils.writeCompactInt(out, length);
         out.write(data, offset, length);
         out.writeSum();
+        writeTrailer(out, getSampleLength(length));
+    }
+
+    /**
+     * @return the length in the file of a trailed sample with the given data length.
+     */
+    static int getSampleLength(int dataLength) {
+        return Utils.TRAILED_SAMPLE_HEADER.length + 4 + Utils.getCompactIntLength(dataLength) + dataLength + 1
+                + Utils.TRAILER_LENGTH;
+    }
+
+    static void writeTrailer(ChecksumOutputStream out, int recordLength) throws IOException {
+        out.write((byte) (recordLength >> 8));
+        out.write((byte) recordLength);
+        // The trailer is not covered by the record's checksum.
+        out.resetSum();
     }
 
-    static void _readSample(ChecksumInput in, ScanInfo scanInfo) throws IOException {
+    /**
+     * Reads the trailer of a record and checks that it holds the length of the record.
+     */
+    private static void readTrailer(ChecksumInput in, int recordLength) throws IOException {
+        int length = readTrailer(in);
+        if (length != recordLength) {
+            throw new BadRowException("Trailer error: expected " + recordLength + ", got " + length);
+        }
+        in.resetSum();
+    }
+
+    private static int readTrailer(ChecksumInput in) throws IOException {
+        int length = (in.read() & 0xff) << 8;
+        length |= in.read() & 0xff;
+        if (in.isEof()) {
+            throw new BadRowException("EOF before trailer was completely read");
+        }
+        return length;
+    }
+
+    /**
+     * Reads the next sample, either from the remainder of the current block, or from the next row or block in the
+     * input.
+     *
+     * @return false if the checksum of the row or block that was read does not match.
+     */
+    static boolean _readSample(ChecksumInput in, ScanInfo scanInfo) throws IOException {
         if (scanInfo.isEof()) {
             // If we're done with the file, start iterating through the cache.
             scanInfo.incrementCache();
-            return;
+            return true;
         }
 
+        if (scanInfo.hasBlockRows()) {
+            // Continue with the current block.
+            scanInfo.setRecordStart(false);
+            scanInfo.setOffset(scanInfo.getBlock().next(scanInfo.getData()));
+            return true;
+        }
+
+        scanInfo.setRecordStart(true);
         int b = in.read();
         if (b == -1) {
             // EOF
             scanInfo.setEof(true);
-            return;
+            return true;
         }
 
-        // Header
+        // Header. All of the headers share the first byte.
         if (((byte) b) != Utils.SAMPLE_HEADER[0]) {
             throw new BadRowException("Header error at 0: expected " + Utils.SAMPLE_HEADER[0] + ", got " + b);
         }
-        for (int i = 1; i < Utils.SAMPLE_HEADER.length; i++) {
-            b = in.read();
-            if (((byte) b) != Utils.SAMPLE_HEADER[i]) {
-                throw new BadRowException("Header error at " + i + ": expected " + Utils.SAMPLE_HEADER[i] + ", got "
-                        + b);
+        b = in.read();
+        boolean trailed;
+        if (((byte) b) == Utils.SAMPLE_HEADER[1]) {
+            trailed = false;
+        } else if (((byte) b) == Utils.TRAILED_SAMPLE_HEADER[1]) {
+            trailed = true;
+        } else if (((byte) b) == Utils.BLOCK_HEADER[1] || ((byte) b) == Utils.TRAILED_BLOCK_HEADER[1]) {
+            // A block of samples.
+            trailed = ((byte) b) == Utils.TRAILED_BLOCK_HEADER[1];
+            scanInfo.setTrailed(trailed);
+            BlockDecoder block = scanInfo.getBlock();
+            if (!block.read(in)) {
+                return false;
+            }
+            if (trailed) {
+                readTrailer(in, block.getRecordLength());
             }
+            scanInfo.setOffset(block.next(scanInfo.getData()));
+            return true;
+        } else {
+            throw new BadRowException("Header error at 1: expected " + Utils.SAMPLE_HEADER[1] + ", got " + b);
         }
+        scanInfo.setTrailed(trailed);
 
         // Offset
         try {
@@ -117,6 +238,14 @@ class DataShard {
         if (in.isEof()) {
             throw new BadRowException("EOF before row was completely read");
         }
+
+        if (!in.checkSum()) {
+            return false;
+        }
+        if (trailed) {
+            readTrailer(in, getSampleLength(length));
+        }
+        return true;
     }
 
     long getShardId() {
@@ -150,11 +279,15 @@ class DataShard {
         return cache.getList();
     }
 
-    int resetMetaClosures() {
-        return metaClosures.getAndSet(0);
+    void write(long ts, byte[] data, int off, int len) throws IOException {
+        write(ts, data, off, len, true);
     }
 
-    void write(long ts, byte[] data, int off, int len) throws IOException {
+    /**
+     * @param flush whether an appended row should be flushed to the file immediately. If not, the caller must call
+     *              flushAppends once it is done writing.
+     */
+    void write(long ts, byte[] data, int off, int len, boolean flush) throws IOException {
         if (closed) {
             throw new IOException("DataShard already closed");
         }
@@ -162,41 +295,304 @@ class DataShard {
         try {
             ensureLatestTime();
 
+            boolean direct = cache == null;
+            if (!direct && db.queueInfo.overflowPolicy == QueueOverflowPolicy.FLUSH && db.queueInfo.isFull()) {
+                // The queue is full, so the caller pays for the I/O. The shard's queued rows are written out, and the
+                // row goes directly to the file.
+                writeCache();
+                db.requestFlush();
+                direct = true;
+            }
+
             long offset = Utils.getSampleOffset(ts);
             if (ts >= latestTime) {
                 // Append
-                if (cache == null) {
+                if (direct) {
                     writeImmediate(ts, offset, data, off, len);
+                    appendedRows++;
                     db.flushCount.incrementAndGet();
-                    dataOut.flush();
+                    if (flush) {
+                        flushAppends();
+                    }
                 } else {
-                    // First check if there are too many queued rows.
-                    if (db.queueInfo.queueSize.incrementAndGet() > db.queueInfo.discardQueueSize) {
-                        db.queueInfo.recentDiscards.incrementAndGet();
-                        db.queueInfo.queueSize.decrementAndGet();
+                    // First check if there are too many queued rows. Blocked writers have already waited for room, so
+                    // they may overfill the queue a little.
+                    if (db.queueInfo.queueSize.incrementAndGet() > db.queueInfo.discardQueueSize
+                            && db.queueInfo.overflowPolicy != QueueOverflowPolicy.BLOCK) {
+                        db.queueInfo.discarded(1);
+                        db.queueInfo.remove(1);
                     } else {
-                        cache.add(new PendingWrite(offset, data, off, len));
+                        if (db.wal != null) {
+                            db.wal.write(this, seriesId, ts, data, off, len);
+                        }
+                        if (cache.add(new PendingWrite(offset, data, off, len))) {
+                            summarize(ts);
+                        } else {
+                            // The row replaced a queued row with the same time, so the queue didn't grow.
+                            db.queueInfo.remove(1);
+                        }
                     }
                 }
             } else {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Backdate: seriesId=" + seriesId + ", ts=" + ts + ", latestTime=" + latestTime);
                 }
-                db.addBackdate(new Backdate(seriesId, shardId, offset, data, off, len));
+                List<Backdate> inserts = db.addBackdate(new Backdate(seriesId, shardId, offset, data, off, len));
+                if (inserts != null) {
+                    // Too many backdates are waiting, so the caller pays for the insert.
+                    insertSamples(inserts);
+                }
+            }
+        } finally {
+            updateLastAccess();
+        }
+    }
+
+    /**
+     * Writes rows recovered from the write-ahead log directly to the data file, skipping those that were written before
+     * the crash. The rows must be in chronological order. The file is forced to disk, so that the log can be deleted
+     * afterwards.
+     */
+    void replay(List<Backdate> rows) throws IOException {
+        try {
+            ensureLatestTime();
+
+            BlockEncoder block = null;
+            long lastTs = latestTime;
+            int count = 0;
+            for (int i = findWritten(rows); i < rows.size(); i++) {
+                Backdate row = rows.get(i);
+                long ts = Utils.getTimestamp(shardId, row.getOffset());
+                if (ts < latestTime) {
+                    continue;
+                }
+                if (block == null) {
+                    openData();
+                    block = new BlockEncoder();
+                }
+                addToBlock(dataOut, block, row.getOffset(), row.getData(), 0, row.getData().length);
+                summarize(ts);
+                lastTs = ts;
+                count++;
             }
+            if (block == null) {
+                return;
+            }
+
+            writeBlock(dataOut, block);
+            flushData();
+            dataChannel.force(false);
+
+            openMeta();
+            latestTime = lastTs;
+            metaBuf.putLong(latestTime);
+            metaBuf.flip();
+            metaBuf.force();
+            db.flushCount.addAndGet(count);
+            closeFiles();
         } finally {
             updateLastAccess();
         }
     }
 
+    /**
+     * Rows at the latest time are appended like later ones, so of the logged rows at the latest time, some may have
+     * been written before the crash and some not. Those up to the last one that is the same as the last row in the
+     * file are taken to have been written.
+     *
+     * @return the index of the first row that may not have been written.
+     */
+    private int findWritten(List<Backdate> rows) throws IOException {
+        int last = -1;
+        for (int i = 0; i < rows.size(); i++) {
+            if (Utils.getTimestamp(shardId, rows.get(i).getOffset()) == latestTime) {
+                last = i;
+            }
+        }
+        if (last == -1) {
+            return 0;
+        }
+
+        long offset = Utils.getSampleOffset(latestTime);
+        final List<byte[]> written = new ArrayList<>(1);
+        queryReverse(offset, offset + 1, 1, new RawQueryCallback() {
+            @Override
+            public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+                byte[] data = new byte[b.getAvailable()];
+                b.get(data, 0, data.length);
+                written.add(data);
+            }
+        });
+        if (written.isEmpty()) {
+            return 0;
+        }
+
+        for (int i = last; i >= 0; i--) {
+            Backdate row = rows.get(i);
+            if (row.getOffset() == offset && Arrays.equals(row.getData(), written.get(0))) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Called by the write-ahead log with the segment the first row of an empty cache was logged to.
+     */
+    void setWalSegment(long segment) {
+        walSegment = segment;
+    }
+
+    long getWalSegment() {
+        return walSegment;
+    }
+
+    /**
+     * Tells the write-ahead log that the cache was emptied, so that the segments of its rows can be deleted.
+     */
+    private void releaseWalSegment() {
+        if (walSegment != Long.MAX_VALUE) {
+            if (db.wal != null) {
+                db.wal.release(walSegment);
+            }
+            walSegment = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Flushes rows that were appended without flushing, or leaves them to the group commit if it is enabled.
+     */
+    void flushAppends() throws IOException {
+        if (dataOut == null) {
+            return;
+        }
+        if (db.committer == null) {
+            flushData();
+        } else if (!pendingAppends) {
+            pendingAppends = true;
+            db.committer.add(this);
+        }
+    }
+
+    /**
+     * Flushes the rows that are waiting for the group commit, and optionally forces the data file to the storage
+     * device.
+     */
+    void commit(boolean force) throws IOException {
+        if (pendingAppends) {
+            pendingAppends = false;
+            flushData();
+            if (force) {
+                dataChannel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Flushes the rows that are waiting for the group commit so that they can be read from the file. Safe to call
+     * with only the read lock.
+     */
+    private void flushPendingAppends() throws IOException {
+        if (pendingAppends) {
+            synchronized (index) {
+                if (pendingAppends) {
+                    flushData();
+                    pendingAppends = false;
+                }
+            }
+        }
+    }
+
     private void writeImmediate(long ts, long offset, byte[] data, int off, int len) throws IOException {
         openData();
         openMeta();
 
+        index.add(offset, dataOut.position());
         _writeSample(dataOut, offset, data, off, len);
         latestTime = ts;
         metaBuf.putLong(latestTime);
         metaBuf.flip();
+        summarize(ts);
+    }
+
+    /**
+     * Adds a row to the shard's summary, unless the shard hasn't been summarized.
+     */
+    private void summarize(long ts) {
+        if (summary != null) {
+            if (summary.isEmpty()) {
+                // The first row of the shard, or the first after all were deleted.
+                seriesSummary.put(shardId, summary);
+                db.retention.add(seriesId, shardId);
+            }
+            seriesSummary.add(summary, ts);
+        }
+    }
+
+    /**
+     * @return the shard's summary, reading it from the data file if required. Requires the write lock.
+     */
+    ShardSummary getSummary() throws IOException {
+        if (summary == null) {
+            summary = readSummary();
+            seriesSummary.put(shardId, summary);
+        }
+        return summary;
+    }
+
+    /**
+     * Summarizes the rows in the data file that are not deleted or replaced, the overlay rows, and the cached rows.
+     */
+    private ShardSummary readSummary() throws IOException {
+        ShardSummary s = new ShardSummary();
+        if (dataFile.exists()) {
+            openTombstones();
+            openOverlay();
+            ShardInput in = null;
+            try {
+                ScanInfo scanInfo = new ScanInfo();
+                in = openInput(tombstones.getPrefixEnd() + 1);
+                while (true) {
+                    readLiveSample(in, scanInfo);
+                    if (scanInfo.isEof()) {
+                        break;
+                    }
+                    if (!overlay.contains(scanInfo.getOffset())) {
+                        s.add(Utils.getTimestamp(shardId, scanInfo.getOffset()));
+                    }
+                }
+            } finally {
+                Utils.closeQuietly(in);
+            }
+            for (long offset : overlay.getOffsets()) {
+                s.add(Utils.getTimestamp(shardId, offset));
+            }
+            s.setSize(dataOut == null ? dataFile.length() : dataOut.position());
+        }
+        addCacheToSummary(s);
+        return s;
+    }
+
+    private void addCacheToSummary(ShardSummary s) {
+        if (cache != null) {
+            for (PendingWrite p : cache.getList()) {
+                s.add(Utils.getTimestamp(shardId, p.getOffset()));
+            }
+        }
+    }
+
+    /**
+     * Replaces the shard's summary after the data file was rewritten.
+     */
+    private void setSummary(ShardSummary s) {
+        addCacheToSummary(s);
+        s.setSize(dataFile.length());
+        if (summary == null) {
+            summary = s;
+            seriesSummary.put(shardId, summary);
+        } else {
+            seriesSummary.set(summary, s);
+        }
     }
 
     int query(long fromOffset, long toOffset, int limit, RawQueryCallback cb) throws IOException {
@@ -204,14 +600,16 @@ class DataShard {
             throw new IOException("DataShard already closed");
         }
 
-        ChecksumInputStream in = null;
+        ShardInput in = null;
         int count = 0;
         try {
             ScanInfo scanInfo = new ScanInfo(getCache());
-            in = new ChecksumInputStream(dataFile);
+            openTombstones();
+            Overlay.Cursor ovl = openOverlayCursor(fromOffset, toOffset, false);
+            in = openInput(fromOffset);
 
             while (count < limit) {
-                readSample(in, scanInfo);
+                readLiveSample(in, scanInfo);
                 if (scanInfo.isEndOfShard()) {
                     break;
                 }
@@ -221,9 +619,24 @@ class DataShard {
                 else if (scanInfo.getOffset() >= toOffset) {
                     break; // After time range. Done.
                 }
+
+                if (ovl != null) {
+                    // Overlay rows up to this one come first, and one with the same offset replaces it.
+                    count += ovl.sendUntil(scanInfo.getOffset(), limit - count, cb);
+                    if (count >= limit) {
+                        break;
+                    }
+                    if (overlay.contains(scanInfo.getOffset())) {
+                        continue;
+                    }
+                }
                 cb.sample(seriesId, Utils.getTimestamp(shardId, scanInfo.getOffset()), scanInfo.getData());
                 count++;
             }
+
+            if (ovl != null && count < limit) {
+                count += ovl.sendRest(limit - count, cb);
+            }
         } finally {
             Utils.closeQuietly(in);
             updateLastAccess();
@@ -244,7 +657,7 @@ class DataShard {
             // Check the cache for eligible rows first.
             if (cache != null) {
                 PendingWrite p;
-                for (int i = cache.getList().size() - 1; i >= 0; i--) {
+                for (int i = cache.getList().size() - 1; i >= 0 && count < limit; i--) {
                     p = cache.getList().get(i);
 
                     if (p.getOffset() >= toOffset)
@@ -264,61 +677,164 @@ class DataShard {
             }
 
             // Check if we need to look at the file.
-            if (count < limit) {
-                // Yup. Read the file.
-                PositionQueue positions;
-                if (limit == Integer.MAX_VALUE) {
-                    positions = new PositionQueue(limit);
-                } else {
-                    positions = new PositionQueue(limit - count);
+            if (count < limit && dataFile.exists()) {
+                flushPendingAppends();
+                long walkableFrom;
+                long end;
+                synchronized (index) {
+                    openIndex();
+                    walkableFrom = index.getWalkableFrom();
+                    end = index.seekAfter(toOffset);
+                }
+                openTombstones();
+                Overlay.Cursor ovl = openOverlayCursor(fromOffset, toOffset, true);
+                if (end == -1) {
+                    end = dataFile.length();
                 }
 
-                // Gather the positions of records in the time range in the shard.
-                ChecksumInputStream in = null;
+                List<PendingWrite> rows = new ArrayList<>();
+                boolean done = false;
+                ShardInput in = null;
                 try {
-                    in = new ChecksumInputStream(dataFile);
-                    while (true) {
-                        long position = in.position();
-                        readSample(in, scanInfo);
-
-                        if (scanInfo.isEof()) {
-                            break;
+                    in = openRandomInput();
+
+                    // Walk backwards from the end through the records that have trailers. Rows are in time order in
+                    // the file, so the walk can stop at the first record that has a row before the time range.
+                    while (end > walkableFrom && count < limit && !done) {
+                        in.seek(end - Utils.TRAILER_LENGTH);
+                        long position = end - readTrailer(in);
+                        if (position < walkableFrom || position >= end) {
+                            throw new IOException("Corruption detected in " + dataFile.getPath() + ": bad trailer at "
+                                    + end);
                         }
+                        done = readRecord(in, position, scanInfo, fromOffset, toOffset, rows);
+                        count += sendReverse(rows, limit - count, scanInfo.getData(), ovl, cb);
+                        end = position;
+                    }
 
-                        if (scanInfo.getOffset() < fromOffset)
-                            continue; // Ignore. Before time range
-                        else if (scanInfo.getOffset() >= toOffset) {
-                            break; // After time range. Done.
-                        }
-                        positions.push(position);
+                    if (count < limit && !done && walkableFrom > 0) {
+                        // The start of the file was written without trailers.
+                        int remaining = limit == Integer.MAX_VALUE ? limit : limit - count;
+                        count += queryLegacyReverse(in, Math.min(end, walkableFrom), fromOffset, toOffset, remaining,
+                                scanInfo, rows, ovl, cb);
+                    }
+
+                    if (ovl != null && count < limit) {
+                        // The overlay rows before the first row of the data file in the time range.
+                        count += ovl.sendRest(limit - count, cb);
                     }
                 } finally {
                     Utils.closeQuietly(in);
                 }
+            }
+        } finally {
+            updateLastAccess();
+        }
 
-                // Use the found positions to retrieve the records in reverse.
-                if (positions.size() > 0) {
-                    RandomAccessFile raf = null;
-                    scanInfo.reset();
-                    try {
-                        raf = new RandomAccessFile(dataFile, "r");
-                        ChecksumDataInput craf = new ChecksumDataInput(raf);
-                        for (int i = positions.size() - 1; i >= 0; i--) {
-                            long position = positions.peek(i);
-                            raf.seek(position);
-                            readSample(craf, scanInfo);
-                            cb.sample(seriesId, Utils.getTimestamp(shardId, scanInfo.getOffset()), scanInfo.getData());
-                        }
-                        count += positions.size();
-                    } finally {
-                        Utils.closeQuietly(raf);
-                    }
+        return count;
+    }
+
+    /**
+     * Reverse query of the part of the data file before the given end position, which must have been written without
+     * trailers. The positions of records in the time range are gathered with a forward scan, and then the records are
+     * read in reverse.
+     */
+    private int queryLegacyReverse(ShardInput rin, long end, long fromOffset, long toOffset, int limit,
+            ScanInfo scanInfo, List<PendingWrite> rows, Overlay.Cursor ovl, RawQueryCallback cb) throws IOException {
+        PositionQueue positions = new PositionQueue(limit);
+        scanInfo.reset();
+
+        // Gather the positions of records in the time range. A block is a single record that holds many rows, so each
+        // record is only pushed once. Every pushed record holds at least one row in the range, so the last "limit"
+        // records are enough to satisfy the limit.
+        ShardInput in = null;
+        try {
+            in = openInput(fromOffset);
+            long pushedPosition = -1;
+            while (true) {
+                if (in.position() >= end && !scanInfo.hasBlockRows()) {
+                    break;
+                }
+                readLiveSample(in, scanInfo);
+
+                if (scanInfo.isEof() || scanInfo.getRecordPosition() >= end) {
+                    break;
+                }
+                long recordPosition = scanInfo.getRecordPosition();
+
+                if (scanInfo.getOffset() < fromOffset)
+                    continue; // Ignore. Before time range
+                else if (scanInfo.getOffset() >= toOffset) {
+                    break; // After time range. Done.
+                }
+                if (recordPosition != pushedPosition) {
+                    positions.push(recordPosition);
+                    pushedPosition = recordPosition;
                 }
             }
         } finally {
-            updateLastAccess();
+            Utils.closeQuietly(in);
+        }
+
+        // Use the found positions to retrieve the records in reverse.
+        int count = 0;
+        for (int i = positions.size() - 1; i >= 0 && count < limit; i--) {
+            readRecord(rin, positions.peek(i), scanInfo, fromOffset, toOffset, rows);
+            count += sendReverse(rows, limit - count, scanInfo.getData(), ovl, cb);
         }
+        return count;
+    }
 
+    /**
+     * Reads the rows of the record at the given position that are in the time range into the given list.
+     *
+     * @return true if the record has a row before the time range.
+     */
+    private boolean readRecord(ShardInput in, long position, ScanInfo scanInfo, long fromOffset, long toOffset,
+            List<PendingWrite> rows) throws IOException {
+        in.seek(position);
+        scanInfo.reset();
+        rows.clear();
+
+        boolean before = false;
+        do {
+            readSample(in, scanInfo);
+            long offset = scanInfo.getOffset();
+            if (offset < fromOffset) {
+                before = true;
+            } else if (offset < toOffset && !tombstones.isDeleted(offset, position)) {
+                ByteArrayBuilder b = scanInfo.getData();
+                rows.add(new PendingWrite(offset, b.getBuffer(), b.getReadOffset(), b.getAvailable()));
+            }
+        } while (scanInfo.hasBlockRows());
+        return before;
+    }
+
+    /**
+     * Sends the given rows to the callback in reverse order, merged with the overlay rows after them.
+     *
+     * @param ovl the overlay rows of the query, or null if there are none.
+     * @return the number of rows sent.
+     */
+    private int sendReverse(List<PendingWrite> rows, int limit, ByteArrayBuilder b, Overlay.Cursor ovl,
+            RawQueryCallback cb) {
+        int count = 0;
+        for (int i = rows.size() - 1; i >= 0 && count < limit; i--) {
+            PendingWrite p = rows.get(i);
+            if (ovl != null) {
+                count += ovl.sendUntil(p.getOffset(), limit - count, cb);
+                if (count >= limit) {
+                    break;
+                }
+                if (overlay.contains(p.getOffset())) {
+                    continue;
+                }
+            }
+            b.clear();
+            b.put(p.getData());
+            cb.sample(seriesId, Utils.getTimestamp(shardId, p.getOffset()), b);
+            count++;
+        }
         return count;
     }
 
@@ -330,24 +846,74 @@ class DataShard {
             return Utils.getTimestamp(shardId, cache.getList().get(0).getOffset());
         }
 
-        ChecksumInputStream in = null;
         try {
             if (closed) {
                 throw new IOException("DataShard already closed");
             }
 
-            ScanInfo scanInfo = new ScanInfo();
-            in = new ChecksumInputStream(dataFile);
+            long offset = findFirstLive();
+            openOverlay();
+            if (!overlay.isEmpty() && (offset == -1 || overlay.getFirstOffset() < offset)) {
+                offset = overlay.getFirstOffset();
+            }
+            if (offset == -1) {
+                if (cache == null || cache.isEmpty()) {
+                    return Long.MAX_VALUE;
+                }
+                return Utils.getTimestamp(shardId, cache.getList().get(0).getOffset());
+            }
+            return Utils.getTimestamp(shardId, offset);
+        } finally {
+            updateLastAccess();
+        }
+    }
 
-            readSample(in, scanInfo);
+    /**
+     * @return the time at which the flush process should next look at the shard.
+     */
+    long getFlushDue() {
+        long due = lastAccess + db.shardStalePeriod;
+        if (cache != null && !cache.isEmpty()) {
+            due = cache.exceeds() ? 0 : Math.min(due, cache.getExpiryTime());
+        }
+        return due;
+    }
+
+    boolean hasCachedRows() {
+        return cache != null && !cache.isEmpty();
+    }
+
+    /**
+     * @return true if neither the data file, the overlay, nor the cache hold any rows that are not deleted.
+     */
+    boolean isEmpty() throws IOException {
+        if (cache != null && !cache.isEmpty()) {
+            return false;
+        }
+        if (!dataFile.exists()) {
+            return true;
+        }
+        openOverlay();
+        return overlay.isEmpty() && findFirstLive() == -1;
+    }
 
-            if (scanInfo.isEndOfShard()) {
-                return Long.MAX_VALUE;
+    /**
+     * @return the offset of the first row in the data file that is not deleted, or -1 if there is none.
+     */
+    private long findFirstLive() throws IOException {
+        openTombstones();
+        ShardInput in = null;
+        try {
+            ScanInfo scanInfo = new ScanInfo();
+            // Skip over any range that was deleted from the start of the shard.
+            in = openInput(tombstones.getPrefixEnd() + 1);
+            readLiveSample(in, scanInfo);
+            if (scanInfo.isEof()) {
+                return -1;
             }
-            return Utils.getTimestamp(shardId, scanInfo.getOffset());
+            return scanInfo.getOffset();
         } finally {
             Utils.closeQuietly(in);
-            updateLastAccess();
         }
     }
 
@@ -361,60 +927,122 @@ class DataShard {
     }
 
     private void readSample(ChecksumInput in, ScanInfo scanInfo) throws IOException {
-        _readSample(in, scanInfo);
-        if (!scanInfo.isEof() && !in.checkSum()) {
+        if (!_readSample(in, scanInfo)) {
             throw new IOException("Corruption detected in " + dataFile.getPath());
         }
     }
 
-    long deleteSamples(long fromTs, long toTs) throws IOException {
-        if (!dataFile.exists()) {
-            return 0;
+    /**
+     * Reads the next sample that is not deleted by a tombstone, keeping track of the record positions in the scan
+     * info. The tombstones must be loaded.
+     */
+    private void readLiveSample(ShardInput in, ScanInfo scanInfo) throws IOException {
+        while (true) {
+            long position = in.position();
+            readSample(in, scanInfo);
+            if (scanInfo.isEof()) {
+                return;
+            }
+            if (scanInfo.isRecordStart()) {
+                scanInfo.setRecordPosition(position);
+            }
+            if (!tombstones.isDeleted(scanInfo.getOffset(), scanInfo.getRecordPosition())) {
+                return;
+            }
         }
+    }
 
-        // Close the data output stream
-        closeData();
+    /**
+     * Deletes the rows with offsets in the given range (inclusive). Cached rows are removed directly, and rows in the
+     * data file are covered with a tombstone, which is only applied to the file the next time it is rewritten.
+     *
+     * @return the number of rows deleted.
+     */
+    long deleteSamples(long fromOffset, long toOffset) throws IOException {
+        long deleteCount = deleteSamplesImpl(fromOffset, toOffset);
+        if (deleteCount > 0 && summary != null) {
+            if (fromOffset <= Utils.getSampleOffset(summary.getMinTs())
+                    || toOffset >= Utils.getSampleOffset(summary.getMaxTs())) {
+                // The bounds may have changed.
+                seriesSummary.set(summary, readSummary());
+            } else {
+                seriesSummary.subtract(summary, deleteCount);
+            }
+        }
 
-        // Rewrite the file.
-        File tempFile = getTempFile();
-        ChecksumOutputStream tempOut = new ChecksumOutputStream(new FileOutputStream(tempFile, false));
+        if (tombstones.size() > Tombstones.MAX_SIZE) {
+            // Too many to check efficiently. Apply them now.
+            compact();
+        }
+        return deleteCount;
+    }
 
-        ChecksumInputStream in = null;
-        ScanInfo scanInfo = new ScanInfo();
+    private long deleteSamplesImpl(long fromOffset, long toOffset) throws IOException {
         long deleteCount = 0;
-        try {
-            in = new ChecksumInputStream(dataFile);
-            ByteArrayBuilder b = scanInfo.getData();
+        if (cache != null) {
+            int removed = cache.remove(fromOffset, toOffset);
+            db.queueInfo.remove(removed);
+            if (cache.isEmpty()) {
+                releaseWalSegment();
+            }
+            deleteCount += removed;
+        }
 
-            readSample(in, scanInfo);
+        if (!dataFile.exists()) {
+            return deleteCount;
+        }
 
-            while (!scanInfo.isEof()) {
-                long offset = scanInfo.getOffset();
-                if (offset < fromTs || offset > toTs) {
-                    _writeSample(tempOut, scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(), b.getAvailable());
-                } else {
-                    deleteCount++;
+        openTombstones();
+        openOverlay();
+        long fileCount = 0;
+        // Rows replaced by overlay rows are counted with the overlay, but still need the tombstone.
+        long replacedCount = 0;
+        ShardInput in = null;
+        try {
+            ScanInfo scanInfo = new ScanInfo();
+            in = openInput(fromOffset);
+            while (true) {
+                readLiveSample(in, scanInfo);
+                if (scanInfo.isEof() || scanInfo.getOffset() > toOffset) {
+                    break;
+                }
+                if (scanInfo.getOffset() >= fromOffset) {
+                    if (overlay.contains(scanInfo.getOffset())) {
+                        replacedCount++;
+                    } else {
+                        fileCount++;
+                    }
                 }
-                readSample(in, scanInfo);
             }
         } finally {
             Utils.closeQuietly(in);
-            Utils.closeQuietly(tempOut);
         }
 
-        // Delete the old file and copy the temp to replace it.
-        try {
-            Utils.deleteWithRetry(dataFile);
-        } finally {
-            Utils.renameWithRetry(tempFile, dataFile);
+        long before = overlay.length();
+        deleteCount += overlay.remove(fromOffset, toOffset);
+        db.databaseSize.addAndGet(overlay.length() - before);
+
+        if (fileCount + replacedCount > 0) {
+            // If nothing before the range is left, delete from the start of the shard instead. This lets successive
+            // deletes of the oldest data collapse into a single tombstone that later scans can skip with the index.
+            if (findFirstLive() >= fromOffset) {
+                fromOffset = 0;
+            }
+            before = tombstones.length();
+            tombstones.add(fromOffset, toOffset, dataOut == null ? dataFile.length() : dataOut.position());
+            db.databaseSize.addAndGet(tombstones.length() - before);
+            deleteCount += fileCount;
         }
+
         return deleteCount;
     }
 
     /**
-     * The list of backdates must be in chronological order.
+     * The list of backdates must be in chronological order. Of backdates with the same time, the last one is written.
+     * The backdates are appended to the overlay, which is merged into the data file once it is large enough.
      */
     void insertSamples(List<Backdate> backdates) throws IOException {
+        backdates = getLatest(backdates);
         if (!dataFile.exists()) {
             // This could happen if the shard was purged while the backdates were waiting to get written.
             for (Backdate backdate : backdates) {
@@ -422,17 +1050,190 @@ class DataShard {
                         backdate.getData(), 0, backdate.getData().length);
             }
             db.flushCount.addAndGet(backdates.size());
-            dataOut.flush();
+            flushData();
+            return;
+        }
+
+        if (db.overlayMergeSize > 0) {
+            openOverlay();
+            summarizeInserts(backdates);
+            long before = overlay.length();
+            overlay.add(backdates);
+            db.databaseSize.addAndGet(overlay.length() - before);
+
+            // The merge rewrites the data file, so it is put off until the overlay is large enough that the rewrite
+            // costs I/O in proportion to the backdates it merges.
+            if (overlay.length() <= Math.min(db.overlayMergeSize, dataFile.length())) {
+                return;
+            }
+            backdates = Collections.emptyList();
+        }
+
+        rewrite(backdates);
+    }
+
+    /**
+     * Writes rows directly to the shard's files, bypassing the queue and the backdate handling. The rows must be in
+     * chronological order. A shard without a data file is written in a single pass as blocks. Otherwise the rows are
+     * merged in with a single rewrite, in which they replace rows with the same time.
+     */
+    void load(List<Backdate> rows) throws IOException {
+        if (closed) {
+            throw new IOException("DataShard already closed");
+        }
+        if (rows.isEmpty()) {
             return;
         }
+        rows = getLatest(rows);
+
+        try {
+            // Queued rows are written first, so that the loaded rows are merged with them.
+            writeCache();
+            ensureLatestTime();
+
+            if (!dataFile.exists()) {
+                openData();
+                BlockEncoder block = new BlockEncoder();
+                for (Backdate row : rows) {
+                    addToBlock(dataOut, block, row.getOffset(), row.getData(), 0, row.getData().length);
+                    summarize(Utils.getTimestamp(shardId, row.getOffset()));
+                }
+                writeBlock(dataOut, block);
+                flushData();
+            } else {
+                rewrite(rows);
+            }
+
+            long lastTs = Utils.getTimestamp(shardId, rows.get(rows.size() - 1).getOffset());
+            if (lastTs > latestTime) {
+                openMeta();
+                latestTime = lastTs;
+                metaBuf.putLong(latestTime);
+                metaBuf.flip();
+            }
+            db.flushCount.addAndGet(rows.size());
+            closeFiles();
+        } finally {
+            updateLastAccess();
+        }
+    }
+
+    /**
+     * @return the given rows without those that are followed by a row with the same time.
+     */
+    private static List<Backdate> getLatest(List<Backdate> rows) {
+        List<Backdate> latest = null;
+        for (int i = 0; i < rows.size(); i++) {
+            if (i + 1 < rows.size() && rows.get(i).getOffset() == rows.get(i + 1).getOffset()) {
+                if (latest == null) {
+                    latest = new ArrayList<>(rows.subList(0, i));
+                }
+            } else if (latest != null) {
+                latest.add(rows.get(i));
+            }
+        }
+        return latest == null ? rows : latest;
+    }
+
+    /**
+     * Adds the backdates that don't replace a row in the data file or the overlay to the shard's summary. Must be
+     * called before the backdates are added to the overlay. Only the parts of the data file around the backdates are
+     * read.
+     */
+    private void summarizeInserts(List<Backdate> backdates) throws IOException {
+        if (summary == null) {
+            return;
+        }
+
+        flushPendingAppends();
+        openTombstones();
+        ShardInput in = null;
+        try {
+            ScanInfo scanInfo = new ScanInfo();
+            boolean started = false;
+            long last = -1;
+            for (Backdate backdate : backdates) {
+                long offset = backdate.getOffset();
+                if (offset == last || overlay.contains(offset)) {
+                    continue;
+                }
+                last = offset;
+
+                if (!scanInfo.isEof() && (!started || scanInfo.getOffset() < offset)) {
+                    // Skip ahead with the index if the row is beyond the current record.
+                    long position;
+                    synchronized (index) {
+                        openIndex();
+                        position = index.seek(offset);
+                    }
+                    if (in == null) {
+                        in = openInput();
+                    }
+                    if (position > in.position()) {
+                        in.seek(position);
+                        scanInfo.reset();
+                    }
+                    started = true;
+                    do {
+                        readLiveSample(in, scanInfo);
+                    } while (!scanInfo.isEof() && scanInfo.getOffset() < offset);
+                }
+
+                if (scanInfo.isEof() || scanInfo.getOffset() != offset) {
+                    summarize(Utils.getTimestamp(shardId, offset));
+                }
+            }
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Rewrites the data file with all of its rows packed into blocks, applying any tombstones and merging the overlay.
+     */
+    void compact() throws IOException {
+        if (!dataFile.exists()) {
+            db.databaseSize.addAndGet(-tombstones.length() - overlay.length());
+            tombstones.delete();
+            overlay.delete();
+            return;
+        }
+
+        rewrite(Collections.<Backdate>emptyList());
+        appendedRows = 0;
+    }
 
+    /**
+     * Rewrites the data file with all of its rows packed into blocks, merged with the overlay and the given backdates,
+     * which must be in chronological order. Tombstones are applied.
+     */
+    private void rewrite(List<Backdate> backdates) throws IOException {
         // Close the data output stream
         closeData();
 
+        // A backdate replaces an overlay row with the same offset, and both replace a row in the file.
+        openOverlay();
+        if (!overlay.isEmpty()) {
+            TreeMap<Long, Backdate> merged = new TreeMap<>();
+            for (Backdate backdate : overlay.getBackdates(seriesId, shardId)) {
+                merged.put(backdate.getOffset(), backdate);
+            }
+            for (Backdate backdate : backdates) {
+                merged.put(backdate.getOffset(), backdate);
+            }
+            backdates = new ArrayList<>(merged.values());
+        }
+
         // Rewrite the file.
+        long before = getFilesLength();
+        resetIndex();
         File tempFile = getTempFile();
         ChecksumOutputStream tempOut = new ChecksumOutputStream(new FileOutputStream(tempFile, false));
+        BlockEncoder block = new BlockEncoder();
+        ShardSummary rewritten = new ShardSummary();
 
+        // Existing tombstones are applied by the rewrite.
+        openTombstones();
         ChecksumInputStream in = null;
         ScanInfo scanInfo = new ScanInfo();
         try {
@@ -440,9 +1241,9 @@ class DataShard {
             ByteArrayBuilder b = scanInfo.getData();
 
             Iterator<Backdate> iter = backdates.iterator();
-            Backdate next = iter.next();
+            Backdate next = iter.hasNext() ? iter.next() : null;
 
-            readSample(in, scanInfo);
+            readLiveSample(in, scanInfo);
 
             while (true) {
                 if (scanInfo.isEof() && next == null) // All done.
@@ -450,13 +1251,16 @@ class DataShard {
                     break;
                 }
 
-                if (next == null || scanInfo.getOffset() < next.getOffset()) {
+                if (next == null || (!scanInfo.isEof() && scanInfo.getOffset() < next.getOffset())) {
                     // No more inserts, or the read sample is before the next insert. Write the current sample.
-                    _writeSample(tempOut, scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(), b.getAvailable());
-                    readSample(in, scanInfo);
+                    addToBlock(tempOut, block, scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(),
+                            b.getAvailable());
+                    rewritten.add(Utils.getTimestamp(shardId, scanInfo.getOffset()));
+                    readLiveSample(in, scanInfo);
                 } else if (scanInfo.isEof() || scanInfo.getOffset() > next.getOffset()) {
                     // No more samples, or the next is before the current. Write the next.
-                    _writeSample(tempOut, next.getOffset(), next.getData(), 0, next.getData().length);
+                    addToBlock(tempOut, block, next.getOffset(), next.getData(), 0, next.getData().length);
+                    rewritten.add(Utils.getTimestamp(shardId, next.getOffset()));
                     if (iter.hasNext()) {
                         next = iter.next();
                     } else {
@@ -464,28 +1268,79 @@ class DataShard {
                     }
                 } else if (scanInfo.getOffset() == next.getOffset()) {
                     // The sample and the next have the same timestamp. Overwrite with the next.
-                    _writeSample(tempOut, next.getOffset(), next.getData(), 0, next.getData().length);
+                    addToBlock(tempOut, block, next.getOffset(), next.getData(), 0, next.getData().length);
+                    rewritten.add(Utils.getTimestamp(shardId, next.getOffset()));
                     if (iter.hasNext()) {
                         next = iter.next();
                     } else {
                         next = null;
                     }
-                    readSample(in, scanInfo);
+                    readLiveSample(in, scanInfo);
                 } else {
                     throw new RuntimeException("Unhandled condition");
                 }
             }
+            writeBlock(tempOut, block);
         } finally {
             Utils.closeQuietly(in);
             Utils.closeQuietly(tempOut);
         }
 
+        replaceData(tempFile);
+        db.databaseSize.addAndGet(getFilesLength() - before);
+        setSummary(rewritten);
+    }
+
+    private void addToBlock(ChecksumOutputStream out, BlockEncoder block, long offset, byte[] data, int off,
+            int len) throws IOException {
+        if (!block.hasRoom(len)) {
+            writeBlock(out, block);
+        }
+        block.add(offset, data, off, len);
+    }
+
+    private void writeBlock(ChecksumOutputStream out, BlockEncoder block) throws IOException {
+        if (!block.isEmpty()) {
+            index.add(block.getFirstOffset(), out.position());
+            block.write(out);
+        }
+    }
+
+    /**
+     * Prepares the index to be rebuilt along with a rewrite of the data file.
+     */
+    private void resetIndex() throws IOException {
+        // Delete the index file first, so that a failure during the rewrite can't leave an index that points into the
+        // wrong file.
+        indexLoaded = false;
+        index.delete();
+    }
+
+    private void replaceData(File tempFile) throws IOException {
+        if (db.mappedFiles != null) {
+            db.mappedFiles.invalidate(dataFile);
+        }
+
+        // The tombstones have been applied, and their positions won't match the new file. They are deleted first so
+        // that if the temp file is recovered by the corruption scanner it isn't filtered with them.
+        tombstones.delete();
+        tombstonesLoaded = true;
+
         // Delete the old file and copy the temp to replace it.
         try {
             Utils.deleteWithRetry(dataFile);
         } finally {
             Utils.renameWithRetry(tempFile, dataFile);
         }
+
+        // The overlay has been merged. Unlike the tombstones it is only deleted once the new file is in place, since
+        // merging it again into a recovered file does no harm.
+        overlay.delete();
+        overlayLoaded = true;
+
+        // The index now matches the data file.
+        index.persist();
+        indexLoaded = true;
     }
 
     void close() {
@@ -499,6 +1354,7 @@ class DataShard {
             }
 
             closeFiles();
+            db.schedule.remove(this);
 
             try {
                 // Delete the temp file if it exists.
@@ -506,9 +1362,28 @@ class DataShard {
             } catch (IOException e) {
                 // Ignore
             }
+
+            if (summary != null && summary.isEmpty() && !dataFile.exists()) {
+                // Nothing was ever written, e.g. the shard was only opened by a query.
+                seriesSummary.remove(shardId);
+            }
+            seriesSummary.closed();
         }
     }
 
+    /**
+     * Closes the shard without writing its queued rows, because the shard is being purged. Writing them could
+     * otherwise create the data file of a shard that is being deleted.
+     */
+    void discard() {
+        if (cache != null && !cache.isEmpty()) {
+            db.queueInfo.remove(cache.getList().size());
+            cache.clear();
+            releaseWalSegment();
+        }
+        close();
+    }
+
     void flush(long runtime, boolean force) throws IOException {
         if (cache != null) {
             if ((force && !cache.isEmpty()) || cache.expired(runtime) || cache.exceeds()) {
@@ -524,20 +1399,43 @@ class DataShard {
         }
 
         if (lastAccess < runtime - db.shardStalePeriod && (cache == null || cache.isEmpty())) {
+            // Rows that were appended one at a time to a shard that is no longer current are packed into blocks
+            // before the shard is closed. The shard is unlikely to be appended to again. Deleted rows are removed at
+            // the same time.
+            if ((db.compressStaleShards && appendedRows > 0 && shardId < Utils.getShardId(runtime))
+                    || hasTombstones()) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.warn("Failed to compact series " + seriesId + ", shard " + shardId, e);
+                }
+            }
             close();
         }
     }
 
     private void writeCache() throws IOException {
         if (cache != null && !cache.isEmpty()) {
+            openData();
+            openMeta();
+
+            // The cached rows are sorted, so they are written as blocks.
+            BlockEncoder block = new BlockEncoder();
             for (PendingWrite p : cache.getList()) {
-                writeImmediate(Utils.getTimestamp(shardId, p.getOffset()), p.getOffset(), p.getData(), 0,
-                        p.getData().length);
+                byte[] data = p.getData();
+                addToBlock(dataOut, block, p.getOffset(), data, 0, data.length);
             }
-            dataOut.flush();
-            db.queueInfo.queueSize.addAndGet(-cache.getList().size());
+            writeBlock(dataOut, block);
+
+            List<PendingWrite> list = cache.getList();
+            latestTime = Utils.getTimestamp(shardId, list.get(list.size() - 1).getOffset());
+            metaBuf.putLong(latestTime);
+            metaBuf.flip();
+            flushData();
+            db.queueInfo.remove(cache.getList().size());
             db.flushCount.addAndGet(cache.getList().size());
             cache.clear();
+            releaseWalSegment();
             closeFiles();
         }
     }
@@ -550,16 +1448,162 @@ class DataShard {
                     logger.error("Failed to create dataFile: {}", path);
                 }
             }
-            dataOut = new ChecksumOutputStream(new FileOutputStream(dataFile, dataFile.exists()));
+            openIndex();
+            if (db.mappedFiles != null) {
+                db.mappedFiles.invalidate(dataFile);
+            }
+            FileOutputStream out = new FileOutputStream(dataFile, dataFile.exists());
+            dataChannel = out.getChannel();
+            dataOut = new ChecksumOutputStream(out, dataFile.length());
+            accountedLength = dataOut.position();
             db.openFiles.incrementAndGet();
         }
     }
 
+    private void flushData() throws IOException {
+        dataOut.flush();
+        accountData();
+        db.databaseSize.addAndGet(index.persist());
+    }
+
+    /**
+     * Adds the data appended since the last call to the database size.
+     */
+    private void accountData() {
+        long position = dataOut.position();
+        db.databaseSize.addAndGet(position - accountedLength);
+        accountedLength = position;
+        if (summary != null) {
+            seriesSummary.setSize(summary, position);
+        }
+    }
+
+    /**
+     * @return the total length of the shard's files. Used to account for rewrites in the database size.
+     */
+    private long getFilesLength() {
+        return dataFile.length() + metaFile.length() + index.length() + tombstones.length() + overlay.length();
+    }
+
+    /**
+     * Opens an input on the data file, positioned at or before the first row with the given offset. Rows waiting
+     * for the group commit are flushed first so that the input sees them.
+     */
+    private ShardInput openInput(long fromOffset) throws IOException {
+        flushPendingAppends();
+        long position;
+        synchronized (index) {
+            openIndex();
+            position = index.seek(fromOffset);
+        }
+
+        ShardInput in = openInput();
+        if (position > 0) {
+            in.seek(position);
+        }
+        return in;
+    }
+
+    /**
+     * Opens an input on the data file for sequential reading. The data file is read through its memory mapping if
+     * mapped reads are enabled and the file is not open for appending.
+     */
+    private ShardInput openInput() throws IOException {
+        ShardInput in = openMapped();
+        if (in == null) {
+            in = new ChecksumInputStream(dataFile);
+        }
+        return in;
+    }
+
+    /**
+     * Opens an input on the data file that can seek in both directions.
+     */
+    private ShardInput openRandomInput() throws IOException {
+        ShardInput in = openMapped();
+        if (in == null) {
+            in = new ChecksumDataInput(new RandomAccessFile(dataFile, "r"));
+        }
+        return in;
+    }
+
+    private ShardInput openMapped() throws IOException {
+        if (db.mappedFiles == null || dataOut != null) {
+            return null;
+        }
+        return db.mappedFiles.open(dataFile);
+    }
+
+    /**
+     * Ensures that the index is loaded, rebuilding it if required. Callers that only hold the read lock must
+     * synchronize on the index.
+     */
+    private void openIndex() throws IOException {
+        if (!indexLoaded) {
+            if (!index.load(dataFile.length())) {
+                logger.debug("Rebuilding index for series {}, shard {}", seriesId, shardId);
+                long before = index.length();
+                index.rebuild(dataFile);
+                db.databaseSize.addAndGet(index.length() - before);
+            }
+            indexLoaded = true;
+        }
+    }
+
+    /**
+     * Ensures that the tombstones are loaded. Safe to call with only the read lock.
+     */
+    private void openTombstones() throws IOException {
+        synchronized (tombstones) {
+            if (!tombstonesLoaded) {
+                tombstones.load();
+                tombstonesLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * Ensures that the overlay is loaded. Safe to call with only the read lock.
+     */
+    private void openOverlay() throws IOException {
+        synchronized (overlay) {
+            if (!overlayLoaded) {
+                long before = overlay.length();
+                overlay.load();
+                db.databaseSize.addAndGet(overlay.length() - before);
+                overlayLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * @return a cursor over the overlay rows in the time range of a query, or null if the overlay is empty.
+     */
+    private Overlay.Cursor openOverlayCursor(long fromOffset, long toOffset, boolean reverse) throws IOException {
+        openOverlay();
+        if (overlay.isEmpty()) {
+            return null;
+        }
+        return overlay.cursor(seriesId, shardId, fromOffset, toOffset, reverse);
+    }
+
+    private boolean hasTombstones() {
+        try {
+            openTombstones();
+        } catch (IOException e) {
+            logger.warn("Failed to load tombstones of series " + seriesId + ", shard " + shardId, e);
+            return false;
+        }
+        return !tombstones.isEmpty();
+    }
+
     private void openMeta() throws IOException {
         if (metaBuf == null) {
+            long before = metaFile.length();
             RandomAccessFile raf = new RandomAccessFile(metaFile, "rw");
             metaBuf = raf.getChannel().map(MapMode.READ_WRITE, 0, 8);
             Utils.closeQuietly(raf);
+            db.databaseSize.addAndGet(8 - before);
             db.openFiles.incrementAndGet();
         }
     }
@@ -571,17 +1615,28 @@ class DataShard {
 
     private void closeData() {
         if (dataOut != null) {
+            accountData();
             Utils.closeQuietly(dataOut);
             dataOut = null;
+            dataChannel = null;
+            pendingAppends = false;
             db.openFiles.decrementAndGet();
+
+            try {
+                db.databaseSize.addAndGet(index.persist());
+            } catch (IOException e) {
+                logger.warn("Failed to write index of series " + seriesId + ", shard " + shardId, e);
+            }
         }
     }
 
     private void closeMeta() {
         if (metaBuf != null) {
-            // The file is actually closed when the buffer is GC'ed.
+            // The file is closed once the mapping is released. If that can't be done explicitly on this JVM, it is
+            // left to the garbage collector.
+            Utils.unmap(metaBuf);
             metaBuf = null;
-            metaClosures.incrementAndGet();
+            db.openFiles.decrementAndGet();
         }
     }
 
@@ -598,17 +1653,28 @@ class DataShard {
     }
 
     private void recreateMetaFile() throws IOException {
-        final AtomicLong lastTs = new AtomicLong();
-        query(0, Long.MAX_VALUE, Integer.MAX_VALUE, new RawQueryCallback() {
-            @Override
-            public void sample(String seriesId, long ts, ByteArrayBuilder b) {
-                lastTs.set(ts);
+        // The latest time is that of the last row in the data file, even if it is deleted, since appends must come
+        // after it in the file. So the file is scanned without the tombstones or the overlay.
+        long lastTs = 0;
+        ChecksumInputStream in = null;
+        try {
+            in = new ChecksumInputStream(dataFile);
+            ScanInfo scanInfo = new ScanInfo();
+            while (true) {
+                readSample(in, scanInfo);
+                if (scanInfo.isEof()) {
+                    break;
+                }
+                lastTs = Utils.getTimestamp(shardId, scanInfo.getOffset());
             }
-        });
+        } finally {
+            Utils.closeQuietly(in);
+        }
 
         ByteArrayBuilder b = new ByteArrayBuilder(8);
-        b.putLong(lastTs.get());
+        b.putLong(lastTs);
 
+        long before = metaFile.length();
         FileOutputStream out = null;
         try {
             out = new FileOutputStream(metaFile);
@@ -616,16 +1682,18 @@ class DataShard {
         } finally {
             Utils.closeQuietly(out);
         }
+        db.databaseSize.addAndGet(8 - before);
     }
 
     private void ensureLatestTime() throws IOException {
         // Get the latest time.
         if (latestTime == -Long.MAX_VALUE && metaFile.exists()) {
+            // The file is read directly rather than mapped, since this may be done with only the read lock.
+            RandomAccessFile raf = new RandomAccessFile(metaFile, "r");
             try {
-                openMeta();
-                latestTime = metaBuf.getLong();
+                latestTime = raf.length() < 8 ? 0 : raf.readLong();
             } finally {
-                closeMeta();
+                Utils.closeQuietly(raf);
             }
         }
     }
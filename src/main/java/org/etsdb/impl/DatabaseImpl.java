@@ -1,6 +1,5 @@
 package org.etsdb.impl;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicInteger;
 import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicLong;
@@ -13,6 +12,14 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -24,21 +31,43 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class DatabaseImpl<T> implements Database<T> {
 
-    public static final int VERSION = 2;
+    public static final int VERSION = 5;
     static final Logger logger = LoggerFactory.getLogger(DatabaseImpl.class.getName());
     final Serializer<T> serializer;
     int shardStalePeriod;
+    boolean compressStaleShards;
+    long overlayMergeSize;
     // Open shards
     int maxOpenFiles;
     final NotifyAtomicInteger openShards = new NotifyAtomicInteger();
     final NotifyAtomicInteger openFiles = new NotifyAtomicInteger();
     // Write queue
     WriteQueueInfo queueInfo;
+    // Group commit
+    GroupCommitter committer;
+    // Write-ahead log
+    WriteAheadLog wal;
+    // Flush schedule
+    final ShardSchedule schedule = new ShardSchedule();
+    // Flush workers
+    private int flushThreads;
+    private ExecutorService flushExecutor;
+    private volatile int[] lastFlushWorkerMillis = new int[0];
+    // Mapped reads
+    MappedFileCache mappedFiles;
+    // Retention
+    ShardRetention retention;
+    // Series
+    SeriesCatalog catalog;
     final NotifyAtomicLong flushCount = new NotifyAtomicLong();
     final AtomicLong forcedClose = new AtomicLong();
     final NotifyAtomicLong flushForced = new NotifyAtomicLong();
     final NotifyAtomicLong flushExpired = new NotifyAtomicLong();
     final NotifyAtomicLong flushLimit = new NotifyAtomicLong();
+    // Size
+    final AtomicLong databaseSize = new AtomicLong();
+    private volatile boolean sizeKnown;
+    private final AtomicBoolean sizeChecking = new AtomicBoolean();
     // Configuration
     private File baseDir;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
@@ -98,19 +127,34 @@ public class DatabaseImpl<T> implements Database<T> {
 
         logger.info("Database started at {}", baseDir.getAbsolutePath());
 
+        // Versions before 3 can't read block records, versions before 4 can't read trailed records, versions before 5
+        // ignore overlay files, and this version can't read whatever comes after it.
+        int version = getProperties().getInt("version", VERSION);
+        if (version > VERSION) {
+            throw new EtsdbException("Database version " + version + " is newer than the supported version " + VERSION);
+        }
+
         shardStalePeriod = config.getShardStalePeriod();
+        schedule.clear();
+        compressStaleShards = config.isCompressStaleShards();
+        overlayMergeSize = config.getOverlayMergeSize();
         if (config.isIgnoreBackdates()) {
             backdates = null;
         } else {
-            backdates = new Backdates(this, config.getBackdateStartDelay());
+            backdates = new Backdates(this, config.getBackdateStartDelay(), config.getBackdatePosters(),
+                    config.getBackdateMemoryLimit(), new BackdateLog(baseDir, databaseSize));
         }
 
         queueInfo = config.isUseWriteQueue() ? new WriteQueueInfo(config) : null;
+        mappedFiles = config.isMappedReads() ? new MappedFileCache(config.getMaxMappedFiles()) : null;
+        retention = new ShardRetention(baseDir);
+        catalog = new SeriesCatalog(baseDir);
 
         janitor = new Janitor(this);
         janitor.lock();
         janitor.setFileLockCheckInterval(config.getFileLockCheckInterval());
         janitor.setFlushInterval(config.getFlushInterval());
+        janitor.setSizeCheckInterval(config.getSizeCheckInterval());
 
         if (config.isDeleteEmptyDirs()) {
             // Clean up the file structure.
@@ -119,7 +163,28 @@ public class DatabaseImpl<T> implements Database<T> {
             logger.info("Empty dir delete took " + (System.currentTimeMillis() - start) + "ms");
         }
 
+        try {
+            catalog.load();
+        } catch (IOException e) {
+            throw new EtsdbException(e);
+        }
+
         DBProperties props = getProperties();
+        if (props.getInt("version", 0) != VERSION) {
+            props.setInt("version", VERSION);
+        }
+
+        // The size saved at the last clean close is still valid.
+        databaseSize.set(0);
+        sizeKnown = false;
+        if (props.getBoolean("clean", false)) {
+            long size = props.getLong("size", -1);
+            if (size >= 0) {
+                databaseSize.set(size);
+                sizeKnown = true;
+            }
+        }
+
         if (!props.getBoolean("clean", false)) {
             if (config.isRunCorruptionScan()) {
                 try {
@@ -152,6 +217,51 @@ public class DatabaseImpl<T> implements Database<T> {
 
         maxOpenFiles = config.getMaxOpenFiles();
 
+        flushThreads = config.getFlushThreads();
+        if (flushThreads > 1) {
+            flushExecutor = Executors.newFixedThreadPool(flushThreads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ETSDB Flush " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            flushExecutor = null;
+        }
+
+        // The committer of a previous open is terminated. Nothing must be handed to it while the logs are replayed.
+        committer = null;
+        wal = null;
+        if (queueInfo != null && config.isWriteAheadLog()) {
+            WriteAheadLog log = new WriteAheadLog(baseDir, databaseSize);
+            try {
+                replay(log);
+            } catch (IOException e) {
+                throw new EtsdbException(e);
+            }
+            wal = log;
+        }
+
+        if (backdates != null) {
+            try {
+                backdates.replay();
+            } catch (IOException e) {
+                throw new EtsdbException(e);
+            }
+        }
+
+        if (config.getGroupCommitInterval() > 0 && (queueInfo == null || wal != null)) {
+            committer = new GroupCommitter(config.getGroupCommitInterval(), config.isForceOnCommit(), wal);
+        } else {
+            committer = null;
+        }
+        if (committer != null) {
+            committer.initiate();
+        }
         janitor.initiate();
     }
 
@@ -160,6 +270,67 @@ public class DatabaseImpl<T> implements Database<T> {
         return baseDir;
     }
 
+    /**
+     * Writes the rows in the given write-ahead log directly to the shards, so that the log can be discarded. The rows
+     * bypass the write queue, where they could be discarded when there are more of them than the queue holds, and the
+     * log is only deleted once all of them have been written and forced to disk.
+     */
+    private void replay(WriteAheadLog log) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // Rows are collected first so that the logged deletes can be applied to them.
+        final Map<String, TreeMap<Long, byte[]>> rows = new HashMap<>();
+        int records = log.replay(new WriteAheadLog.ReplayCallback() {
+            @Override
+            public void write(String seriesId, long ts, byte[] data) {
+                TreeMap<Long, byte[]> series = rows.get(seriesId);
+                if (series == null) {
+                    series = new TreeMap<>();
+                    rows.put(seriesId, series);
+                }
+                series.put(ts, data);
+            }
+
+            @Override
+            public void delete(String seriesId, long fromTs, long toTs) {
+                TreeMap<Long, byte[]> series = rows.get(seriesId);
+                if (series != null) {
+                    series.subMap(fromTs, true, toTs, true).clear();
+                }
+            }
+        });
+        if (records == 0) {
+            return;
+        }
+
+        for (Map.Entry<String, TreeMap<Long, byte[]>> series : rows.entrySet()) {
+            getSanitizedSeries(series.getKey()).replay(series.getValue());
+        }
+        log.roll();
+        logger.info("Write-ahead log replay of " + records + " records took "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Logs a delete in the write-ahead log, so that rows that were queued before it are not brought back by a
+     * replay.
+     */
+    private void logDelete(String seriesId, long fromTs, long toTs) throws IOException {
+        if (wal != null) {
+            wal.delete(sanitizeSeriesId(seriesId), fromTs, toTs);
+            commitLog();
+        }
+    }
+
+    /**
+     * Writes out the write-ahead log records of a write, unless that is left to the group commit.
+     */
+    private void commitLog() throws IOException {
+        if (wal != null && committer == null) {
+            wal.commit(false);
+        }
+    }
+
     private void lockConcurrent() {
         lock.readLock().lock();
     }
@@ -199,6 +370,10 @@ public class DatabaseImpl<T> implements Database<T> {
                 String dir = newDir.getParent();
                 logger.error("Failed to create directory: {}", dir);
             }
+            if (mappedFiles != null) {
+                mappedFiles.invalidateDir(oldDir);
+            }
+            retention.reset();
             try {
                 Utils.renameWithRetry(oldDir, newDir);
             } catch (IOException e) {
@@ -209,6 +384,16 @@ public class DatabaseImpl<T> implements Database<T> {
                 }
                 throw new EtsdbException(e);
             }
+
+            String fromId = catalog.getSeriesId(oldDir);
+            if (catalog.contains(fromId)) {
+                try {
+                    catalog.remove(fromId);
+                    catalog.add(toId);
+                } catch (IOException e) {
+                    throw new EtsdbException(e);
+                }
+            }
         } finally {
             unlockConcurrent();
         }
@@ -220,6 +405,11 @@ public class DatabaseImpl<T> implements Database<T> {
 
     @Override
     public void write(String seriesId, long ts, T value) {
+        awaitQueueRoom();
+        writeImpl(seriesId, ts, value);
+    }
+
+    private void writeImpl(String seriesId, long ts, T value) {
         lockConcurrent();
         try {
             writesPerSecond.hit();
@@ -229,6 +419,7 @@ public class DatabaseImpl<T> implements Database<T> {
                 // concurrent writes in a series.
                 Series<T> series = getSeries(seriesId);
                 series.write(ts, value);
+                commitLog();
             } catch (IOException e) {
                 throw new EtsdbException(e);
             }
@@ -237,6 +428,118 @@ public class DatabaseImpl<T> implements Database<T> {
         }
     }
 
+    @Override
+    public boolean tryWrite(String seriesId, long ts, T value) {
+        if (queueInfo != null && queueInfo.isFull()) {
+            requestFlush();
+            return false;
+        }
+        writeImpl(seriesId, ts, value);
+        return true;
+    }
+
+    @Override
+    public void writeBatch(final WriteBatch<T> batch) {
+        int size = batch.size();
+        if (size == 0) {
+            return;
+        }
+        awaitQueueRoom();
+
+        lockConcurrent();
+        try {
+            writesPerSecond.hit(size);
+            writeCount.addAndGet(size);
+
+            String[] ids = new String[size];
+            Integer[] order = sort(batch, ids);
+            int from = 0;
+            while (from < size) {
+                String seriesId = ids[order[from]];
+                int to = from + 1;
+                while (to < size && ids[order[to]].equals(seriesId)) {
+                    to++;
+                }
+
+                Series<T> series = getSeries(seriesId);
+                series.write(batch, order, from, to);
+                from = to;
+            }
+            commitLog();
+        } catch (IOException e) {
+            throw new EtsdbException(e);
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    /**
+     * Writes a batch of samples directly to the shard files, bypassing the write queue, the write-ahead log and the
+     * backdate handling. The samples of each shard are written in a single pass: a shard without rows is written as
+     * blocks, and a shard that has rows gets the samples merged in with a single rewrite, in which they replace rows
+     * with the same time.
+     * <p>
+     * Meant for bulk loading history, which would otherwise be turned into backdates. For efficiency, a batch should
+     * hold whole shards of samples. Batches of different series can be loaded in parallel.
+     */
+    public void load(WriteBatch<T> batch) {
+        int size = batch.size();
+        if (size == 0) {
+            return;
+        }
+
+        lockConcurrent();
+        try {
+            writesPerSecond.hit(size);
+            writeCount.addAndGet(size);
+
+            String[] ids = new String[size];
+            Integer[] order = sort(batch, ids);
+            int from = 0;
+            while (from < size) {
+                String seriesId = ids[order[from]];
+                int to = from + 1;
+                while (to < size && ids[order[to]].equals(seriesId)) {
+                    to++;
+                }
+
+                Series<T> series = getSeries(seriesId);
+                series.load(batch, order, from, to);
+                from = to;
+            }
+        } catch (IOException e) {
+            throw new EtsdbException(e);
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    /**
+     * Sorts the samples of a batch by series and time. The sort is stable, so samples with the same time stay in the
+     * order they were added.
+     *
+     * @param ids receives the sanitized series ids of the samples.
+     * @return the positions of the samples in sorted order.
+     */
+    private Integer[] sort(final WriteBatch<T> batch, final String[] ids) {
+        Integer[] order = new Integer[batch.size()];
+        for (int i = 0; i < order.length; i++) {
+            ids[i] = sanitizeSeriesId(batch.getSeriesId(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = ids[a].compareTo(ids[b]);
+                if (c == 0) {
+                    c = Utils.compareLong(batch.getTimestamp(a), batch.getTimestamp(b));
+                }
+                return c;
+            }
+        });
+        return order;
+    }
+
     @Override
     public void query(String seriesId, long fromTs, long toTs, final QueryCallback<T> cb) {
         query(seriesId, fromTs, toTs, Integer.MAX_VALUE, false, cb);
@@ -264,15 +567,7 @@ public class DatabaseImpl<T> implements Database<T> {
     public long count(String seriesId, long fromTs, long toTs) {
         lockConcurrent();
         try {
-            final AtomicLong count = new AtomicLong();
-            Series<T> series = getSeries(seriesId);
-            series.query(fromTs, toTs, Integer.MAX_VALUE, false, new RawQueryCallback() {
-                @Override
-                public void sample(String seriesId, long ts, ByteArrayBuilder b) {
-                    count.incrementAndGet();
-                }
-            });
-            return count.get();
+            return getSeries(seriesId).count(fromTs, toTs);
         } catch (IOException e) {
             throw new EtsdbException(e);
         } finally {
@@ -282,48 +577,70 @@ public class DatabaseImpl<T> implements Database<T> {
 
     @Override
     public List<String> getSeriesIds() {
-        lockConcurrent();
-        try {
-            List<String> ids = new ArrayList<>();
-
-            File[] base = baseDir.listFiles();
-            if (base != null) {
-                for (File sub : base) {
-                    if (sub.isDirectory()) {
-                        int subPos = sub.getPath().length() + 1;
-                        ids.addAll(list(sub, subPos));
-                    }
-                }
-            }
+        return catalog.getIds();
+    }
 
-            Collections.sort(ids);
-            return ids;
-        } finally {
-            unlockConcurrent();
+    /**
+     * @param prefix the start of the series ids to return
+     * @return the ids of the series that start with the given prefix, in sorted order.
+     */
+    public List<String> getSeriesIds(String prefix) {
+        return catalog.getIds(prefix);
+    }
+
+    /**
+     * @return the total size of the files in the database. This is a running total of the changes that the database
+     * made to its files, so it is cheap to call. The directory is only walked if the size is not yet known.
+     */
+    @Override
+    public long getDatabaseSize() {
+        if (!sizeKnown) {
+            checkSize();
         }
+        return databaseSize.get();
     }
 
-    private Set<String> list(File start, int subPos) {
-        Set<String> filesList = new HashSet<>();
-        File[] files = start.listFiles();
-        if (files != null) {
-            for (File f : files) {
-                if (f.isDirectory()) {
-                    filesList.addAll(list(f, subPos));
-                } else {
-                    String name = f.getName();
-                    if (name.endsWith(".data")) {
-                        filesList.add(f.getParent().substring(subPos));
-                    }
-                }
+    /**
+     * Walks the database directory and corrects the running size total with the result.
+     */
+    void checkSize() {
+        synchronized (databaseSize) {
+            long before = databaseSize.get();
+            long size = DirectoryUtils.getSize(baseDir).getSize();
+            // Changes made during the walk are kept. They may or may not have been seen by the walk, so the result is
+            // only as exact as the amount of concurrent activity allows.
+            long drift = size - before;
+            databaseSize.addAndGet(drift);
+            if (sizeKnown && drift != 0) {
+                logger.debug("Corrected database size by " + drift + " bytes");
             }
+            sizeKnown = true;
         }
-        return filesList;
     }
 
-    @Override
-    public long getDatabaseSize() {
-        return DirectoryUtils.getSize(baseDir).getSize();
+    /**
+     * Runs a size check in a background thread unless one is already running.
+     */
+    void checkSizeInBackground() {
+        if (!sizeChecking.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread("ETSDB Size Check") {
+            @Override
+            public void run() {
+                try {
+                    checkSize();
+                } catch (RuntimeException e) {
+                    logger.warn("Error during database size check", e);
+                } finally {
+                    sizeChecking.set(false);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
     }
 
     @Override
@@ -358,7 +675,9 @@ public class DatabaseImpl<T> implements Database<T> {
         lockConcurrent();
         try {
             Series<T> series = getSeries(seriesId);
-            return series.delete(fromTs, toTs);
+            long count = series.delete(fromTs, toTs);
+            logDelete(seriesId, fromTs, toTs);
+            return count;
         } catch (IOException e) {
             throw new EtsdbException(e);
         } finally {
@@ -372,6 +691,42 @@ public class DatabaseImpl<T> implements Database<T> {
         try {
             Series<T> series = getSeries(seriesId);
             series.purge(toTs);
+            logDelete(seriesId, Long.MIN_VALUE, toTs);
+        } catch (IOException e) {
+            throw new EtsdbException(e);
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    /**
+     * Deletes the oldest shard in the database from every series that has it. The shard files are simply deleted, so
+     * this is a cheap way to reclaim disk space.
+     *
+     * @return the number of bytes freed, or -1 if there are no shards left.
+     */
+    public long purgeOldestShard() {
+        lockConcurrent();
+        try {
+            Map.Entry<Long, Set<String>> oldest = retention.pollOldest();
+            if (oldest == null) {
+                return -1;
+            }
+
+            long toTs = Utils.getTimestamp(oldest.getKey() + 1, 0);
+            long freed = 0;
+            for (String seriesId : oldest.getValue()) {
+                Series<T> series = getSeries(seriesId);
+                freed += series.purge(toTs);
+                logDelete(seriesId, Long.MIN_VALUE, toTs);
+
+                // Only the oldest shard of each series is tracked, so the series goes back with its next one.
+                Long next = series.getFirstShardId();
+                if (next != null) {
+                    retention.add(seriesId, next);
+                }
+            }
+            return freed;
         } catch (IOException e) {
             throw new EtsdbException(e);
         } finally {
@@ -388,9 +743,19 @@ public class DatabaseImpl<T> implements Database<T> {
         try {
             synchronized (seriesLookup) {
                 purge(seriesId, Long.MAX_VALUE);
+                try {
+                    getSeries(seriesId).uncatalog();
+                } catch (IOException e) {
+                    throw new EtsdbException(e);
+                }
 
                 File seriesDir = Utils.getSeriesDir(baseDir, seriesId);
+                if (mappedFiles != null) {
+                    mappedFiles.invalidateDir(seriesDir);
+                }
                 try {
+                    // The shard files are gone, and were accounted for by the purge. Whatever is left is not.
+                    databaseSize.addAndGet(-DirectoryUtils.getSize(seriesDir).getSize());
                     Utils.delete(seriesDir);
                 } catch (IOException e) {
                     logger.warn("Error while deleting series " + seriesId, e);
@@ -402,16 +767,17 @@ public class DatabaseImpl<T> implements Database<T> {
     }
 
     @Override
-    @SuppressFBWarnings("DM_GC")
     public void close() throws IOException {
+        if (backdates != null) {
+            // The posters need the database lock, so they are waited for before it is taken.
+            backdates.close();
+        }
+
         lockExclusive();
         try {
             if (!closed) {
                 if (backdates != null) {
-                    try {
-                        backdates.close();
-                    } catch (Exception ignored) {
-                    }
+                    backdates.drain();
                 }
 
                 closed = true;
@@ -419,18 +785,35 @@ public class DatabaseImpl<T> implements Database<T> {
                 janitor.terminate();
                 janitor.join();
 
+                if (committer != null) {
+                    committer.terminate();
+                }
+
                 flush(true);
 
                 for (Series<T> series : getSerieses()) {
                     series.close();
                 }
 
-                System.gc();
+                if (wal != null) {
+                    wal.close();
+                }
+
+                if (flushExecutor != null) {
+                    flushExecutor.shutdown();
+                }
+
+                if (mappedFiles != null) {
+                    mappedFiles.clear();
+                }
 
                 // Write a clean indicator into the database properties, so
                 // that we know a corruption check isn't necessary upon next
-                // start.
-                getProperties().setBoolean("clean", true);
+                // start. The size is saved along with it so that it needn't
+                // be recalculated.
+                DBProperties props = getProperties();
+                props.setLong("size", sizeKnown ? databaseSize.get() : -1);
+                props.setBoolean("clean", true);
             }
         } finally {
             unlockExclusive();
@@ -442,7 +825,14 @@ public class DatabaseImpl<T> implements Database<T> {
             throw new IOException("Database is closed");
         }
 
-        seriesId = sanitizeSeriesId(seriesId);
+        return getSanitizedSeries(sanitizeSeriesId(seriesId));
+    }
+
+    private Series<T> getSanitizedSeries(String seriesId) throws IOException {
+        if (closed) {
+            throw new IOException("Database is closed");
+        }
+
         Series<T> series = seriesLookup.get(seriesId);
         if (series == null) {
             synchronized (seriesLookup) {
@@ -473,11 +863,22 @@ public class DatabaseImpl<T> implements Database<T> {
     //
     // Backdates
     //
-    void addBackdate(Backdate backdate) {
-        if (backdates != null) {
-            backdateCount.incrementAndGet();
-            backdates.add(backdate);
+    /**
+     * @return null, or the backdates that the caller must insert. See {@link Backdates#add(Backdate)}.
+     */
+    List<Backdate> addBackdate(Backdate backdate) {
+        if (backdates == null) {
+            return null;
         }
+        backdateCount.incrementAndGet();
+        return backdates.add(backdate);
+    }
+
+    /**
+     * @return the approximate number of bytes of memory taken by backdates that are waiting to be inserted.
+     */
+    public long getBackdateMemory() {
+        return backdates == null ? 0 : backdates.getMemory();
     }
 
     void insert(String seriesId, long shardId, List<Backdate> backdates) {
@@ -500,21 +901,56 @@ public class DatabaseImpl<T> implements Database<T> {
         return queueInfo != null;
     }
 
-    public int flush(boolean force) throws IOException {
+    /**
+     * Waits for room in the write queue if it is full and the overflow policy is to block. This is done before any
+     * locks are taken, so that the flush process can make room.
+     *
+     * @throws QueueFullException if the wait timed out.
+     */
+    private void awaitQueueRoom() {
+        if (queueInfo == null || queueInfo.overflowPolicy != QueueOverflowPolicy.BLOCK || !queueInfo.isFull()) {
+            return;
+        }
+        requestFlush();
+        if (!queueInfo.awaitRoom()) {
+            throw new QueueFullException("Timed out waiting for room in the write queue");
+        }
+    }
+
+    /**
+     * Asks the Janitor to run the flush process now, e.g. because the write queue is full.
+     */
+    void requestFlush() {
+        janitor.requestFlush();
+    }
+
+    public void flush(boolean force) throws IOException {
         lockConcurrent();
         try {
-            int closures = 0;
-
             long runtime = System.currentTimeMillis();
-            List<Series<T>> serieses = getSerieses();
-            for (Series<T> series : serieses) {
-                closures += series.flush(runtime, force);
+
+            // A forced flush visits every open shard. Otherwise only the shards that the schedule says are due are
+            // visited.
+            List<Series<T>> serieses;
+            Map<Series<T>, List<DataShard>> due = null;
+            if (force) {
+                serieses = getSerieses();
+            } else {
+                due = getDueShards(runtime);
+                serieses = new ArrayList<>(due.keySet());
+            }
+
+            if (flushExecutor == null || serieses.size() < 2) {
+                flush(serieses, due, runtime, force);
+            } else {
+                flushParallel(serieses, due, runtime, force);
             }
 
             // If the size of the queue still exceeds the max size, start force flushing random series until it doesn't.
             if (useQueue()) {
                 if (queueInfo.queueSize.get() > queueInfo.maxQueueSize) {
                     logger.info("Max queue size exceeded. Writing lists to reduce.");
+                    serieses = getSerieses();
                     while (!serieses.isEmpty()) {
                         if (queueInfo.queueSize.get() <= queueInfo.maxQueueSize) {
                             break;
@@ -522,7 +958,7 @@ public class DatabaseImpl<T> implements Database<T> {
 
                         int index = queueInfo.random.nextInt(serieses.size());
                         Series<T> series = serieses.remove(index);
-                        closures += series.flush(runtime, true);
+                        series.flush(runtime, true);
                     }
                 }
 
@@ -532,12 +968,104 @@ public class DatabaseImpl<T> implements Database<T> {
                 }
             }
 
-            return closures;
+            if (wal != null) {
+                // Rows logged from here on go to a new segment. The older segments are deleted once none of their rows
+                // are still queued.
+                wal.roll();
+            }
         } finally {
             unlockConcurrent();
         }
     }
 
+    /**
+     * @return the shards that are due to be flushed, grouped by series.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Series<T>, List<DataShard>> getDueShards(long runtime) {
+        Map<Series<T>, List<DataShard>> due = new LinkedHashMap<>();
+        for (ShardSchedule.Entry e : schedule.pollDue(runtime)) {
+            Series<T> series = (Series<T>) e.series;
+            List<DataShard> shards = due.get(series);
+            if (shards == null) {
+                shards = new ArrayList<>();
+                due.put(series, shards);
+            }
+            shards.add(e.shard);
+        }
+        return due;
+    }
+
+    /**
+     * @param due the shards to flush in each series, or null to flush all of their shards.
+     */
+    private void flush(List<Series<T>> serieses, Map<Series<T>, List<DataShard>> due, long runtime, boolean force)
+            throws IOException {
+        for (Series<T> series : serieses) {
+            if (due == null) {
+                series.flush(runtime, force);
+            } else {
+                series.flush(due.get(series), runtime);
+            }
+        }
+    }
+
+    /**
+     * Flushes the given series on the flush workers. The series are dealt out to the workers, so each series is
+     * only ever flushed by one thread at a time.
+     */
+    private void flushParallel(List<Series<T>> serieses, final Map<Series<T>, List<DataShard>> due,
+            final long runtime, final boolean force) throws IOException {
+        int workers = Math.min(flushThreads, serieses.size());
+        final int[] millis = new int[workers];
+        List<Future<Void>> futures = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            final List<Series<T>> part = new ArrayList<>(serieses.size() / workers + 1);
+            for (int i = w; i < serieses.size(); i += workers) {
+                part.add(serieses.get(i));
+            }
+
+            final int worker = w;
+            futures.add(flushExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    long start = System.currentTimeMillis();
+                    try {
+                        flush(part, due, runtime, force);
+                        return null;
+                    } finally {
+                        millis[worker] = (int) (System.currentTimeMillis() - start);
+                    }
+                }
+            }));
+        }
+
+        IOException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    failure = (IOException) e.getCause();
+                } else {
+                    throw new EtsdbException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for flush workers");
+            }
+        }
+
+        lastFlushWorkerMillis = millis;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Flush worker times: " + Arrays.toString(millis) + " ms");
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     //
     //
     // Monitors
@@ -651,6 +1179,13 @@ public class DatabaseImpl<T> implements Database<T> {
         return janitor.lastFlushMillis;
     }
 
+    /**
+     * @return the time in milliseconds that each flush worker took in the last parallel flush.
+     */
+    public int[] getLastFlushWorkerMillis() {
+        return lastFlushWorkerMillis.clone();
+    }
+
     @Override
     public void setLastFlushMillisHandler(Handler<Integer> handler) {
         janitor.setFlushTimeHandler(handler);
@@ -671,6 +1206,36 @@ public class DatabaseImpl<T> implements Database<T> {
         }
     }
 
+    @Override
+    public long getDiscardCount() {
+        if (queueInfo == null) {
+            return 0;
+        }
+        return queueInfo.discardCount.get();
+    }
+
+    @Override
+    public void setDiscardCountHandler(Handler<Long> handler) {
+        if (queueInfo != null) {
+            queueInfo.discardCount.setHandler(handler);
+        }
+    }
+
+    @Override
+    public long getBlockedMillis() {
+        if (queueInfo == null) {
+            return 0;
+        }
+        return queueInfo.blockedMillis.get();
+    }
+
+    @Override
+    public void setBlockedMillisHandler(Handler<Long> handler) {
+        if (queueInfo != null) {
+            queueInfo.blockedMillis.setHandler(handler);
+        }
+    }
+
     @Override
     public int getOpenShards() {
         return openShards.get();
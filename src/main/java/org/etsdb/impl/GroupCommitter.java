@@ -0,0 +1,110 @@
+package org.etsdb.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Writes out the rows that were appended to shards since the last commit, once per commit interval. Writers only add
+ * rows to the shard's output buffer, so all of the rows appended to a shard within an interval, by any number of
+ * threads, reach the file with a single write. The data files are optionally forced to the storage device as well.
+ * <p>
+ * Queries flush a shard's pending rows themselves, so they still see every completed write.
+ * <p>
+ * When the write queue is used, the rows are not appended to the shards, and the group commit writes out the
+ * write-ahead log instead.
+ */
+class GroupCommitter implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class.getName());
+
+    private final int interval;
+    private final boolean force;
+    private final WriteAheadLog wal;
+    private Set<DataShard> pending = new LinkedHashSet<>();
+    private Thread thread;
+    private volatile boolean running;
+
+    GroupCommitter(int interval, boolean force, WriteAheadLog wal) {
+        this.interval = interval;
+        this.force = force;
+        this.wal = wal;
+    }
+
+    void initiate() {
+        running = true;
+        thread = new Thread(this, "ETSDB Group Commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the commit thread after a last commit of the pending shards.
+     */
+    void terminate() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Adds a shard with rows that need to be committed.
+     */
+    synchronized void add(DataShard shard) {
+        pending.add(shard);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                if (running) {
+                    try {
+                        wait(interval);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+            }
+            commit();
+        }
+    }
+
+    private void commit() {
+        if (wal != null) {
+            try {
+                wal.commit(force);
+            } catch (IOException e) {
+                logger.error("Failed to commit the write-ahead log", e);
+            }
+        }
+
+        Set<DataShard> shards;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            shards = pending;
+            pending = new LinkedHashSet<>();
+        }
+
+        for (DataShard shard : shards) {
+            shard.lockWrite();
+            try {
+                shard.commit(force);
+            } catch (IOException e) {
+                logger.error("Failed to commit appended rows", e);
+            } finally {
+                shard.unlockWrite();
+            }
+        }
+    }
+}
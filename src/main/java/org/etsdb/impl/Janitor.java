@@ -17,15 +17,13 @@ class Janitor implements Runnable {
     private FileLock fileLock;
     private int fileLockCheckInterval;
     private int flushInterval;
+    private int sizeCheckInterval;
     private long nextFileLockCheck;
     private long nextFlush;
-
-    /**
-     * The number of meta closures that have been done since the last GC.
-     */
-    private int fileClosures;
+    private long nextSizeCheck;
 
     private volatile boolean running;
+    private volatile boolean flushRequested;
 
     Janitor(DatabaseImpl<?> db) {
         this.db = db;
@@ -43,6 +41,10 @@ class Janitor implements Runnable {
         this.flushInterval = flushInterval;
     }
 
+    void setSizeCheckInterval(int sizeCheckInterval) {
+        this.sizeCheckInterval = sizeCheckInterval;
+    }
+
     void lock() {
         fileLock = new FileLock(db, fileLockCheckInterval);
         fileLock.lock();
@@ -52,6 +54,7 @@ class Janitor implements Runnable {
         long now = System.currentTimeMillis();
         nextFileLockCheck = now + fileLockCheckInterval;
         nextFlush = now + flushInterval;
+        nextSizeCheck = sizeCheckInterval > 0 ? now + sizeCheckInterval : Long.MAX_VALUE;
 
         running = true;
 
@@ -65,6 +68,18 @@ class Janitor implements Runnable {
         running = false;
     }
 
+    /**
+     * Runs the flush process as soon as possible, e.g. to make room in a full write queue.
+     */
+    void requestFlush() {
+        if (!flushRequested) {
+            synchronized (this) {
+                flushRequested = true;
+                notifyAll();
+            }
+        }
+    }
+
     @Override
     public void run() {
         while (running) {
@@ -82,11 +97,13 @@ class Janitor implements Runnable {
         long next = nextFileLockCheck;
         if (next > nextFlush)
             next = nextFlush;
+        if (next > nextSizeCheck)
+            next = nextSizeCheck;
 
         long sleep = next - System.currentTimeMillis();
         if (sleep > 0) {
             synchronized (this) {
-                if (running) {
+                if (running && !flushRequested) {
                     try {
                         wait(sleep);
                     } catch (InterruptedException e) {
@@ -105,23 +122,16 @@ class Janitor implements Runnable {
             nextFileLockCheck = now + fileLockCheckInterval;
         }
 
-        if (now >= nextFlush) {
+        if (now >= nextSizeCheck) {
+            db.checkSizeInBackground();
+            nextSizeCheck = now + sizeCheckInterval;
+        }
+
+        if (now >= nextFlush || flushRequested) {
+            flushRequested = false;
             long time = System.currentTimeMillis();
-            boolean gc = false;
             try {
-                fileClosures += db.flush(false);
-
-                // A GC is required for the mapped buffers to be closed.
-                if (running) {
-                    if (db.tooManyFiles() || fileClosures > db.maxOpenFiles / 2) {
-                        if (logger.isDebugEnabled())
-                            logger.debug("Running garbage collection. Files to close: " + fileClosures);
-                        System.gc();
-                        gc = true;
-                        db.openFiles.addAndGet(-fileClosures);
-                        fileClosures = 0;
-                    }
-                }
+                db.flush(false);
             } catch (IOException e) {
                 logger.error("Exception during scheduled flush", e);
             }
@@ -145,7 +155,7 @@ class Janitor implements Runnable {
             // sleep time exceed the flush interval * 4.
             time *= 10;
 
-            if (gc || time < flushInterval)
+            if (time < flushInterval)
                 time = flushInterval;
             else if (time > flushInterval * 4)
                 time = flushInterval * 4;
@@ -0,0 +1,156 @@
+package org.etsdb.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A bounded cache of read only memory mappings of shard data files. Mappings are shared by concurrent readers and
+ * counted, so that a mapping that is evicted or invalidated is only released once its last reader is done with it.
+ * Released mappings are unmapped explicitly rather than left for the garbage collector.
+ * <p>
+ * Data files must be invalidated before they are appended to, rewritten, or deleted.
+ */
+class MappedFileCache {
+    private final int maxFiles;
+    // Access ordered, so that the eldest entry is the least recently used.
+    private final LinkedHashMap<File, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    MappedFileCache(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Opens an input on the mapping of the given file, mapping it if required.
+     *
+     * @return the input, or null if the file cannot be mapped, e.g. because it is empty or too large.
+     */
+    MappedInput open(File file) throws IOException {
+        long length = file.length();
+        if (length == 0 || length > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        Mapping mapping;
+        synchronized (this) {
+            mapping = mappings.get(file);
+            if (mapping != null && (mapping.length != length || mapping.lastModified != file.lastModified())) {
+                // The file was changed by someone who didn't invalidate it.
+                remove(mapping);
+                mapping = null;
+            }
+
+            if (mapping == null) {
+                mapping = map(file, length);
+                mappings.put(file, mapping);
+                evict();
+            }
+            mapping.refs++;
+        }
+
+        return new MappedInput(this, mapping);
+    }
+
+    /**
+     * Releases the mapping of the given file, if any.
+     */
+    synchronized void invalidate(File file) {
+        Mapping mapping = mappings.get(file);
+        if (mapping != null) {
+            remove(mapping);
+        }
+    }
+
+    /**
+     * Releases the mappings of all files under the given directory.
+     */
+    synchronized void invalidateDir(File dir) {
+        String prefix = dir.getPath() + File.separator;
+        List<Mapping> list = new ArrayList<>();
+        for (Mapping mapping : mappings.values()) {
+            if (mapping.file.getPath().startsWith(prefix)) {
+                list.add(mapping);
+            }
+        }
+        for (Mapping mapping : list) {
+            remove(mapping);
+        }
+    }
+
+    synchronized void clear() {
+        for (Mapping mapping : new ArrayList<>(mappings.values())) {
+            remove(mapping);
+        }
+    }
+
+    synchronized int size() {
+        return mappings.size();
+    }
+
+    synchronized void release(Mapping mapping) {
+        mapping.refs--;
+        if (mapping.refs == 0 && mapping.removed) {
+            Utils.unmap(mapping.buffer);
+        }
+    }
+
+    //
+    //
+    // Private
+    //
+    private Mapping map(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the file is closed.
+            return new Mapping(file, length, file.lastModified(), raf.getChannel().map(MapMode.READ_ONLY, 0, length));
+        } finally {
+            Utils.closeQuietly(raf);
+        }
+    }
+
+    private void evict() {
+        Iterator<Mapping> iter = mappings.values().iterator();
+        while (mappings.size() > maxFiles && iter.hasNext()) {
+            Mapping mapping = iter.next();
+            iter.remove();
+            mapping.removed = true;
+            if (mapping.refs == 0) {
+                Utils.unmap(mapping.buffer);
+            }
+        }
+    }
+
+    private void remove(Mapping mapping) {
+        mappings.remove(mapping.file);
+        mapping.removed = true;
+        if (mapping.refs == 0) {
+            Utils.unmap(mapping.buffer);
+        }
+    }
+
+    static class Mapping {
+        final File file;
+        final long length;
+        final long lastModified;
+        final MappedByteBuffer buffer;
+        int refs;
+        boolean removed;
+
+        Mapping(File file, long length, long lastModified, MappedByteBuffer buffer) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+        }
+
+        MappedByteBuffer getBuffer() {
+            return buffer;
+        }
+    }
+}
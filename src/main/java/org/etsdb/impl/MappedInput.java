@@ -0,0 +1,109 @@
+package org.etsdb.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Reads a shard data file from its memory mapping using absolute gets, so that no system calls or stream buffering
+ * are involved. The mapping is shared with other readers through the MappedFileCache, and must be released by closing
+ * the input.
+ */
+class MappedInput implements ShardInput {
+    private final MappedFileCache cache;
+    private final MappedFileCache.Mapping mapping;
+    private final MappedByteBuffer buf;
+    // A view of the buffer for bulk gets, which are only relative before Java 9.
+    private final ByteBuffer view;
+    private final int limit;
+
+    private int position;
+    private byte sum;
+    private boolean eof;
+    private boolean closed;
+
+    MappedInput(MappedFileCache cache, MappedFileCache.Mapping mapping) {
+        this.cache = cache;
+        this.mapping = mapping;
+        buf = mapping.getBuffer();
+        view = buf.duplicate();
+        limit = buf.limit();
+    }
+
+    @Override
+    public boolean checkSum() throws IOException {
+        if (eof || position >= limit)
+            return false;
+
+        boolean match = buf.get(position++) == sum;
+        sum = 0;
+        return match;
+    }
+
+    @Override
+    public void resetSum() {
+        sum = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (eof)
+            return -1;
+
+        if (position >= limit) {
+            eof = true;
+            return -1;
+        }
+
+        byte b = buf.get(position++);
+        sum += b;
+        return b & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (eof)
+            return -1;
+
+        if (position >= limit) {
+            eof = true;
+            return -1;
+        }
+
+        int count = Math.min(len, limit - position);
+        view.position(position);
+        view.get(b, off, count);
+        position += count;
+        for (int i = 0; i < count; i++)
+            sum += b[i + off];
+        return count;
+    }
+
+    @Override
+    public boolean isEof() {
+        return eof;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        if (position < 0 || position > limit) {
+            throw new IOException("Position " + position + " is outside of the mapped file, length " + limit);
+        }
+        this.position = (int) position;
+        eof = false;
+        sum = 0;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            cache.release(mapping);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The backdated rows of a shard that have not been merged into its data file yet. Backdates are appended to a sidecar
+ * file, so that inserting them costs I/O in proportion to the backdates rather than to the data file. The rows are held
+ * in memory in time order while the shard is open, and queries merge them with the rows of the data file. An overlay
+ * row replaces any row in the data file with the same offset.
+ * <p>
+ * The overlay is merged into the data file, and the file deleted, whenever the data file is rewritten.
+ */
+class Overlay {
+    private static final Logger logger = LoggerFactory.getLogger(Overlay.class.getName());
+
+    private final File file;
+    private final File newFile;
+    private final TreeMap<Long, byte[]> rows = new TreeMap<>();
+
+    Overlay(File file) {
+        this.file = file;
+        newFile = new File(file.getParentFile(), file.getName() + ".new");
+    }
+
+    /**
+     * Loads the rows from the file. A damaged end of the file, e.g. from a crash during an append, is cut off.
+     */
+    void load() throws IOException {
+        rows.clear();
+        if (!file.exists()) {
+            if (!newFile.exists()) {
+                return;
+            }
+            // A save was interrupted after the old file was deleted.
+            Utils.renameWithRetry(newFile, file);
+        }
+
+        boolean damaged = false;
+        ChecksumInputStream in = null;
+        try {
+            in = new ChecksumInputStream(file);
+            ScanInfo scanInfo = new ScanInfo();
+            while (true) {
+                if (!DataShard._readSample(in, scanInfo)) {
+                    damaged = true;
+                    break;
+                }
+                if (scanInfo.isEof()) {
+                    break;
+                }
+                ByteArrayBuilder b = scanInfo.getData();
+                rows.put(scanInfo.getOffset(), Utils.copy(b.getBuffer(), b.getReadOffset(), b.getAvailable()));
+            }
+        } catch (BadRowException e) {
+            damaged = true;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+
+        if (damaged) {
+            logger.warn("Overlay " + file + " is damaged. Keeping the " + rows.size() + " rows before the damage");
+            save();
+        }
+    }
+
+    /**
+     * Appends rows to the file. The backdates must be in time order, and a later backdate with the same offset
+     * replaces an earlier one.
+     */
+    void add(List<Backdate> backdates) throws IOException {
+        ChecksumOutputStream out = new ChecksumOutputStream(new FileOutputStream(file, true), file.length());
+        try {
+            for (Backdate backdate : backdates) {
+                DataShard._writeSample(out, backdate.getOffset(), backdate.getData(), 0, backdate.getData().length);
+            }
+            out.close();
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        for (Backdate backdate : backdates) {
+            rows.put(backdate.getOffset(), backdate.getData());
+        }
+    }
+
+    /**
+     * Removes the rows with offsets in the given range (inclusive), rewriting the file if there were any.
+     *
+     * @return the number of rows removed.
+     */
+    int remove(long from, long to) throws IOException {
+        NavigableMap<Long, byte[]> range = rows.subMap(from, true, to, true);
+        int count = range.size();
+        if (count > 0) {
+            range.clear();
+            save();
+        }
+        return count;
+    }
+
+    boolean contains(long offset) {
+        return rows.containsKey(offset);
+    }
+
+    boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    /**
+     * @return the offset of the first row. The overlay must not be empty.
+     */
+    long getFirstOffset() {
+        return rows.firstKey();
+    }
+
+    /**
+     * @return the offsets of the rows in time order.
+     */
+    Iterable<Long> getOffsets() {
+        return rows.keySet();
+    }
+
+    /**
+     * @return the rows as backdates of the given shard, in time order.
+     */
+    List<Backdate> getBackdates(String seriesId, long shardId) {
+        List<Backdate> result = new ArrayList<>(rows.size());
+        for (Map.Entry<Long, byte[]> e : rows.entrySet()) {
+            result.add(new Backdate(seriesId, shardId, e.getKey(), e.getValue(), 0, e.getValue().length));
+        }
+        return result;
+    }
+
+    long length() {
+        return file.length();
+    }
+
+    /**
+     * @return a cursor over the rows with offsets from fromOffset (inclusive) to toOffset (exclusive), in descending
+     * order if reverse is true.
+     */
+    Cursor cursor(String seriesId, long shardId, long fromOffset, long toOffset, boolean reverse) {
+        NavigableMap<Long, byte[]> range = rows.subMap(fromOffset, true, toOffset, false);
+        return new Cursor(seriesId, shardId, reverse ? range.descendingMap() : range, reverse);
+    }
+
+    /**
+     * Deletes the overlay file, e.g. after the rows have been merged into the data file.
+     */
+    void delete() throws IOException {
+        rows.clear();
+        Utils.deleteWithRetry(file);
+        Utils.deleteWithRetry(newFile);
+    }
+
+    //
+    //
+    // Private
+    //
+    private void save() throws IOException {
+        if (rows.isEmpty()) {
+            delete();
+            return;
+        }
+
+        // Write to a new file and rename it, so that a failure can't lose the existing rows.
+        ChecksumOutputStream out = new ChecksumOutputStream(new FileOutputStream(newFile));
+        try {
+            for (Map.Entry<Long, byte[]> e : rows.entrySet()) {
+                DataShard._writeSample(out, e.getKey(), e.getValue(), 0, e.getValue().length);
+            }
+            out.close();
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        Utils.deleteWithRetry(file);
+        Utils.renameWithRetry(newFile, file);
+    }
+
+    /**
+     * Sends the overlay rows of a query to its callback as the query passes them in the data file.
+     */
+    static class Cursor {
+        private final String seriesId;
+        private final long shardId;
+        private final Iterator<Map.Entry<Long, byte[]>> iter;
+        private final boolean reverse;
+        private final ByteArrayBuilder b = new ByteArrayBuilder();
+        private Map.Entry<Long, byte[]> next;
+
+        Cursor(String seriesId, long shardId, Map<Long, byte[]> rows, boolean reverse) {
+            this.seriesId = seriesId;
+            this.shardId = shardId;
+            this.reverse = reverse;
+            iter = rows.entrySet().iterator();
+            next = iter.hasNext() ? iter.next() : null;
+        }
+
+        /**
+         * Sends the rows up to and including the given offset, in the direction of the query.
+         *
+         * @return the number of rows sent.
+         */
+        int sendUntil(long offset, int limit, RawQueryCallback cb) {
+            int count = 0;
+            while (next != null && count < limit && (reverse ? next.getKey() >= offset : next.getKey() <= offset)) {
+                b.clear();
+                b.put(next.getValue());
+                cb.sample(seriesId, Utils.getTimestamp(shardId, next.getKey()), b);
+                count++;
+                next = iter.hasNext() ? iter.next() : null;
+            }
+            return count;
+        }
+
+        /**
+         * Sends the remaining rows.
+         *
+         * @return the number of rows sent.
+         */
+        int sendRest(int limit, RawQueryCallback cb) {
+            return sendUntil(reverse ? Long.MIN_VALUE : Long.MAX_VALUE, limit, cb);
+        }
+    }
+}
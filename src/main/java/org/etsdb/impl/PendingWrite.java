@@ -7,7 +7,8 @@ public class PendingWrite implements Comparable<PendingWrite> {
     private final byte[] data;
 
     public PendingWrite(long offset, byte[] data, int off, int len) {
-        this(offset, Utils.copy(data, off, len));
+        this.offset = offset;
+        this.data = Utils.copy(data, off, len);
     }
 
     public PendingWrite(long offset, byte[] data) {
@@ -14,11 +14,21 @@ public class PendingWriteList {
         this.queueInfo = queueInfo;
     }
 
+    /**
+     * @return the time at which the list should be written out, or 0 if it is empty.
+     */
+    public long getExpiryTime() {
+        return expiryTime;
+    }
+
     public boolean expired(long runtime) {
         return expiryTime != 0 && expiryTime <= runtime;
     }
 
-    public void add(PendingWrite sample) {
+    /**
+     * @return false if the sample replaced one with the same offset.
+     */
+    public boolean add(PendingWrite sample) {
         if (list.isEmpty()) {
             expiryTime = queueInfo.getExpiryTime();
             maxSize = queueInfo.getShardQueueSize();
@@ -33,9 +43,32 @@ public class PendingWriteList {
                     list.add(sample);
                 else
                     list.add(index, sample);
-            } else
+            } else {
                 list.set(index, sample);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the samples with offsets in the given range (inclusive).
+     *
+     * @return the number of samples removed.
+     */
+    public int remove(long fromOffset, long toOffset) {
+        int removed = 0;
+        for (int i = list.size() - 1; i >= 0; i--) {
+            long offset = list.get(i).getOffset();
+            if (offset >= fromOffset && offset <= toOffset) {
+                list.remove(i);
+                removed++;
+            }
+        }
+        if (list.isEmpty()) {
+            expiryTime = 0;
         }
+        return removed;
     }
 
     public void clear() {
@@ -18,6 +18,23 @@ class ScanInfo {
      * The data for the current record
      */
     private ByteArrayBuilder data = new ByteArrayBuilder(1024);
+    /**
+     * The block that the current record was read from, if any.
+     */
+    private BlockDecoder block;
+    /**
+     * True if the current record was read from the start of a row or block in the file, false if it was read from the
+     * remainder of a block.
+     */
+    private boolean recordStart;
+    /**
+     * True if the record that the current row was read from ends with a trailer.
+     */
+    private boolean trailed;
+    /**
+     * The position in the file of the row or block that the current row was read from, if tracked by the reader.
+     */
+    private long recordPosition;
     /**
      * The pointer to the next cache record.
      */
@@ -56,6 +73,40 @@ class ScanInfo {
         this.data = data;
     }
 
+    BlockDecoder getBlock() {
+        if (block == null)
+            block = new BlockDecoder();
+        return block;
+    }
+
+    boolean hasBlockRows() {
+        return block != null && block.hasNext();
+    }
+
+    boolean isRecordStart() {
+        return recordStart;
+    }
+
+    void setRecordStart(boolean recordStart) {
+        this.recordStart = recordStart;
+    }
+
+    boolean isTrailed() {
+        return trailed;
+    }
+
+    void setTrailed(boolean trailed) {
+        this.trailed = trailed;
+    }
+
+    long getRecordPosition() {
+        return recordPosition;
+    }
+
+    void setRecordPosition(long recordPosition) {
+        this.recordPosition = recordPosition;
+    }
+
     boolean isEndOfShard() {
         if (eof && cache != null)
             return cacheIndex >= cache.size();
@@ -87,6 +138,8 @@ class ScanInfo {
     void reset(DataShard shard) {
         this.eof = false;
         cacheIndex = -1;
+        if (block != null)
+            block.clear();
         if (shard != null)
             cache = shard.getCache();
     }
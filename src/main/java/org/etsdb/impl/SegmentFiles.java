@@ -0,0 +1,184 @@
+package org.etsdb.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The numbered segment files of a log in the base directory, e.g. the write-ahead log and the backdate spill log,
+ * along with the encoding of their records. A record starts with a non-zero type byte and ends with a checksum, so
+ * that a record that was only partially written by a crash is detected when the segment is read.
+ */
+class SegmentFiles {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentFiles.class.getName());
+
+    private final File baseDir;
+    private final String suffix;
+    private final String description;
+    private final AtomicLong databaseSize;
+
+    /**
+     * @param description what the segments are, for log messages.
+     */
+    SegmentFiles(File baseDir, String suffix, String description, AtomicLong databaseSize) {
+        this.baseDir = baseDir;
+        this.suffix = suffix;
+        this.description = description;
+        this.databaseSize = databaseSize;
+    }
+
+    File getFile(long segment) {
+        return new File(baseDir, segment + suffix);
+    }
+
+    /**
+     * @return the numbers of the existing segments in ascending order.
+     */
+    List<Long> getSegments() {
+        List<Long> segments = new ArrayList<>();
+        String[] names = baseDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment.
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Reads the records of a segment in order, until the end of the segment or the first damaged record. An
+     * IOException from the reader is taken to mean that the record is damaged.
+     *
+     * @return the number of records read.
+     */
+    int read(long segment, RecordReader reader) throws IOException {
+        File file = getFile(segment);
+        int records = 0;
+        ChecksumInputStream in = new ChecksumInputStream(file);
+        try {
+            while (true) {
+                long position = in.position();
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+
+                try {
+                    reader.read(type, position, in);
+                } catch (IOException e) {
+                    // A crash may have left a partially written record at the end of the segment.
+                    logger.warn(description + " segment " + file + " is damaged at " + in.position()
+                            + ". Skipping the rest of it: " + e.getMessage());
+                    break;
+                }
+                records++;
+            }
+        } finally {
+            Utils.closeQuietly(in);
+        }
+        return records;
+    }
+
+    /**
+     * Deletes a segment, logging rather than throwing if that fails.
+     */
+    void delete(long segment) {
+        File file = getFile(segment);
+        long length = file.length();
+        try {
+            Utils.deleteWithRetry(file);
+            databaseSize.addAndGet(-length);
+        } catch (IOException e) {
+            logger.warn("Failed to delete " + description + " segment " + file, e);
+        }
+    }
+
+    //
+    //
+    // Record encoding
+    //
+    static void writeId(OutputStream out, String seriesId) throws IOException {
+        byte[] b = seriesId.getBytes(StandardCharsets.UTF_8);
+        Utils.writeCompactInt(out, b.length);
+        out.write(b, 0, b.length);
+    }
+
+    static String readId(ChecksumInput in) throws IOException {
+        return new String(readBytes(in, Utils.readCompactInt(in)), StandardCharsets.UTF_8);
+    }
+
+    static void writeLong(OutputStream out, long l) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((byte) (l >> shift));
+        }
+    }
+
+    static long readLong(ChecksumInput in) throws IOException {
+        long l = 0;
+        for (int i = 0; i < 8; i++) {
+            l = (l << 8) | readByte(in);
+        }
+        return l;
+    }
+
+    static byte[] readBytes(ChecksumInput in, int length) throws IOException {
+        if (length < 0 || length > Utils.MAX_DATA_LENGTH) {
+            throw new IOException("Bad length " + length);
+        }
+        byte[] b = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int count = in.read(b, off, length - off);
+            if (count == -1) {
+                throw new IOException("EOF");
+            }
+            off += count;
+        }
+        return b;
+    }
+
+    static int readByte(ChecksumInput in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new IOException("EOF");
+        }
+        return b;
+    }
+
+    /**
+     * Reads the checksum at the end of a record.
+     */
+    static void checkSum(ChecksumInput in) throws IOException {
+        if (!in.checkSum()) {
+            throw new IOException("Checksum error");
+        }
+    }
+
+    interface RecordReader {
+        /**
+         * Reads the rest of a record whose type byte has been read.
+         *
+         * @param position the position of the record in the segment.
+         */
+        void read(int type, long position, ChecksumInput in) throws IOException;
+    }
+}
@@ -3,6 +3,7 @@ package org.etsdb.impl;
 import org.etsdb.ByteArrayBuilder;
 import org.etsdb.Serializer;
 import org.etsdb.TimeRange;
+import org.etsdb.WriteBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,22 +11,48 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 class Series<T> {
     private static final Logger logger = LoggerFactory.getLogger(Series.class.getName());
 
+    /**
+     * Values are serialized before any lock is taken, so each writing thread has its own buffer. The buffers are
+     * shared by all series.
+     */
+    private static final ThreadLocal<ByteArrayBuilder> buffers = new ThreadLocal<ByteArrayBuilder>() {
+        @Override
+        protected ByteArrayBuilder initialValue() {
+            return new ByteArrayBuilder();
+        }
+    };
+    /**
+     * Buffers that grew beyond this length are shrunk after use, so that the occasional large value isn't kept
+     * around by every thread.
+     */
+    private static final int MAX_BUFFER_LENGTH = 1024;
+
     private final DatabaseImpl<T> db;
     private final File seriesDir;
     private final String id;
     private final Serializer<T> serializer;
 
-    private final ByteArrayBuilder buffer = new ByteArrayBuilder();
-    private final Map<Long, DataShard> shardLookup = new HashMap<>();
-    private long minShard = Long.MAX_VALUE;
-    private long maxShard = 0;
+    /**
+     * Structural changes to the series, i.e. opening and removing shards, are synchronized on the lookup. Finding an open shard is not.
+     */
+    private final ShardTable shardLookup = new ShardTable();
+    /**
+     * Also keeps track of which shards exist, so that only those are visited.
+     */
+    private final SeriesSummary summary;
+    /**
+     * Whether the series is known to be in the database's catalog.
+     */
+    private volatile boolean cataloged;
 
     Series(DatabaseImpl<T> db, File baseDir, String id, Serializer<T> serializer) {
         this.db = db;
@@ -36,22 +63,9 @@ class Series<T> {
         this.id = id;
         this.serializer = serializer;
 
-        String[] shards = seriesDir.list(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".data") || name.endsWith(".meta");
-            }
-        });
-        if (shards != null) {
-            for (String shard : shards) {
-                try {
-                    // Remove the .data extension
-                    shard = shard.substring(0, shard.length() - 5);
-                    updateMinMax(Long.parseLong(shard));
-                } catch (NumberFormatException e) {
-                    // no op
-                }
-            }
+        summary = new SeriesSummary(db, seriesDir);
+        if (!summary.load()) {
+            scanShards();
         }
     }
 
@@ -60,10 +74,111 @@ class Series<T> {
     }
 
     void write(long ts, T value) throws IOException {
-        synchronized (buffer) {
-            buffer.clear();
+        ensureCataloged();
+
+        ByteArrayBuilder buffer = buffers.get();
+        buffer.clear();
+        try {
             serializer.toByteArray(buffer, value, ts);
             write(ts, buffer.getBuffer(), buffer.getReadOffset(), buffer.getAvailable());
+        } finally {
+            if (buffer.getBuffer().length > MAX_BUFFER_LENGTH) {
+                buffer.resetCapacity();
+            }
+        }
+    }
+
+    /**
+     * Writes the samples of the batch at the given positions of the order, which must all be of this series and be
+     * sorted by time. The samples of each shard are serialized first, and then appended with a single lock and flush.
+     */
+    void write(WriteBatch<T> batch, Integer[] order, int from, int to) throws IOException {
+        ensureCataloged();
+
+        ByteArrayBuilder buffer = buffers.get();
+        int[] ends = new int[to - from];
+        try {
+            while (from < to) {
+                long shardId = Utils.getShardId(batch.getTimestamp(order[from]));
+                int end = from + 1;
+                while (end < to && Utils.getShardId(batch.getTimestamp(order[end])) == shardId) {
+                    end++;
+                }
+
+                buffer.clear();
+                for (int i = from; i < end; i++) {
+                    serializer.toByteArray(buffer, batch.getValue(order[i]), batch.getTimestamp(order[i]));
+                    ends[i - from] = buffer.getReadOffset() + buffer.getAvailable();
+                }
+
+                DataShard shard = getShardById(shardId, true);
+                try {
+                    int off = buffer.getReadOffset();
+                    for (int i = from; i < end; i++) {
+                        int len = ends[i - from] - off;
+                        shard.write(batch.getTimestamp(order[i]), buffer.getBuffer(), off, len, false);
+                        off += len;
+                    }
+                    shard.flushAppends();
+                    scheduleFlush(shard);
+                    checkOpenFiles(shard);
+                } finally {
+                    shard.unlockWrite();
+                }
+
+                from = end;
+            }
+        } finally {
+            if (buffer.getBuffer().length > MAX_BUFFER_LENGTH) {
+                buffer.resetCapacity();
+            }
+        }
+    }
+
+    /**
+     * Loads the samples of the batch at the given positions of the order directly into their shards. The positions
+     * must all be of this series and be sorted by time. Of samples with the same time, the last one wins.
+     */
+    void load(WriteBatch<T> batch, Integer[] order, int from, int to) throws IOException {
+        ensureCataloged();
+
+        ByteArrayBuilder buffer = buffers.get();
+        try {
+            while (from < to) {
+                long shardId = Utils.getShardId(batch.getTimestamp(order[from]));
+                int end = from + 1;
+                while (end < to && Utils.getShardId(batch.getTimestamp(order[end])) == shardId) {
+                    end++;
+                }
+
+                List<Backdate> rows = new ArrayList<>(end - from);
+                for (int i = from; i < end; i++) {
+                    long ts = batch.getTimestamp(order[i]);
+                    buffer.clear();
+                    serializer.toByteArray(buffer, batch.getValue(order[i]), ts);
+                    Backdate row = new Backdate(id, shardId, Utils.getOffsetInShard(shardId, ts), buffer.getBuffer(),
+                            buffer.getReadOffset(), buffer.getAvailable());
+                    if (!rows.isEmpty() && rows.get(rows.size() - 1).getOffset() == row.getOffset()) {
+                        rows.set(rows.size() - 1, row);
+                    } else {
+                        rows.add(row);
+                    }
+                }
+
+                DataShard shard = getShardById(shardId, true);
+                try {
+                    shard.load(rows);
+                    checkOpenFiles(shard);
+                } finally {
+                    shard.unlockWrite();
+                }
+
+                from = end;
+            }
+        } finally {
+            if (buffer.getBuffer().length > MAX_BUFFER_LENGTH) {
+                buffer.resetCapacity();
+            }
         }
     }
 
@@ -71,6 +186,43 @@ class Series<T> {
         DataShard shard = getShard(ts, true);
         try {
             shard.write(ts, data, off, len);
+            scheduleFlush(shard);
+            checkOpenFiles(shard);
+        } finally {
+            shard.unlockWrite();
+        }
+    }
+
+    /**
+     * Writes rows recovered from the write-ahead log directly to their shards, one shard at a time.
+     *
+     * @param rows the data of the rows by time.
+     */
+    void replay(TreeMap<Long, byte[]> rows) throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        ensureCataloged();
+
+        List<Backdate> shardRows = new ArrayList<>();
+        long shardId = Utils.getShardId(rows.firstKey());
+        for (Map.Entry<Long, byte[]> row : rows.entrySet()) {
+            long ts = row.getKey();
+            if (Utils.getShardId(ts) != shardId) {
+                replay(shardId, shardRows);
+                shardRows.clear();
+                shardId = Utils.getShardId(ts);
+            }
+            byte[] data = row.getValue();
+            shardRows.add(new Backdate(id, shardId, Utils.getOffsetInShard(shardId, ts), data, 0, data.length));
+        }
+        replay(shardId, shardRows);
+    }
+
+    private void replay(long shardId, List<Backdate> rows) throws IOException {
+        DataShard shard = getShardById(shardId, true);
+        try {
+            shard.replay(rows);
             checkOpenFiles(shard);
         } finally {
             shard.unlockWrite();
@@ -87,22 +239,13 @@ class Series<T> {
     }
 
     void query(long fromTs, long toTs, int limit, boolean reverse, RawQueryCallback cb) throws IOException {
-        // Determine the shard range to query
-        long fromShard = Utils.getShardId(fromTs);
-        long toShard = Utils.getShardId(toTs);
-        synchronized (shardLookup) {
-            if (fromShard < minShard)
-                fromShard = minShard;
-            if (toShard > maxShard)
-                toShard = maxShard;
-        }
+        // Only the shards in the range that have rows or files are visited.
+        List<Long> shardIds = summary.getShardIds(Utils.getShardId(fromTs), Utils.getShardId(toTs));
+        if (reverse)
+            Collections.reverse(shardIds);
 
         // Iterate through the shards.
-        for (long sid = fromShard; sid <= toShard; sid++) {
-            long shardId = sid;
-            if (reverse)
-                shardId = toShard - sid + fromShard;
-
+        for (long shardId : shardIds) {
             // Get a handle on the current shard.
             DataShard shard = getShardById(shardId, false);
             try {
@@ -127,136 +270,263 @@ class Series<T> {
         }
     }
 
-    TimeRange getTimeRange() throws IOException {
-        long minShard, maxShard;
-
-        synchronized (shardLookup) {
-            minShard = this.minShard;
-            maxShard = this.maxShard;
-        }
-
-        if (maxShard == 0)
-            return null;
+    /**
+     * Counts the rows in the given time range (to exclusive). Shards that are entirely in the range are counted from
+     * their summaries, so only the shards at the ends of the range are read.
+     */
+    long count(long fromTs, long toTs) throws IOException {
+        long count = 0;
+        final AtomicLong scanned = new AtomicLong();
+        RawQueryCallback cb = new RawQueryCallback() {
+            @Override
+            public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+                scanned.incrementAndGet();
+            }
+        };
 
-        TimeRange range = new TimeRange();
+        for (long shardId : summary.getShardIds(Utils.getShardId(fromTs), Utils.getShardId(toTs))) {
+            ShardSummary s = getNonEmptySummary(shardId);
+            if (s == null || s.getMaxTs() < fromTs || s.getMinTs() >= toTs)
+                continue;
 
-        DataShard min = getShardById(minShard, false);
-        try {
-            range.setFrom(min.getMinTs());
-            if (minShard == maxShard)
-                range.setTo(min.getMaxTs());
+            if (s.getMinTs() >= fromTs && s.getMaxTs() < toTs)
+                count += s.getCount();
             else {
-                DataShard max = getShardById(maxShard, false);
+                DataShard shard = getShardById(shardId, false);
                 try {
-                    range.setTo(max.getMaxTs());
+                    shard.query(Utils.getOffsetInShard(shardId, fromTs), Utils.getOffsetInShard(shardId, toTs),
+                            Integer.MAX_VALUE, cb);
                 } finally {
-                    max.unlockRead();
+                    shard.unlockRead();
                 }
             }
-        } finally {
-            min.unlockRead();
         }
+        return count + scanned.get();
+    }
+
+    TimeRange getTimeRange() throws IOException {
+        List<Long> shardIds = summary.getShardIds();
+
+        ShardSummary min = null;
+        for (int i = 0; i < shardIds.size() && min == null; i++) {
+            min = getNonEmptySummary(shardIds.get(i));
+        }
+        if (min == null)
+            return null;
 
+        ShardSummary max = null;
+        for (int i = shardIds.size() - 1; i >= 0 && max == null; i--) {
+            max = getNonEmptySummary(shardIds.get(i));
+        }
+        if (max == null)
+            // Emptied concurrently.
+            max = min;
+
+        TimeRange range = new TimeRange();
+        range.setFrom(min.getMinTs());
+        range.setTo(max.getMaxTs());
         return range;
     }
 
+    /**
+     * @return the summary of the given shard, or null if it has no rows.
+     */
+    private ShardSummary getNonEmptySummary(long shardId) throws IOException {
+        ShardSummary s = summary.get(shardId);
+        if (s == null) {
+            // The shard hasn't been summarized yet.
+            DataShard shard = getShardById(shardId, true);
+            try {
+                s = shard.getSummary();
+            } finally {
+                shard.unlockWrite();
+            }
+        }
+        return s.isEmpty() ? null : s;
+    }
+
     long delete(long fromTs, long toTs) throws IOException {
         long fromShard = Utils.getShardId(fromTs);
         long toShard = Utils.getShardId(toTs);
         long deleteCount = 0;
 
         synchronized (shardLookup) {
-            if (fromShard < minShard)
-                fromShard = minShard;
-            if (toShard > maxShard)
-                toShard = maxShard;
-
-            for (long shardId = fromShard; shardId <= toShard; ++shardId) {
+            boolean removed = false;
+            for (long shardId : summary.getShardIds(fromShard, toShard)) {
                 DataShard shard = getShardById(shardId, true);
                 try {
                     long fromOffset = Utils.getOffsetInShard(shardId, fromTs);
                     long toOffset = Utils.getOffsetInShard(shardId, toTs);
-                    deleteCount += shard.deleteSamples(fromOffset, toOffset);
+                    long count = shard.deleteSamples(fromOffset, toOffset);
+                    deleteCount += count;
+
+                    if (count > 0 && shard.isEmpty()) {
+                        // Nothing is left in the shard, so remove it entirely.
+                        summary.remove(shardId);
+                        shard.close();
+                        if (shardLookup.remove(shardId, shard))
+                            db.openShards.decrementAndGet();
+                        deleteShardFiles(shardId);
+                        removed = true;
+                    }
                 } finally {
                     shard.unlockWrite();
                 }
             }
+
+            if (removed) {
+                if (summary.isEmpty()) {
+                    uncatalog();
+                }
+                summary.saveIfIdle();
+            }
         }
         return deleteCount;
     }
 
-    void purge(long toTs) {
+    /**
+     * Deletes all shards that end before the given time.
+     *
+     * @return the number of bytes freed.
+     */
+    long purge(long toTs) {
         long toShard = Utils.getShardId(toTs);
-
-        if (toShard <= minShard)
-            return;
-        if (toShard > maxShard)
-            toShard = maxShard + 1;
+        long freed = 0;
 
         synchronized (shardLookup) {
-            for (long shardId = minShard; shardId < toShard; shardId++) {
+            List<Long> shardIds = summary.getShardIds(Long.MIN_VALUE, toShard - 1);
+            if (shardIds.isEmpty())
+                return 0;
+
+            for (long shardId : shardIds) {
+                summary.remove(shardId);
                 DataShard shard = shardLookup.get(shardId);
                 if (shard != null) {
                     try {
                         shard.lockWrite();
-                        shard.close();
-                        shardLookup.remove(shardId);
-                        db.openShards.decrementAndGet();
-
-                        try {
-                            Utils.deleteWithRetry(new File(seriesDir, shardId + ".meta"));
-                        } catch (IOException e) {
-                            logger.warn("Error while deleting shard meta " + shardId + " in series " + id, e);
-                        }
-
-                        try {
-                            Utils.deleteWithRetry(new File(seriesDir, shardId + ".data"));
-                        } catch (IOException e) {
-                            logger.warn("Error while deleting shard data " + shardId + " in series " + id, e);
-                        }
+                        // The files are about to be deleted, so queued rows are dropped rather than written.
+                        shard.discard();
+                        if (shardLookup.remove(shardId, shard))
+                            db.openShards.decrementAndGet();
+                        freed += deleteShardFiles(shardId);
                     } finally {
                         shard.unlockWrite();
                     }
+                } else {
+                    // The shard isn't open, but has files.
+                    freed += deleteShardFiles(shardId);
                 }
             }
 
-            if (toShard > maxShard) {
-                minShard = Long.MAX_VALUE;
-                maxShard = 0;
-            } else
-                minShard = toShard;
+            if (summary.isEmpty())
+                uncatalog();
+            summary.saveIfIdle();
+        }
+        return freed;
+    }
+
+    /**
+     * @return the id of the oldest shard of the series, or null if it has none.
+     */
+    Long getFirstShardId() {
+        return summary.getFirstShardId();
+    }
+
+    private void ensureCataloged() throws IOException {
+        if (!cataloged) {
+            db.catalog.add(id);
+            cataloged = true;
+        }
+    }
+
+    /**
+     * Removes the series from the database's catalog, e.g. because all of its data was deleted. It is added back on
+     * the next write.
+     */
+    void uncatalog() {
+        cataloged = false;
+        try {
+            db.catalog.remove(id);
+        } catch (IOException e) {
+            logger.warn("Error while removing series " + id + " from the catalog", e);
         }
     }
 
-    int flush(long runtime, boolean force) throws IOException {
-        int closures = 0;
+    /**
+     * @return the total length of the files that were deleted.
+     */
+    private long deleteShardFiles(long shardId) {
+        long freed = 0;
+        freed += deleteShardFile(shardId, ".meta", "meta");
+        freed += deleteShardFile(shardId, ".data", "data");
+        freed += deleteShardFile(shardId, ".idx", "index");
+        freed += deleteShardFile(shardId, ".tomb", "tombstones");
+        freed += deleteShardFile(shardId, ".ovl", "overlay");
+        db.databaseSize.addAndGet(-freed);
+        return freed;
+    }
 
+    private long deleteShardFile(long shardId, String suffix, String description) {
+        File file = new File(seriesDir, shardId + suffix);
+        long length = file.length();
+        try {
+            if (db.mappedFiles != null && ".data".equals(suffix)) {
+                db.mappedFiles.invalidate(file);
+            }
+            Utils.deleteWithRetry(file);
+            return length;
+        } catch (IOException e) {
+            logger.warn("Error while deleting shard " + description + " " + shardId + " in series " + id, e);
+            return 0;
+        }
+    }
+
+    void flush(long runtime, boolean force) throws IOException {
         for (DataShard shard : getShards()) {
             try {
                 shard.lockWrite();
                 shard.flush(runtime, force);
                 checkOpenFiles(shard);
-                closures = shard.resetMetaClosures();
-                if (shard.isClosed()) {
-                    synchronized (shardLookup) {
-                        shardLookup.remove(shard.getShardId());
-                        db.openShards.decrementAndGet();
-                    }
+                if (shard.isClosed() && shardLookup.remove(shard.getShardId(), shard)) {
+                    db.openShards.decrementAndGet();
                 }
             } finally {
                 shard.unlockWrite();
             }
         }
+    }
 
-        synchronized (buffer) {
-            synchronized (shardLookup) {
-                if (shardLookup.isEmpty()) {
-                    buffer.resetCapacity();
+    /**
+     * Flushes the given shards, which the flush schedule says are due.
+     */
+    void flush(List<DataShard> shards, long runtime) throws IOException {
+        for (DataShard shard : shards) {
+            try {
+                shard.lockWrite();
+                if (shard.isClosed()) {
+                    continue;
+                }
+                shard.flush(runtime, false);
+                checkOpenFiles(shard);
+                if (shard.isClosed()) {
+                    if (shardLookup.remove(shard.getShardId(), shard)) {
+                        db.openShards.decrementAndGet();
+                    }
+                } else {
+                    scheduleFlush(shard);
                 }
+            } finally {
+                shard.unlockWrite();
             }
         }
+    }
 
-        return closures;
+    /**
+     * Makes sure that the flush process visits the shard when it has something to do. Called whenever that may have
+     * changed, i.e. after writes and flushes.
+     */
+    private void scheduleFlush(DataShard shard) {
+        db.schedule.schedule(this, shard, shard.getFlushDue());
     }
 
     private void checkOpenFiles(DataShard shard) {
@@ -271,8 +541,7 @@ class Series<T> {
             try {
                 shard.lockWrite();
                 shard.close();
-                synchronized (shardLookup) {
-                    shardLookup.remove(shard.getShardId());
+                if (shardLookup.remove(shard.getShardId(), shard)) {
                     db.openShards.decrementAndGet();
                 }
             } finally {
@@ -282,11 +551,7 @@ class Series<T> {
     }
 
     private List<DataShard> getShards() {
-        List<DataShard> shards;
-        synchronized (shardLookup) {
-            shards = new ArrayList<>(shardLookup.values());
-        }
-        return shards;
+        return shardLookup.values();
     }
 
     //
@@ -336,20 +601,33 @@ class Series<T> {
             synchronized (shardLookup) {
                 shard = shardLookup.get(shardId);
                 if (shard == null) {
-                    shard = new DataShard(db, seriesDir, id, shardId);
+                    shard = new DataShard(db, seriesDir, id, shardId, summary);
                     shardLookup.put(shardId, shard);
                     db.openShards.incrementAndGet();
-                    updateMinMax(shardId);
+                    scheduleFlush(shard);
                 }
             }
         }
         return shard;
     }
 
-    private void updateMinMax(long shardId) {
-        if (minShard > shardId)
-            minShard = shardId;
-        if (maxShard < shardId)
-            maxShard = shardId;
+    private void scanShards() {
+        String[] shards = seriesDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".data") || name.endsWith(".meta");
+            }
+        });
+        if (shards != null) {
+            for (String shard : shards) {
+                try {
+                    // Remove the .data extension
+                    shard = shard.substring(0, shard.length() - 5);
+                    summary.addUnknown(Long.parseLong(shard));
+                } catch (NumberFormatException e) {
+                    // no op
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,232 @@
+package org.etsdb.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The ids of all series in the database, so that they can be listed without walking the directory tree.
+ * <p>
+ * The catalog is kept in memory and in an append-only file in the base directory, where each record is an operation
+ * byte followed by the series id. The file is rewritten when it holds too many removed ids, and is rebuilt from the
+ * directory tree if it is missing. The corruption scan cross-checks it against the series directories.
+ */
+class SeriesCatalog {
+    private static final Logger logger = LoggerFactory.getLogger(SeriesCatalog.class.getName());
+
+    private static final String FILENAME = "series.cat";
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+
+    private final File baseDir;
+    private final File file;
+    private final File newFile;
+    private final TreeSet<String> ids = new TreeSet<>();
+
+    /**
+     * The number of records in the file.
+     */
+    private int records;
+
+    SeriesCatalog(File baseDir) {
+        this.baseDir = baseDir;
+        file = new File(baseDir, FILENAME);
+        newFile = new File(baseDir, FILENAME + ".new");
+    }
+
+    synchronized void load() throws IOException {
+        ids.clear();
+        records = 0;
+
+        if (!file.exists()) {
+            if (newFile.exists()) {
+                // A rewrite was interrupted after the old file was deleted.
+                Utils.renameWithRetry(newFile, file);
+            } else {
+                long start = System.currentTimeMillis();
+                scan();
+                rewrite();
+                logger.info("Series catalog built in " + (System.currentTimeMillis() - start) + "ms with "
+                        + ids.size() + " series");
+                return;
+            }
+        }
+
+        boolean truncated = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+                String id = in.readUTF();
+                if (op == ADD) {
+                    ids.add(id);
+                } else if (op == REMOVE) {
+                    ids.remove(id);
+                } else {
+                    truncated = true;
+                    break;
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            truncated = true;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+
+        if (truncated) {
+            logger.warn("Series catalog " + file + " is damaged. Keeping the " + ids.size() + " series read from it");
+            rewrite();
+        } else if (records > ids.size() * 2 + 1024) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Adds the given series id if it isn't already in the catalog.
+     */
+    synchronized void add(String id) throws IOException {
+        if (ids.add(id)) {
+            try {
+                append(ADD, id);
+            } catch (IOException e) {
+                ids.remove(id);
+                throw e;
+            }
+        }
+    }
+
+    synchronized void remove(String id) throws IOException {
+        if (ids.remove(id)) {
+            try {
+                append(REMOVE, id);
+            } catch (IOException e) {
+                ids.add(id);
+                throw e;
+            }
+            if (records > ids.size() * 2 + 1024) {
+                rewrite();
+            }
+        }
+    }
+
+    synchronized boolean contains(String id) {
+        return ids.contains(id);
+    }
+
+    /**
+     * @return the series ids in sorted order.
+     */
+    synchronized List<String> getIds() {
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * @return the series ids that start with the given prefix in sorted order.
+     */
+    synchronized List<String> getIds(String prefix) {
+        return new ArrayList<>(ids.subSet(prefix, prefix + Character.MAX_VALUE));
+    }
+
+    /**
+     * Replaces the catalog with the given ids if they differ from it.
+     */
+    synchronized void reconcile(Set<String> found) throws IOException {
+        if (!ids.equals(found)) {
+            logger.warn("Series catalog is out of date. Found " + found.size() + " series, catalog had "
+                    + ids.size());
+            ids.clear();
+            ids.addAll(found);
+            rewrite();
+        }
+    }
+
+    /**
+     * @return the id of the series stored in the given directory.
+     */
+    String getSeriesId(File seriesDir) {
+        // Remove the base dir and the top level hash directory.
+        String path = seriesDir.getPath().substring(baseDir.getPath().length() + 1);
+        return path.substring(path.indexOf(File.separatorChar) + 1);
+    }
+
+    //
+    //
+    // Private
+    //
+    private void append(int op, String id) throws IOException {
+        long length = file.length();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            out.write(op);
+            out.writeUTF(id);
+            out.close();
+        } catch (IOException e) {
+            // Cut off what was written of the record, so that later records can still be read.
+            Utils.closeQuietly(out);
+            truncate(length);
+            throw e;
+        }
+        records++;
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            logger.warn("Error while truncating series catalog " + file, e);
+        } finally {
+            Utils.closeQuietly(raf);
+        }
+    }
+
+    private void rewrite() throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+            for (String id : ids) {
+                out.write(ADD);
+                out.writeUTF(id);
+            }
+            out.close();
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        Utils.deleteWithRetry(file);
+        Utils.renameWithRetry(newFile, file);
+        records = ids.size();
+    }
+
+    private void scan() {
+        new SeriesFileWalker() {
+            @Override
+            void file(String seriesId, File file) {
+                if (file.getName().endsWith(".data")) {
+                    ids.add(seriesId);
+                }
+            }
+        }.walk(baseDir);
+    }
+}
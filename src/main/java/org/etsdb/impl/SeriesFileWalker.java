@@ -0,0 +1,33 @@
+package org.etsdb.impl;
+
+import java.io.File;
+
+/**
+ * Walks the series directories below the base directory, and passes each file in them to {@link #file} along with
+ * the id of its series. The series id is the path of the directory below the top level hash directory.
+ */
+abstract class SeriesFileWalker {
+    void walk(File baseDir) {
+        walk(baseDir, -1);
+    }
+
+    /**
+     * Called with each file in a series directory.
+     */
+    abstract void file(String seriesId, File file);
+
+    private void walk(File dir, int subPos) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            if (f.isDirectory()) {
+                walk(f, subPos == -1 ? f.getPath().length() + 1 : subPos);
+            } else if (subPos != -1 && f.getParent().length() > subPos) {
+                file(f.getParent().substring(subPos), f);
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.etsdb.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The summaries of all shards of a series, so that its time range and row counts can be answered without reading
+ * shard files.
+ * <p>
+ * The summaries are kept in memory while the series is in use, and are saved to a file in the series directory when
+ * none of its shards are open. The file is deleted on the first change after it was loaded or saved, so that a crash
+ * can't leave a file that doesn't match the shards. If there is no file when the series is loaded, the shards found
+ * in the directory are summarized from their data files as they are needed.
+ */
+class SeriesSummary {
+    private static final Logger logger = LoggerFactory.getLogger(SeriesSummary.class.getName());
+
+    static final String FILENAME = "series.sum";
+    private static final int VERSION = 1;
+
+    private final DatabaseImpl<?> db;
+    private final File file;
+    private final File newFile;
+    private final TreeMap<Long, ShardSummary> shards = new TreeMap<>();
+    /**
+     * Shards that are on disk but have not been summarized yet.
+     */
+    private final TreeSet<Long> unknown = new TreeSet<>();
+    /**
+     * The ids of the shards that have rows or files, i.e. of the summarized and unknown shards.
+     */
+    private final TreeSet<Long> shardIds = new TreeSet<>();
+    private int openShards;
+    private boolean dirty;
+
+    SeriesSummary(DatabaseImpl<?> db, File seriesDir) {
+        this.db = db;
+        file = new File(seriesDir, FILENAME);
+        newFile = new File(seriesDir, FILENAME + ".new");
+    }
+
+    /**
+     * @return false if there is no usable file, in which case the caller must add the shards on disk as unknown.
+     */
+    synchronized boolean load() {
+        if (!file.exists()) {
+            return false;
+        }
+
+        boolean loaded = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown version");
+            }
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                long shardId = in.readLong();
+                shards.put(shardId, new ShardSummary(in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+                shardIds.add(shardId);
+            }
+            loaded = true;
+        } catch (IOException e) {
+            logger.warn("Series summary " + file + " is damaged. Rebuilding it: " + e.getMessage());
+            shards.clear();
+            shardIds.clear();
+        } finally {
+            Utils.closeQuietly(in);
+        }
+
+        if (!loaded) {
+            deleteFile();
+        }
+        return loaded;
+    }
+
+    synchronized void addUnknown(long shardId) {
+        if (!shards.containsKey(shardId)) {
+            unknown.add(shardId);
+            shardIds.add(shardId);
+        }
+    }
+
+    /**
+     * @return the ids of the shards that are summarized or known to be on disk, in ascending order.
+     */
+    synchronized List<Long> getShardIds() {
+        return new ArrayList<>(shardIds);
+    }
+
+    /**
+     * @return the ids of the shards in the given range (inclusive) that are summarized or known to be on disk, in
+     * ascending order.
+     */
+    synchronized List<Long> getShardIds(long fromShard, long toShard) {
+        if (fromShard > toShard) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(shardIds.subSet(fromShard, true, toShard, true));
+    }
+
+    /**
+     * @return the id of the oldest shard that is summarized or known to be on disk, or null if there are none.
+     */
+    synchronized Long getFirstShardId() {
+        return shardIds.isEmpty() ? null : shardIds.first();
+    }
+
+    synchronized boolean isEmpty() {
+        return shardIds.isEmpty();
+    }
+
+    /**
+     * @return the summary of the given shard, or null if it hasn't been summarized.
+     */
+    synchronized ShardSummary get(long shardId) {
+        return shards.get(shardId);
+    }
+
+    /**
+     * Sets the summary of a shard that was summarized from its files, or that has none.
+     */
+    synchronized void put(long shardId, ShardSummary summary) {
+        changed();
+        unknown.remove(shardId);
+        shards.put(shardId, summary);
+        shardIds.add(shardId);
+    }
+
+    synchronized void remove(long shardId) {
+        if (shardIds.remove(shardId)) {
+            shards.remove(shardId);
+            unknown.remove(shardId);
+            changed();
+        }
+    }
+
+    void add(ShardSummary summary, long ts) {
+        changed();
+        summary.add(ts);
+    }
+
+    void subtract(ShardSummary summary, long count) {
+        changed();
+        summary.subtract(count);
+    }
+
+    void setSize(ShardSummary summary, long size) {
+        if (summary.getSize() != size) {
+            changed();
+            summary.setSize(size);
+        }
+    }
+
+    void set(ShardSummary summary, ShardSummary values) {
+        changed();
+        summary.set(values);
+    }
+
+    /**
+     * Called when a shard of the series is opened. Summaries only change while a shard is open, or while the series
+     * holds its shard lookup lock.
+     */
+    synchronized void opened() {
+        openShards++;
+    }
+
+    /**
+     * Called when a shard of the series is closed. The summaries are saved when the last one is closed.
+     */
+    synchronized void closed() {
+        openShards--;
+        saveIfIdle();
+    }
+
+    /**
+     * Saves the summaries if they changed, all of the shards are summarized, and none are open.
+     */
+    synchronized void saveIfIdle() {
+        if (!dirty || openShards > 0 || !unknown.isEmpty()) {
+            return;
+        }
+
+        dirty = false;
+        if (shards.isEmpty()) {
+            // Without shards, there is nothing to save. A missing file is just as quickly loaded.
+            deleteFile();
+            return;
+        }
+
+        try {
+            save();
+        } catch (IOException e) {
+            logger.warn("Failed to save series summary " + file, e);
+            deleteFile();
+        }
+    }
+
+    //
+    //
+    // Private
+    //
+    private synchronized void changed() {
+        if (!dirty) {
+            dirty = true;
+            deleteFile();
+        }
+    }
+
+    private void save() throws IOException {
+        if (!file.getParentFile().exists()) {
+            // The series directory was deleted.
+            return;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(shards.size());
+            for (Map.Entry<Long, ShardSummary> e : shards.entrySet()) {
+                ShardSummary summary = e.getValue();
+                out.writeLong(e.getKey());
+                out.writeLong(summary.getMinTs());
+                out.writeLong(summary.getMaxTs());
+                out.writeLong(summary.getCount());
+                out.writeLong(summary.getSize());
+            }
+            out.close();
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        long before = file.length();
+        Utils.deleteWithRetry(file);
+        Utils.renameWithRetry(newFile, file);
+        db.databaseSize.addAndGet(file.length() - before);
+    }
+
+    private void deleteFile() {
+        long length = file.length();
+        try {
+            Utils.deleteWithRetry(file);
+            db.databaseSize.addAndGet(-length);
+        } catch (IOException e) {
+            logger.warn("Failed to delete series summary " + file, e);
+        }
+    }
+}
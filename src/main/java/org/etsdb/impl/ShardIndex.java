@@ -0,0 +1,270 @@
+package org.etsdb.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A sparse index of the rows in a shard data file. An entry is recorded for the first row or block written after
+ * every INTERVAL bytes of data, holding its (first) time offset and its position in the file. Queries use the index to start
+ * reading close to the requested time instead of at the start of the file.
+ * <p>
+ * The index also records the position from which the data file can be read backwards, i.e. the end of the last record
+ * that was written without a trailer. All records written since version 4 have trailers.
+ * <p>
+ * The index is only a hint. It is always rebuilt from the data file if it is missing or does not match the data file.
+ */
+class ShardIndex {
+    static final int INTERVAL = 4096; // 4K
+    private static final int HEADER_MAGIC = 0x65696478; // "eidx"
+    private static final int HEADER_LENGTH = 12;
+    private static final int ENTRY_LENGTH = 12;
+
+    private final File file;
+
+    private long[] offsets = new long[16];
+    private long[] positions = new long[16];
+    private int size;
+    private long walkableFrom;
+
+    /**
+     * The number of entries that have been written to the index file.
+     */
+    private int persisted;
+    private boolean headerPersisted;
+
+    ShardIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the index file.
+     *
+     * @param dataLength the length of the data file that the index is for
+     * @return false if the index file is missing or does not fit the data file, in which case it needs to be rebuilt.
+     */
+    boolean load(long dataLength) throws IOException {
+        clear();
+        long length = file.length();
+        if (!file.exists() || length < HEADER_LENGTH || (length - HEADER_LENGTH) % ENTRY_LENGTH != 0) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != HEADER_MAGIC) {
+                return false;
+            }
+            walkableFrom = in.readLong();
+            if (walkableFrom < 0 || walkableFrom > dataLength) {
+                clear();
+                return false;
+            }
+
+            int count = (int) ((length - HEADER_LENGTH) / ENTRY_LENGTH);
+            long lastPosition = -1;
+            for (int i = 0; i < count; i++) {
+                long offset = in.readInt() & 0xffffffffL;
+                long position = in.readLong();
+                if (position <= lastPosition || position >= dataLength) {
+                    clear();
+                    return false;
+                }
+                append(offset, position);
+                lastPosition = position;
+            }
+        } catch (EOFException e) {
+            clear();
+            return false;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+
+        persisted = size;
+        headerPersisted = true;
+        return true;
+    }
+
+    /**
+     * Rebuilds the index by reading the entire data file.
+     */
+    void rebuild(File dataFile) throws IOException {
+        clear();
+
+        ChecksumInputStream in = null;
+        try {
+            ScanInfo scanInfo = new ScanInfo();
+            in = new ChecksumInputStream(dataFile);
+            while (true) {
+                long position = in.position();
+                if (!DataShard._readSample(in, scanInfo)) {
+                    // Index what we have so far. The corruption will be reported by whoever reads the rest. Don't let
+                    // anyone read backwards into the unknown part of the file.
+                    walkableFrom = dataFile.length();
+                    break;
+                }
+                if (scanInfo.isEof()) {
+                    break;
+                }
+                if (scanInfo.isRecordStart()) {
+                    add(scanInfo.getOffset(), position);
+                    if (!scanInfo.isTrailed()) {
+                        walkableFrom = in.position();
+                    }
+                }
+            }
+        } catch (BadRowException e) {
+            // As above.
+            walkableFrom = dataFile.length();
+        } finally {
+            Utils.closeQuietly(in);
+        }
+
+        Utils.deleteWithRetry(file);
+        persist();
+    }
+
+    /**
+     * Notes the writing of a row or block. It is only indexed if it is far enough from the last entry.
+     */
+    void add(long offset, long position) {
+        if (size == 0 || position - positions[size - 1] >= INTERVAL) {
+            append(offset, position);
+        }
+    }
+
+    /**
+     * Finds the position in the data file from which a scan for rows at or after the given offset can safely start.
+     */
+    long seek(long fromOffset) {
+        // Binary search for the last entry with an offset less than the given one. All rows before that entry have
+        // offsets that are less than or equal to it.
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] < fromOffset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (found == -1) {
+            return 0;
+        }
+        return positions[found];
+    }
+
+    /**
+     * Finds the position in the data file from which all rows have offsets at or after the given one.
+     *
+     * @return the position, or -1 if there is no such indexed position.
+     */
+    long seekAfter(long toOffset) {
+        // Binary search for the first entry with an offset greater than or equal to the given one.
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] >= toOffset) {
+                found = mid;
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        if (found == -1) {
+            return -1;
+        }
+        return positions[found];
+    }
+
+    /**
+     * @return the position in the data file after which all records have trailers.
+     */
+    long getWalkableFrom() {
+        return walkableFrom;
+    }
+
+    /**
+     * Writes the entries that have not yet been written to the index file. This must only be called after the rows
+     * they refer to have been flushed to the data file.
+     *
+     * @return the number of bytes written.
+     */
+    long persist() throws IOException {
+        if (headerPersisted && persisted == size) {
+            return 0;
+        }
+
+        long written = (long) (size - persisted) * ENTRY_LENGTH;
+        if (!headerPersisted) {
+            written += HEADER_LENGTH;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, headerPersisted)));
+            if (!headerPersisted) {
+                out.writeInt(HEADER_MAGIC);
+                out.writeLong(walkableFrom);
+            }
+            for (int i = persisted; i < size; i++) {
+                out.writeInt((int) offsets[i]);
+                out.writeLong(positions[i]);
+            }
+        } finally {
+            Utils.closeQuietly(out);
+        }
+        persisted = size;
+        headerPersisted = true;
+        return written;
+    }
+
+    /**
+     * Deletes the index file. The in memory entries are cleared too, so the index must be reloaded or rebuilt before
+     * use.
+     */
+    void delete() throws IOException {
+        clear();
+        Utils.deleteWithRetry(file);
+    }
+
+    int size() {
+        return size;
+    }
+
+    long length() {
+        return file.length();
+    }
+
+    private void clear() {
+        size = 0;
+        walkableFrom = 0;
+        persisted = 0;
+        headerPersisted = false;
+    }
+
+    private void append(long offset, long position) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size << 1);
+            positions = Arrays.copyOf(positions, size << 1);
+        }
+        offsets[size] = offset;
+        positions[size] = position;
+        size++;
+    }
+}
@@ -0,0 +1,16 @@
+package org.etsdb.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A checksum input over a shard data file that knows its position in the file.
+ */
+interface ShardInput extends ChecksumInput, Closeable {
+    long position() throws IOException;
+
+    /**
+     * Moves the input to the given position in the file, discarding any partial checksum.
+     */
+    void seek(long position) throws IOException;
+}
@@ -0,0 +1,122 @@
+package org.etsdb.impl;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of the oldest shard of each series, ordered by shard id. Since shard ids are the high bits of the time
+ * stamps, the first entry holds the oldest data in the database. This lets space be reclaimed by dropping the oldest
+ * shards without first asking every series for its time range.
+ * <p>
+ * Only one shard per series is held, so the memory taken is in proportion to the number of series rather than the
+ * number of shards. When the oldest shard of a series is dropped, the caller puts the series back with its next
+ * oldest shard.
+ * <p>
+ * The map is built by walking the database directory the first time it is needed, and is kept up to date as shard
+ * data files are created. Entries may be stale, e.g. after a series was deleted, so users must tolerate shards that
+ * no longer exist.
+ */
+class ShardRetention {
+    private final File baseDir;
+    /**
+     * The series by the id of their oldest shard.
+     */
+    private final TreeMap<Long, Set<String>> shards = new TreeMap<>();
+    /**
+     * The id of the oldest shard by series.
+     */
+    private final Map<String, Long> oldest = new HashMap<>();
+    private boolean loaded;
+
+    ShardRetention(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * Notes that the given series has files for the given shard, e.g. because a data file was created for it.
+     */
+    synchronized void add(String seriesId, long shardId) {
+        if (loaded) {
+            put(seriesId, shardId);
+        }
+    }
+
+    /**
+     * Removes and returns the oldest shard id along with the ids of the series whose oldest shard it is.
+     *
+     * @return the entry, or null if there are no shards.
+     */
+    synchronized Map.Entry<Long, Set<String>> pollOldest() {
+        if (!loaded) {
+            scan();
+            loaded = true;
+        }
+
+        Map.Entry<Long, Set<String>> e = shards.pollFirstEntry();
+        if (e != null) {
+            for (String seriesId : e.getValue()) {
+                oldest.remove(seriesId);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Discards the map so that it is rebuilt from the directory the next time it is needed. Used when series
+     * directories are moved around.
+     */
+    synchronized void reset() {
+        shards.clear();
+        oldest.clear();
+        loaded = false;
+    }
+
+    //
+    //
+    // Private
+    //
+    private void scan() {
+        new SeriesFileWalker() {
+            @Override
+            void file(String seriesId, File file) {
+                String name = file.getName();
+                if (name.endsWith(".data") || name.endsWith(".meta")) {
+                    try {
+                        put(seriesId, Utils.getShardId(name));
+                    } catch (NumberFormatException e) {
+                        // Not a shard file.
+                    }
+                }
+            }
+        }.walk(baseDir);
+    }
+
+    /**
+     * Sets the oldest shard of the series to the given one if it is older than the one it has.
+     */
+    private void put(String seriesId, long shardId) {
+        Long current = oldest.get(seriesId);
+        if (current != null) {
+            if (current <= shardId) {
+                return;
+            }
+            Set<String> ids = shards.get(current);
+            ids.remove(seriesId);
+            if (ids.isEmpty()) {
+                shards.remove(current);
+            }
+        }
+
+        oldest.put(seriesId, shardId);
+        Set<String> ids = shards.get(shardId);
+        if (ids == null) {
+            ids = new HashSet<>();
+            shards.put(shardId, ids);
+        }
+        ids.add(seriesId);
+    }
+}
@@ -0,0 +1,100 @@
+package org.etsdb.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The open shards ordered by when the flush process next needs to look at them: when their queued rows expire, right
+ * away if their queue is too long, or when they will go stale if they are not accessed again. This lets the flush
+ * process visit only the shards that have something to do instead of every open shard.
+ * <p>
+ * Accesses don't reschedule a shard. Instead, a shard that is visited because it might be stale but was accessed in
+ * the meantime is simply scheduled again. A shard has at most one entry, which is replaced when the shard is scheduled
+ * earlier, and removed when the shard is closed, so the schedule never holds more entries than there are open shards.
+ */
+class ShardSchedule {
+    private final TreeSet<Entry> entries = new TreeSet<>();
+    private long sequence;
+
+    /**
+     * Schedules a visit of the given shard at the given time, unless one is already scheduled before then.
+     */
+    void schedule(Series<?> series, DataShard shard, long due) {
+        if (due < shard.nextCheck) {
+            synchronized (this) {
+                if (due < shard.nextCheck) {
+                    if (shard.scheduleEntry != null) {
+                        entries.remove(shard.scheduleEntry);
+                    }
+                    shard.nextCheck = due;
+                    shard.scheduleEntry = new Entry(due, sequence++, series, shard);
+                    entries.add(shard.scheduleEntry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the entry of the given shard, e.g. because it was closed.
+     */
+    synchronized void remove(DataShard shard) {
+        if (shard.scheduleEntry != null) {
+            entries.remove(shard.scheduleEntry);
+            shard.scheduleEntry = null;
+            shard.nextCheck = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Removes and returns the entries that are due at the given time.
+     */
+    synchronized List<Entry> pollDue(long runtime) {
+        List<Entry> due = new ArrayList<>();
+        while (!entries.isEmpty() && entries.first().due <= runtime) {
+            Entry e = entries.pollFirst();
+            e.shard.scheduleEntry = null;
+            e.shard.nextCheck = Long.MAX_VALUE;
+            due.add(e);
+        }
+        return due;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        for (Entry e : entries) {
+            e.shard.scheduleEntry = null;
+            e.shard.nextCheck = Long.MAX_VALUE;
+        }
+        entries.clear();
+    }
+
+    static class Entry implements Comparable<Entry> {
+        final long due;
+        /**
+         * Orders entries that are due at the same time.
+         */
+        final long sequence;
+        final Series<?> series;
+        final DataShard shard;
+
+        Entry(long due, long sequence, Series<?> series, DataShard shard) {
+            this.due = due;
+            this.sequence = sequence;
+            this.series = series;
+            this.shard = shard;
+        }
+
+        @Override
+        public int compareTo(Entry that) {
+            int c = Utils.compareLong(due, that.due);
+            if (c == 0) {
+                c = Utils.compareLong(sequence, that.sequence);
+            }
+            return c;
+        }
+    }
+}
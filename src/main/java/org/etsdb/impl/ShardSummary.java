@@ -0,0 +1,71 @@
+package org.etsdb.impl;
+
+/**
+ * The time bounds, row count and data file length of a shard. Rows in the shard's write queue are included, but
+ * backdates that are waiting to be inserted are not. Changes go through the owning {@link SeriesSummary}.
+ */
+class ShardSummary {
+    private long minTs = Long.MAX_VALUE;
+    private long maxTs = Long.MIN_VALUE;
+    private long count;
+    private long size;
+
+    ShardSummary() {
+    }
+
+    ShardSummary(long minTs, long maxTs, long count, long size) {
+        this.minTs = minTs;
+        this.maxTs = maxTs;
+        this.count = count;
+        this.size = size;
+    }
+
+    synchronized long getMinTs() {
+        return minTs;
+    }
+
+    synchronized long getMaxTs() {
+        return maxTs;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Adds a row with the given time.
+     */
+    synchronized void add(long ts) {
+        if (minTs > ts)
+            minTs = ts;
+        if (maxTs < ts)
+            maxTs = ts;
+        count++;
+    }
+
+    /**
+     * Removes rows that were not at either end of the shard, so the time bounds don't change.
+     */
+    synchronized void subtract(long count) {
+        this.count -= count;
+    }
+
+    synchronized void setSize(long size) {
+        this.size = size;
+    }
+
+    synchronized void set(ShardSummary that) {
+        minTs = that.minTs;
+        maxTs = that.maxTs;
+        count = that.count;
+        size = that.size;
+    }
+}
@@ -0,0 +1,104 @@
+package org.etsdb.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The open shards of a series, keyed by shard id. Lookups read an immutable snapshot of the table without locking, so
+ * any number of threads can find their shards concurrently. Updates copy the snapshot and are synchronized on the
+ * table. Shards are opened and closed far less often than they are looked up, and a series only has a few open at a
+ * time, so the copying is cheap.
+ * <p>
+ * The ids are kept sorted, so lookups are binary searches on a primitive array, and the shards are returned in time
+ * order.
+ */
+class ShardTable {
+    private static final Snapshot EMPTY = new Snapshot(new long[0], new DataShard[0]);
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    DataShard get(long shardId) {
+        Snapshot s = snapshot;
+        int index = Arrays.binarySearch(s.ids, shardId);
+        if (index < 0) {
+            return null;
+        }
+        return s.shards[index];
+    }
+
+    /**
+     * Adds the given shard, replacing any shard with the same id.
+     */
+    synchronized void put(long shardId, DataShard shard) {
+        Snapshot s = snapshot;
+        int index = Arrays.binarySearch(s.ids, shardId);
+        if (index >= 0) {
+            DataShard[] shards = s.shards.clone();
+            shards[index] = shard;
+            snapshot = new Snapshot(s.ids, shards);
+            return;
+        }
+
+        index = -index - 1;
+        int size = s.ids.length;
+        long[] ids = new long[size + 1];
+        DataShard[] shards = new DataShard[size + 1];
+        System.arraycopy(s.ids, 0, ids, 0, index);
+        System.arraycopy(s.shards, 0, shards, 0, index);
+        ids[index] = shardId;
+        shards[index] = shard;
+        System.arraycopy(s.ids, index, ids, index + 1, size - index);
+        System.arraycopy(s.shards, index, shards, index + 1, size - index);
+        snapshot = new Snapshot(ids, shards);
+    }
+
+    /**
+     * Removes the given shard if it is still the one in the table under its id.
+     *
+     * @return true if the shard was removed.
+     */
+    synchronized boolean remove(long shardId, DataShard shard) {
+        Snapshot s = snapshot;
+        int index = Arrays.binarySearch(s.ids, shardId);
+        if (index < 0 || s.shards[index] != shard) {
+            return false;
+        }
+
+        int size = s.ids.length;
+        if (size == 1) {
+            snapshot = EMPTY;
+            return true;
+        }
+
+        long[] ids = new long[size - 1];
+        DataShard[] shards = new DataShard[size - 1];
+        System.arraycopy(s.ids, 0, ids, 0, index);
+        System.arraycopy(s.shards, 0, shards, 0, index);
+        System.arraycopy(s.ids, index + 1, ids, index, size - index - 1);
+        System.arraycopy(s.shards, index + 1, shards, index, size - index - 1);
+        snapshot = new Snapshot(ids, shards);
+        return true;
+    }
+
+    /**
+     * @return the shards in the table at the time of the call, in shard id order.
+     */
+    List<DataShard> values() {
+        return Collections.unmodifiableList(Arrays.asList(snapshot.shards));
+    }
+
+    boolean isEmpty() {
+        return snapshot.ids.length == 0;
+    }
+
+    private static class Snapshot {
+        final long[] ids;
+        final DataShard[] shards;
+
+        Snapshot(long[] ids, DataShard[] shards) {
+            this.ids = ids;
+            this.shards = shards;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.etsdb.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The deleted time ranges of a shard. Each tombstone deletes the rows with offsets in its range (inclusive) that were
+ * written before it, i.e. that start before its position limit in the data file. Rows written after the delete are not
+ * affected.
+ * <p>
+ * Tombstones are kept in a small sidecar file. They are applied physically, and the file deleted, whenever the data
+ * file is rewritten.
+ */
+class Tombstones {
+    /**
+     * The number of tombstones above which they should be applied to the data file.
+     */
+    static final int MAX_SIZE = 32;
+    private static final int ENTRY_LENGTH = 16;
+
+    private final File file;
+    private final File newFile;
+
+    private long[] froms = new long[4];
+    private long[] tos = new long[4];
+    private long[] limits = new long[4];
+    private int size;
+
+    Tombstones(File file) {
+        this.file = file;
+        newFile = new File(file.getParentFile(), file.getName() + ".new");
+    }
+
+    void load() throws IOException {
+        size = 0;
+        if (!file.exists()) {
+            if (!newFile.exists()) {
+                return;
+            }
+            // A save was interrupted after the old file was deleted.
+            Utils.renameWithRetry(newFile, file);
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int count = (int) (file.length() / ENTRY_LENGTH);
+            for (int i = 0; i < count; i++) {
+                long from = in.readInt() & 0xffffffffL;
+                long to = in.readInt() & 0xffffffffL;
+                append(from, to, in.readLong());
+            }
+        } catch (EOFException e) {
+            // Can't happen, because the count was determined from the file length.
+            throw new IOException("Unexpected EOF in " + file.getPath(), e);
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Adds a tombstone, and writes the tombstones to the file.
+     *
+     * @param positionLimit the length of the data file when the rows were deleted.
+     */
+    void add(long from, long to, long positionLimit) throws IOException {
+        // Drop the tombstones that the new one covers.
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (froms[i] < from || tos[i] > to || limits[i] > positionLimit) {
+                froms[j] = froms[i];
+                tos[j] = tos[i];
+                limits[j] = limits[i];
+                j++;
+            }
+        }
+        size = j;
+        append(from, to, positionLimit);
+        save();
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long length() {
+        return file.length();
+    }
+
+    /**
+     * @param position the position in the data file of the row or block that holds the row.
+     * @return true if the row with the given offset at the given position is deleted.
+     */
+    boolean isDeleted(long offset, long position) {
+        for (int i = 0; i < size; i++) {
+            if (offset >= froms[i] && offset <= tos[i] && position < limits[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the end of the range that is deleted from the start of the shard, or -1 if there is no such range.
+     */
+    long getPrefixEnd() {
+        long end = -1;
+        for (int i = 0; i < size; i++) {
+            if (froms[i] == 0 && tos[i] > end) {
+                end = tos[i];
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Deletes the tombstone file, e.g. after the tombstones have been applied to the data file.
+     */
+    void delete() throws IOException {
+        size = 0;
+        Utils.deleteWithRetry(file);
+        Utils.deleteWithRetry(newFile);
+    }
+
+    //
+    //
+    // Private
+    //
+    private void append(long from, long to, long positionLimit) {
+        if (size == froms.length) {
+            froms = Arrays.copyOf(froms, size << 1);
+            tos = Arrays.copyOf(tos, size << 1);
+            limits = Arrays.copyOf(limits, size << 1);
+        }
+        froms[size] = from;
+        tos[size] = to;
+        limits[size] = positionLimit;
+        size++;
+    }
+
+    private void save() throws IOException {
+        // Write to a new file and rename it, so that a failure can't lose the existing tombstones.
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+            for (int i = 0; i < size; i++) {
+                out.writeInt((int) froms[i]);
+                out.writeInt((int) tos[i]);
+                out.writeLong(limits[i]);
+            }
+            out.close();
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        Utils.deleteWithRetry(file);
+        Utils.renameWithRetry(newFile, file);
+    }
+}
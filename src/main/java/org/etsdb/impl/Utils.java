@@ -4,20 +4,57 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class Utils {
     // This value must have at least one byte.
     static final byte[] SAMPLE_HEADER = {(byte) 0xfe, (byte) 0xed};
+    // Shares the first byte of the sample header, so that readers can tell the two apart with the second byte.
+    static final byte[] BLOCK_HEADER = {(byte) 0xfe, (byte) 0xeb};
+    // Headers of samples and blocks that end with a 2 byte trailer holding the length of the whole record, so that the
+    // file can be read backwards. Only these are written since version 4.
+    static final byte[] TRAILED_SAMPLE_HEADER = {(byte) 0xfe, (byte) 0xee};
+    static final byte[] TRAILED_BLOCK_HEADER = {(byte) 0xfe, (byte) 0xec};
+    static final int TRAILER_LENGTH = 2;
 
     public static final int MAX_DATA_LENGTH = 8192; // 8K
+    static final int MAX_BLOCK_ROWS = 1024;
+    static final int MAX_BLOCK_LENGTH = 32768; // 32K
+    /**
+     * The most bytes that a single sample or block can take in a data file, including headers and checksums.
+     */
+    static final int MAX_RECORD_LENGTH = MAX_BLOCK_LENGTH + 16;
     private static final Logger logger = LoggerFactory.getLogger(Utils.class.getName());
     private static int SHARD_BITS = 30;
     // File IO retries
     private static final int FILE_IO_RETRIES = 30;
     private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
     private static final Date date = new Date(0);
+    // Used to unmap buffers on Java 9+
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object u = null;
+        Method m = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            u = f.get(null);
+        } catch (Exception e) {
+            // Not available before Java 9.
+            m = null;
+        }
+        unsafe = u;
+        invokeCleaner = m;
+    }
 
     public static void setShardBits(int bits) {
         SHARD_BITS = bits;
@@ -109,6 +146,19 @@ public class Utils {
         putCompactLong(out, i & 0xffffffffL);
     }
 
+    /**
+     * @return the number of bytes that writeCompactInt uses for the given value.
+     */
+    static int getCompactIntLength(int i) {
+        long l = i & 0xffffffffL;
+        int length = 1;
+        while (l >= 128) {
+            l >>= 7;
+            length++;
+        }
+        return length;
+    }
+
     public static void putCompactLong(OutputStream out, long l) throws IOException {
         if (l < 0)
             throw new IllegalArgumentException("Cannot store negative numbers");
@@ -260,7 +310,7 @@ public class Utils {
 
     public static long read4ByteUnsigned(Input in) throws IOException {
         long l = 0;
-        l |= (in.read() & 0xff) << 24;
+        l |= (long) (in.read() & 0xff) << 24;
         l |= (in.read() & 0xff) << 16;
         l |= (in.read() & 0xff) << 8;
         l |= in.read() & 0xff;
@@ -289,4 +339,33 @@ public class Utils {
         System.arraycopy(data, off, b, 0, len);
         return b;
     }
+
+    /**
+     * Releases the memory mapping of the given buffer immediately instead of waiting for the buffer to be garbage
+     * collected. The buffer must not be used afterwards. If the mapping can't be released explicitly on this JVM it is
+     * left to the garbage collector.
+     *
+     * @return true if the mapping was released.
+     */
+    public static boolean unmap(MappedByteBuffer buf) {
+        try {
+            if (unsafe != null) {
+                // Java 9+
+                invokeCleaner.invoke(unsafe, buf);
+            } else {
+                // Java 7 and 8
+                Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buf);
+                if (cleaner == null) {
+                    return false;
+                }
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            return true;
+        } catch (Exception e) {
+            logger.debug("Failed to unmap buffer", e);
+            return false;
+        }
+    }
 }
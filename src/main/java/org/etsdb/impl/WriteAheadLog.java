@@ -0,0 +1,192 @@
+package org.etsdb.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A log of the writes that are held in the write queue, so that they survive a crash. All queued rows are appended
+ * to a single segment file in the base directory, along with the deletes that affect them. The log is replayed into
+ * the shards when the database is opened.
+ * <p>
+ * The flush process rolls over to a new segment on every run, and deletes the segments that no longer hold rows that
+ * are waiting in a shard's queue. To tell which those are without visiting the shards, the log counts for each segment
+ * the shards whose oldest queued row was logged to it. Each record is followed by a checksum, so that a record that was only partially
+ * written by a crash is detected on replay.
+ */
+class WriteAheadLog {
+    private static final String SUFFIX = ".wal";
+    private static final int WRITE = 1;
+    private static final int DELETE = 2;
+
+    private final SegmentFiles segments;
+    private final AtomicLong databaseSize;
+    /**
+     * The number of shards whose oldest queued row was logged to each segment.
+     */
+    private final TreeMap<Long, Integer> queuedShards = new TreeMap<>();
+    private long segment;
+    private ChecksumOutputStream out;
+    private FileChannel channel;
+    private long accountedLength;
+    private boolean dirty;
+
+    WriteAheadLog(File baseDir, AtomicLong databaseSize) {
+        segments = new SegmentFiles(baseDir, SUFFIX, "Write-ahead log", databaseSize);
+        this.databaseSize = databaseSize;
+    }
+
+    /**
+     * Reads all existing segments, and moves on to a new segment for subsequent records.
+     *
+     * @return the number of records that were read.
+     */
+    synchronized int replay(final ReplayCallback cb) throws IOException {
+        SegmentFiles.RecordReader reader = new SegmentFiles.RecordReader() {
+            @Override
+            public void read(int type, long position, ChecksumInput in) throws IOException {
+                String seriesId = SegmentFiles.readId(in);
+                if (type == WRITE) {
+                    long ts = SegmentFiles.readLong(in);
+                    byte[] data = SegmentFiles.readBytes(in, Utils.readCompactInt(in));
+                    SegmentFiles.checkSum(in);
+                    cb.write(seriesId, ts, data);
+                } else if (type == DELETE) {
+                    long fromTs = SegmentFiles.readLong(in);
+                    long toTs = SegmentFiles.readLong(in);
+                    SegmentFiles.checkSum(in);
+                    cb.delete(seriesId, fromTs, toTs);
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+        };
+
+        int records = 0;
+        for (long s : segments.getSegments()) {
+            records += segments.read(s, reader);
+            segment = s + 1;
+        }
+        return records;
+    }
+
+    /**
+     * Logs a row that was added to the queue of the given shard. Must be called with the shard's write lock held.
+     */
+    synchronized void write(DataShard shard, String seriesId, long ts, byte[] data, int off, int len)
+            throws IOException {
+        openOut();
+        out.write(WRITE);
+        SegmentFiles.writeId(out, seriesId);
+        SegmentFiles.writeLong(out, ts);
+        Utils.writeCompactInt(out, len);
+        out.write(data, off, len);
+        out.writeSum();
+        dirty = true;
+        if (shard.getWalSegment() == Long.MAX_VALUE) {
+            shard.setWalSegment(segment);
+            Integer count = queuedShards.get(segment);
+            queuedShards.put(segment, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Called when a shard's queue is emptied, with the segment its oldest queued row was logged to.
+     */
+    synchronized void release(long s) {
+        Integer count = queuedShards.get(s);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            queuedShards.put(s, count - 1);
+        } else {
+            queuedShards.remove(s);
+        }
+    }
+
+    /**
+     * Logs a delete of the rows of a series in the given time range (inclusive).
+     */
+    synchronized void delete(String seriesId, long fromTs, long toTs) throws IOException {
+        openOut();
+        out.write(DELETE);
+        SegmentFiles.writeId(out, seriesId);
+        SegmentFiles.writeLong(out, fromTs);
+        SegmentFiles.writeLong(out, toTs);
+        out.writeSum();
+        dirty = true;
+    }
+
+    /**
+     * Writes the logged records to the segment file, optionally forcing it to the storage device.
+     */
+    synchronized void commit(boolean force) throws IOException {
+        if (dirty) {
+            dirty = false;
+            out.flush();
+            databaseSize.addAndGet(out.position() - accountedLength);
+            accountedLength = out.position();
+            if (force) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment if it has any records, so that subsequent records go to a new one, and deletes the
+     * segments before the oldest one that holds rows that are still queued.
+     */
+    synchronized void roll() throws IOException {
+        if (out != null) {
+            closeOut();
+            segment++;
+        }
+
+        long oldest = queuedShards.isEmpty() ? segment : Math.min(segment, queuedShards.firstKey());
+        for (long s : segments.getSegments()) {
+            if (s >= oldest) {
+                break;
+            }
+            segments.delete(s);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            closeOut();
+        }
+    }
+
+    //
+    //
+    // Private
+    //
+    private void openOut() throws IOException {
+        if (out == null) {
+            FileOutputStream fos = new FileOutputStream(segments.getFile(segment), true);
+            channel = fos.getChannel();
+            accountedLength = channel.size();
+            out = new ChecksumOutputStream(fos, accountedLength);
+        }
+    }
+
+    private void closeOut() throws IOException {
+        try {
+            commit(false);
+        } finally {
+            Utils.closeQuietly(out);
+            out = null;
+            channel = null;
+        }
+    }
+
+    interface ReplayCallback {
+        void write(String seriesId, long ts, byte[] data) throws IOException;
+
+        void delete(String seriesId, long fromTs, long toTs) throws IOException;
+    }
+}
@@ -1,10 +1,13 @@
 package org.etsdb.impl;
 
 import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicInteger;
+import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicLong;
 import org.etsdb.DbConfig;
+import org.etsdb.QueueOverflowPolicy;
 
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class WriteQueueInfo {
     final int discardQueueSize;
@@ -13,10 +16,15 @@ class WriteQueueInfo {
     final int shardQueueSizeMinimum;
     final int shardQueueSizeMaximum;
     final int maxQueueSize;
+    final QueueOverflowPolicy overflowPolicy;
+    final int blockTimeout;
 
     final NotifyAtomicInteger queueSize = new NotifyAtomicInteger();
     final AtomicInteger recentDiscards = new AtomicInteger();
+    final NotifyAtomicLong discardCount = new NotifyAtomicLong();
+    final NotifyAtomicLong blockedMillis = new NotifyAtomicLong();
     final Random random = new Random();
+    private final AtomicInteger waiters = new AtomicInteger();
 
     public WriteQueueInfo(DbConfig config) {
         expireMinimum = config.getQueueExpireMinimum();
@@ -25,6 +33,60 @@ class WriteQueueInfo {
         shardQueueSizeMaximum = config.getQueueShardQueueSizeMaximum();
         maxQueueSize = config.getQueueMaxQueueSize();
         discardQueueSize = config.getQueueDiscardQueueSize();
+        overflowPolicy = config.getQueueOverflowPolicy();
+        blockTimeout = config.getQueueBlockTimeout();
+    }
+
+    boolean isFull() {
+        return queueSize.get() >= discardQueueSize;
+    }
+
+    /**
+     * Removes rows from the queue size, waking any writers that are waiting for room.
+     */
+    void remove(int count) {
+        queueSize.addAndGet(-count);
+        if (waiters.get() > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    void discarded(int count) {
+        recentDiscards.addAndGet(count);
+        discardCount.addAndGet(count);
+    }
+
+    /**
+     * Waits until the queue is not full, for at most the block timeout.
+     *
+     * @return true if there is room in the queue.
+     */
+    boolean awaitRoom() {
+        long start = System.currentTimeMillis();
+        long deadline = start + blockTimeout;
+        waiters.incrementAndGet();
+        try {
+            synchronized (this) {
+                while (isFull()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            }
+        } finally {
+            waiters.decrementAndGet();
+            blockedMillis.addAndGet(System.currentTimeMillis() - start);
+        }
     }
 
     public long getExpiryTime() {
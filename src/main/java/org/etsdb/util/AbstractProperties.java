@@ -71,6 +71,19 @@ public abstract class AbstractProperties {
         return defaultValue;
     }
 
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key);
+        if (value == null || "".equals(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            this.LOG.warn("(" + this.description + ") Can't parse long from properties key: " + key + ", value=" + value);
+        }
+        return defaultValue;
+    }
+
     public boolean getBoolean(String key, boolean defaultValue) {
         String value = getString(key);
         if ("".equals(value)) {
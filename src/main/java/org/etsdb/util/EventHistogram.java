@@ -31,8 +31,12 @@ public class EventHistogram {
     }
 
     public void hit() {
+        hit(1);
+    }
+
+    public void hit(int count) {
         update();
-        this.buckets[this.position] += 1;
+        this.buckets[this.position] += count;
     }
 
     public int[] getEventCounts() {
@@ -0,0 +1,114 @@
+package org.etsdb.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackdateLogTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestDatabases.createDir();
+    }
+
+    @After
+    public void tearDown() {
+        TestDatabases.delete(dir);
+    }
+
+    @Test
+    public void releasedRunsAreNotReplayed() throws IOException {
+        BackdateLog log = new BackdateLog(dir, new AtomicLong());
+        List<BackdateLog.Run> runs = log.write(Arrays.asList(run("a", 0, 1, 2), run("b", 0, 3), run("c", 1, 4)));
+        log.release(runs.get(1));
+
+        // The log is not closed, as after a crash.
+        Recorder recorder = new Recorder(null);
+        assertEquals(2, new BackdateLog(dir, new AtomicLong()).replay(recorder));
+        assertEquals(Arrays.asList("a/0:1,2", "c/1:4"), recorder.inserted);
+        assertTrue(TestDatabases.find(dir, ".spill").isEmpty());
+    }
+
+    @Test
+    public void failedRunIsKept() throws IOException {
+        BackdateLog log = new BackdateLog(dir, new AtomicLong());
+        log.write(Arrays.asList(run("a", 0, 1), run("b", 0, 2)));
+        log.write(Arrays.asList(run("a", 0, 3), run("b", 0, 4)));
+
+        // The later run of the failed shard is not inserted ahead of the failed one.
+        Recorder recorder = new Recorder("a");
+        assertEquals(2, new BackdateLog(dir, new AtomicLong()).replay(recorder));
+        assertEquals(Arrays.asList("b/0:2", "b/0:4"), recorder.inserted);
+        assertEquals(2, TestDatabases.find(dir, ".spill").size());
+
+        recorder = new Recorder(null);
+        assertEquals(2, new BackdateLog(dir, new AtomicLong()).replay(recorder));
+        assertEquals(Arrays.asList("a/0:1", "a/0:3"), recorder.inserted);
+        assertTrue(TestDatabases.find(dir, ".spill").isEmpty());
+    }
+
+    @Test
+    public void lastReleaseDeletesSegment() throws IOException {
+        BackdateLog log = new BackdateLog(dir, new AtomicLong());
+        List<BackdateLog.Run> runs = log.write(Arrays.asList(run("a", 0, 1), run("b", 0, 2)));
+        log.release(runs.get(0));
+        assertEquals(1, TestDatabases.find(dir, ".spill").size());
+        assertEquals(Arrays.asList(2), toOffsets(log.read(runs.get(1))));
+        log.release(runs.get(1));
+        assertTrue(TestDatabases.find(dir, ".spill").isEmpty());
+    }
+
+    //
+    //
+    // Private
+    //
+    private static List<Backdate> run(String seriesId, long shardId, int... offsets) {
+        List<Backdate> run = new ArrayList<>();
+        for (int offset : offsets) {
+            byte[] data = {(byte) offset};
+            run.add(new Backdate(seriesId, shardId, offset, data, 0, data.length));
+        }
+        return run;
+    }
+
+    private static List<Integer> toOffsets(List<Backdate> run) {
+        List<Integer> offsets = new ArrayList<>();
+        for (Backdate backdate : run) {
+            offsets.add((int) backdate.getOffset());
+            assertEquals(backdate.getOffset(), backdate.getData()[0]);
+        }
+        return offsets;
+    }
+
+    private static class Recorder implements BackdateLog.ReplayCallback {
+        final String failingSeries;
+        final List<String> inserted = new ArrayList<>();
+
+        Recorder(String failingSeries) {
+            this.failingSeries = failingSeries;
+        }
+
+        @Override
+        public void insert(List<Backdate> run) throws IOException {
+            Backdate first = run.get(0);
+            if (first.getSeriesId().equals(failingSeries)) {
+                throw new IOException("Failed to insert into " + failingSeries);
+            }
+
+            String offsets = toOffsets(run).toString().replace(" ", "");
+            inserted.add(first.getSeriesId() + "/" + first.getShardId() + ":" + offsets.substring(1,
+                    offsets.length() - 1));
+        }
+    }
+}
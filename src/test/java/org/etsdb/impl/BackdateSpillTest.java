@@ -0,0 +1,233 @@
+package org.etsdb.impl;
+
+import org.etsdb.DbConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackdateSpillTest {
+    private static final int ROWS = 10000;
+    /**
+     * Room for 100 backdates of a double.
+     */
+    private static final long MEMORY_LIMIT = 100 * (8 + 64);
+
+    private final List<File> dirs = new ArrayList<>();
+    private final TreeMap<Long, Double> samples = new TreeMap<>();
+    private DatabaseImpl<Double> db;
+
+    @Before
+    public void setUp() throws IOException {
+        dirs.add(TestDatabases.createDir());
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        for (int i = 0; i < ROWS; i++) {
+            db.write("s", i * 2, (double) i);
+            samples.put((long) i * 2, (double) i);
+        }
+        db.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (db != null) {
+            db.close();
+        }
+        for (File dir : dirs) {
+            TestDatabases.delete(dir);
+        }
+    }
+
+    @Test
+    public void replaySpilledRuns() throws Exception {
+        db = TestDatabases.open(dirs.get(0), createConfig(600000));
+        Random random = new Random(5);
+        for (int i = 0; i < 1000; i++) {
+            backdate(random.nextInt(ROWS) * 2 + 1, random.nextInt());
+            if (i % 100 == 99) {
+                awaitSpill();
+            }
+        }
+        assertTrue(TestDatabases.find(dirs.get(0), ".spill").size() >= 10);
+
+        // Backdates that were still in memory are lost in a crash.
+        TreeMap<Long, Double> spilled = new TreeMap<>(samples);
+        for (int i = 0; i < 50; i++) {
+            backdate(random.nextInt(ROWS) * 2 + 1, random.nextInt());
+        }
+        File crashed = crash();
+
+        db = TestDatabases.open(crashed, createConfig(0));
+        assertTrue(TestDatabases.find(crashed, ".spill").isEmpty());
+        check(spilled);
+        db.close();
+
+        // The replayed backdates were inserted, so there is nothing more to replay.
+        db = TestDatabases.open(crashed, createConfig(0));
+        check(spilled);
+    }
+
+    @Test
+    public void damagedRunIsKept() throws Exception {
+        db = TestDatabases.open(dirs.get(0), createConfig(600000));
+        for (int i = 0; i < 300; i++) {
+            backdate(i * 2 + 1, i);
+            if (i % 100 == 99) {
+                awaitSpill();
+            }
+        }
+
+        File segment = new File(dirs.get(0), "0.spill");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+        long length = segment.length();
+
+        // The posters fail to read the first run, and keep its segment for the next open. The later runs of the shard
+        // are kept behind it.
+        db.close();
+        db = null;
+        assertEquals(length, segment.length());
+        assertEquals(3, TestDatabases.find(dirs.get(0), ".spill").size());
+
+        // The run was damaged at its end, so none of it can be inserted. The other runs were.
+        db = TestDatabases.open(dirs.get(0), createConfig(0));
+        assertTrue(TestDatabases.find(dirs.get(0), ".spill").isEmpty());
+        assertEquals(ROWS + 200, db.count("s", 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void laterBackdatesStayBehindFailedRun() throws Exception {
+        db = TestDatabases.open(dirs.get(0), createConfig(600000));
+        for (int i = 0; i < 100; i++) {
+            backdate(i * 2 + 1, i);
+        }
+        awaitSpill();
+        // Newer values at the same times, spilled and in memory.
+        for (int i = 0; i < 100; i++) {
+            backdate(i * 2 + 1, -i);
+        }
+        awaitSpill();
+        for (int i = 0; i < 50; i++) {
+            backdate(i * 2 + 1, i + 1000);
+        }
+
+        // The posters can't read the first run while its segment is moved away, and give up on it.
+        File segment = new File(dirs.get(0), "0.spill");
+        File moved = new File(dirs.get(0), "0.spill.moved");
+        assertTrue(segment.renameTo(moved));
+        db.close();
+        db = null;
+        assertTrue(moved.renameTo(segment));
+        assertEquals(3, TestDatabases.find(dirs.get(0), ".spill").size());
+
+        // The first run is inserted before the newer values, rather than over them.
+        db = TestDatabases.open(dirs.get(0), createConfig(0));
+        assertTrue(TestDatabases.find(dirs.get(0), ".spill").isEmpty());
+        check(samples);
+    }
+
+    @Test
+    public void spillWhilePosting() throws Exception {
+        db = TestDatabases.open(dirs.get(0), createConfig(0));
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        final List<TreeMap<Long, Double>> models = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final String seriesId = "t" + t;
+            final TreeMap<Long, Double> model = new TreeMap<>();
+            models.add(model);
+            db.write(seriesId, ROWS * 2, 0.0);
+            model.put((long) ROWS * 2, 0.0);
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 5000; i++) {
+                            long ts = random.nextInt(ROWS * 2);
+                            double value = random.nextInt();
+                            db.write(seriesId, ts, value);
+                            model.put(ts, value);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+        db.close();
+
+        db = TestDatabases.open(dirs.get(0), createConfig(0));
+        assertTrue(TestDatabases.find(dirs.get(0), ".spill").isEmpty());
+        for (int t = 0; t < models.size(); t++) {
+            assertEquals(TestDatabases.expect(models.get(t), 0, Long.MAX_VALUE, Integer.MAX_VALUE, false),
+                    TestDatabases.query(db, "t" + t, 0, Long.MAX_VALUE, Integer.MAX_VALUE, false));
+        }
+    }
+
+    //
+    //
+    // Private
+    //
+    private static DbConfig createConfig(int startDelay) {
+        DbConfig config = TestDatabases.createConfig();
+        config.setBackdateMemoryLimit(MEMORY_LIMIT);
+        config.setBackdateStartDelay(startDelay);
+        return config;
+    }
+
+    private void backdate(long ts, double value) {
+        db.write("s", ts, value);
+        samples.put(ts, value);
+    }
+
+    /**
+     * Waits for the spiller to write the backdates in memory. The posters must not be running.
+     */
+    private void awaitSpill() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (db.getBackdateMemory() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private File crash() throws IOException {
+        File crashed = TestDatabases.crash(dirs.get(0));
+        dirs.add(crashed);
+        db.close();
+        db = null;
+        return crashed;
+    }
+
+    private void check(TreeMap<Long, Double> expected) {
+        for (boolean reverse : new boolean[] {false, true}) {
+            assertEquals(TestDatabases.expect(expected, 0, Long.MAX_VALUE, Integer.MAX_VALUE, reverse),
+                    TestDatabases.query(db, "s", 0, Long.MAX_VALUE, Integer.MAX_VALUE, reverse));
+        }
+        assertEquals(expected.size(), db.count("s", 0, Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,200 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockEncoderTest {
+    private final Random random = new Random(2);
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("block", ".data");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void steadyDoubles() throws IOException {
+        List<Row> rows = new ArrayList<>();
+        double value = 20;
+        for (int i = 0; i < 1000; i++) {
+            value += random.nextInt(3) - 1;
+            rows.add(new Row(i * 1000, toBytes(value)));
+        }
+        roundTrip(rows);
+    }
+
+    @Test
+    public void irregularRows() throws IOException {
+        List<Row> rows = new ArrayList<>();
+        long offset = random.nextInt(1000);
+        byte[] prev = new byte[0];
+        for (int i = 0; i < 1000; i++) {
+            // Steady, irregular, and zero deltas, so that the delta-of-deltas are positive, negative and zero.
+            offset += i % 3 == 0 ? 1000 : random.nextInt(100000);
+            byte[] data;
+            switch (random.nextInt(5)) {
+                case 0:
+                    // The same data.
+                    data = prev;
+                    break;
+                case 1:
+                    // A different length.
+                    data = new byte[random.nextInt(40)];
+                    random.nextBytes(data);
+                    break;
+                case 2:
+                    // More than 15 leading bytes that are the same.
+                    data = prev.length > 20 ? prev.clone() : new byte[30];
+                    data[data.length - 1]++;
+                    break;
+                case 3:
+                    // More than 16 significant bytes.
+                    data = new byte[prev.length > 20 ? prev.length : 30];
+                    random.nextBytes(data);
+                    break;
+                default:
+                    data = prev.clone();
+                    if (data.length > 0) {
+                        data[random.nextInt(data.length)] ^= 0x55;
+                    }
+                    break;
+            }
+            rows.add(new Row(offset, data));
+            prev = data;
+        }
+        roundTrip(rows);
+    }
+
+    @Test
+    public void fullBlocks() throws IOException {
+        BlockEncoder block = new BlockEncoder();
+        int rows = 0;
+        while (block.hasRoom(1)) {
+            block.add(rows, new byte[] {(byte) rows}, 0, 1);
+            rows++;
+        }
+        assertEquals(Utils.MAX_BLOCK_ROWS, rows);
+
+        block.clear();
+        byte[] data = new byte[Utils.MAX_DATA_LENGTH];
+        rows = 0;
+        while (block.hasRoom(data.length)) {
+            random.nextBytes(data);
+            block.add(rows, data, 0, data.length);
+            rows++;
+        }
+        assertEquals(Utils.MAX_BLOCK_LENGTH / Utils.MAX_DATA_LENGTH - 1, rows);
+    }
+
+    @Test
+    public void damagedBlock() throws IOException {
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(new Row(i, toBytes(i)));
+        }
+        write(rows);
+
+        byte[] b = Files.readAllBytes(file.toPath());
+        b[b.length / 2] ^= 1;
+        Files.write(file.toPath(), b);
+
+        ChecksumInputStream in = new ChecksumInputStream(file);
+        try {
+            in.read();
+            in.read();
+            assertFalse(new BlockDecoder().read(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    //
+    //
+    // Private
+    //
+    private void roundTrip(List<Row> rows) throws IOException {
+        write(rows);
+
+        List<Row> read = new ArrayList<>();
+        ChecksumInputStream in = new ChecksumInputStream(file);
+        try {
+            BlockDecoder block = new BlockDecoder();
+            ByteArrayBuilder data = new ByteArrayBuilder();
+            while (in.read() != -1) {
+                assertEquals(Utils.TRAILED_BLOCK_HEADER[1], (byte) in.read());
+                assertTrue(block.read(in));
+                int trailer = (in.read() << 8) | in.read();
+                assertEquals(block.getRecordLength(), trailer);
+                in.resetSum();
+                while (block.hasNext()) {
+                    data.clear();
+                    long offset = block.next(data);
+                    byte[] b = new byte[data.getAvailable()];
+                    data.get(b);
+                    read.add(new Row(offset, b));
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        assertEquals(rows.size(), read.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals("row " + i, rows.get(i).offset, read.get(i).offset);
+            assertArrayEquals("row " + i, rows.get(i).data, read.get(i).data);
+        }
+    }
+
+    private void write(List<Row> rows) throws IOException {
+        ChecksumOutputStream out = new ChecksumOutputStream(new FileOutputStream(file));
+        try {
+            BlockEncoder block = new BlockEncoder();
+            for (Row row : rows) {
+                if (!block.hasRoom(row.data.length)) {
+                    block.write(out);
+                }
+                block.add(row.offset, row.data, 0, row.data.length);
+            }
+            block.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] toBytes(double value) {
+        ByteArrayBuilder b = new ByteArrayBuilder();
+        b.putDouble(value);
+        return Arrays.copyOf(b.getBuffer(), b.getAvailable());
+    }
+
+    static class Row {
+        final long offset;
+        final byte[] data;
+
+        Row(long offset, byte[] data) {
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.etsdb.impl;
+
+import org.etsdb.DbConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Inserts the same backdates into a database that appends them to overlays and into one that rewrites the shards,
+ * and checks that both return the same samples.
+ */
+public class OverlayTest {
+    private static final String SERIES = "s";
+    private static final long SHARD1 = Utils.getTimestamp(1, 0);
+    private static final long END = SHARD1 + 40000;
+
+    private final TreeMap<Long, Double> samples = new TreeMap<>();
+    private final Random random = new Random(1);
+    private File overlayDir;
+    private File rewriteDir;
+    private DatabaseImpl<Double> overlay;
+    private DatabaseImpl<Double> rewrite;
+
+    @Before
+    public void setUp() throws IOException {
+        overlayDir = TestDatabases.createDir();
+        rewriteDir = TestDatabases.createDir();
+        overlay = TestDatabases.open(overlayDir, createConfig(1024 * 1024));
+        rewrite = TestDatabases.open(rewriteDir, createConfig(0));
+        for (long ts = 0; ts < 40000; ts += 2) {
+            write(ts, ts);
+            write(SHARD1 + ts, ts);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        overlay.close();
+        rewrite.close();
+        TestDatabases.delete(overlayDir);
+        TestDatabases.delete(rewriteDir);
+    }
+
+    @Test
+    public void overlayMatchesRewrite() throws IOException {
+        reopen(1024 * 1024);
+        long dataLength = getLength(overlayDir, ".data");
+        backdates(2000);
+        reopen(1024 * 1024);
+
+        assertEquals(dataLength, getLength(overlayDir, ".data"));
+        assertEquals(2, TestDatabases.find(overlayDir, ".ovl").size());
+        assertTrue(TestDatabases.find(rewriteDir, ".ovl").isEmpty());
+        check();
+
+        // Deletes over rows that are only in the overlay, and rows that the overlay replaces.
+        for (int i = 0; i < 20; i++) {
+            long from = randomTs();
+            long to = from + random.nextInt(i < 2 ? 10000 : 200);
+            long expected = samples.subMap(from, true, to, true).size();
+            assertEquals(expected, overlay.delete(SERIES, from, to));
+            assertEquals(expected, rewrite.delete(SERIES, from, to));
+            samples.subMap(from, true, to, true).clear();
+        }
+        check();
+
+        backdates(500);
+        reopen(1024 * 1024);
+        check();
+    }
+
+    @Test
+    public void mergedOverlayMatchesRewrite() throws IOException {
+        backdates(2000);
+        reopen(1000);
+        backdates(100);
+        reopen(1000);
+
+        for (File file : TestDatabases.find(overlayDir, ".ovl")) {
+            assertTrue(file + " was not merged", file.length() <= 1000);
+        }
+        check();
+    }
+
+    //
+    //
+    // Private
+    //
+    private static DbConfig createConfig(long overlayMergeSize) {
+        DbConfig config = TestDatabases.createConfig();
+        config.setOverlayMergeSize(overlayMergeSize);
+        return config;
+    }
+
+    private void write(long ts, double value) {
+        overlay.write(SERIES, ts, value);
+        rewrite.write(SERIES, ts, value);
+        samples.put(ts, value);
+    }
+
+    private void backdates(int count) {
+        for (int i = 0; i < count; i++) {
+            write(randomTs(), random.nextInt(1000000));
+        }
+    }
+
+    /**
+     * @return a time before the last sample of one of the shards.
+     */
+    private long randomTs() {
+        return (random.nextBoolean() ? 0 : SHARD1) + random.nextInt(39990);
+    }
+
+    /**
+     * Closes the databases, which inserts the waiting backdates, and opens them again.
+     */
+    private void reopen(long overlayMergeSize) throws IOException {
+        overlay.close();
+        rewrite.close();
+        overlay = TestDatabases.open(overlayDir, createConfig(overlayMergeSize));
+        rewrite = TestDatabases.open(rewriteDir, createConfig(0));
+    }
+
+    private void check() {
+        for (boolean reverse : new boolean[] {false, true}) {
+            assertEquals(TestDatabases.expect(samples, 0, END, Integer.MAX_VALUE, reverse),
+                    TestDatabases.query(overlay, SERIES, 0, END, Integer.MAX_VALUE, reverse));
+            assertEquals(TestDatabases.query(rewrite, SERIES, 0, END, Integer.MAX_VALUE, reverse),
+                    TestDatabases.query(overlay, SERIES, 0, END, Integer.MAX_VALUE, reverse));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            long from = randomTs();
+            long to = from + (long) (random.nextDouble() * (random.nextBoolean() ? 500 : 50000));
+            int limit = random.nextBoolean() ? Integer.MAX_VALUE : 1 + random.nextInt(50);
+            boolean reverse = random.nextBoolean();
+            String range = from + "-" + to + " limit " + limit + " reverse " + reverse;
+            assertEquals(range, TestDatabases.expect(samples, from, to, limit, reverse),
+                    TestDatabases.query(overlay, SERIES, from, to, limit, reverse));
+            assertEquals(range, TestDatabases.query(rewrite, SERIES, from, to, limit, reverse),
+                    TestDatabases.query(overlay, SERIES, from, to, limit, reverse));
+            assertEquals(range, samples.subMap(from, to).size(), overlay.count(SERIES, from, to));
+        }
+        assertEquals(samples.size(), overlay.count(SERIES, 0, Long.MAX_VALUE));
+        assertEquals(samples.size(), rewrite.count(SERIES, 0, Long.MAX_VALUE));
+    }
+
+    private static long getLength(File dir, String suffix) {
+        long length = 0;
+        for (File file : TestDatabases.find(dir, suffix)) {
+            length += file.length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,166 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.DbConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Queries a shard whose data file holds legacy rows, which can only be read forwards, along with trailed rows and
+ * blocks, which can be walked backwards.
+ */
+public class ReverseQueryTest {
+    private static final String SERIES = "s";
+
+    private final TreeMap<Long, Double> samples = new TreeMap<>();
+    private final Random random = new Random(4);
+    private File dir;
+    private DatabaseImpl<Double> db;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestDatabases.createDir();
+
+        File seriesDir = Utils.getSeriesDir(dir, SERIES);
+        seriesDir.mkdirs();
+        ChecksumOutputStream out = new ChecksumOutputStream(new FileOutputStream(new File(seriesDir, "0.data")));
+        try {
+            long ts = 0;
+            for (int i = 0; i < 100; i++) {
+                writeLegacy(out, ts += 2);
+            }
+            for (int i = 0; i < 100; i++) {
+                writeTrailed(out, ts += 2);
+            }
+            BlockEncoder block = new BlockEncoder();
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 100; j++) {
+                    ts += 2;
+                    block.add(ts, toBytes(ts), 0, 8);
+                    samples.put(ts, (double) ts);
+                }
+                block.write(out);
+            }
+            for (int i = 0; i < 100; i++) {
+                writeLegacy(out, ts += 2);
+            }
+            for (int i = 0; i < 100; i++) {
+                writeTrailed(out, ts += 2);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (db != null) {
+            db.close();
+        }
+        TestDatabases.delete(dir);
+    }
+
+    @Test
+    public void mixedRecords() throws IOException {
+        check(false, false);
+    }
+
+    @Test
+    public void mixedRecordsMapped() throws IOException {
+        check(true, false);
+    }
+
+    /**
+     * The appended rows are queried while they are still in the write queue.
+     */
+    @Test
+    public void mixedRecordsQueued() throws IOException {
+        check(false, true);
+    }
+
+    //
+    //
+    // Private
+    //
+    private void check(boolean mapped, boolean queue) throws IOException {
+        DbConfig config = TestDatabases.createConfig();
+        config.setMappedReads(mapped);
+        config.setUseWriteQueue(queue);
+        db = TestDatabases.open(dir, config);
+        checkQueries();
+
+        // Appended rows and a backdate.
+        for (long ts = samples.lastKey() + 3; ts < 1600; ts += 3) {
+            db.write(SERIES, ts, (double) -ts);
+            samples.put(ts, (double) -ts);
+        }
+        if (queue) {
+            checkQueries();
+        }
+        db.write(SERIES, 101, 1.0);
+        samples.put(101L, 1.0);
+        db.write(SERIES, 500, 2.0);
+        samples.put(500L, 2.0);
+        db.close();
+
+        db = TestDatabases.open(dir, config);
+        checkQueries();
+
+        // Deleted rows in each kind of record.
+        for (long[] range : new long[][] {{50, 60}, {250, 260}, {650, 700}, {1150, 1160}, {1590, 1600}}) {
+            assertEquals(samples.subMap(range[0], true, range[1], true).size(), db.delete(SERIES, range[0], range[1]));
+            samples.subMap(range[0], true, range[1], true).clear();
+        }
+        checkQueries();
+    }
+
+    private void checkQueries() {
+        long end = samples.lastKey() + 1;
+        for (boolean reverse : new boolean[] {false, true}) {
+            assertEquals(TestDatabases.expect(samples, 0, end, Integer.MAX_VALUE, reverse),
+                    TestDatabases.query(db, SERIES, 0, end, Integer.MAX_VALUE, reverse));
+        }
+
+        for (int i = 0; i < 500; i++) {
+            long from = random.nextInt((int) end);
+            long to = from + random.nextInt(random.nextBoolean() ? 20 : 1000);
+            int limit = random.nextBoolean() ? Integer.MAX_VALUE : 1 + random.nextInt(30);
+            boolean reverse = random.nextInt(4) != 0;
+            assertEquals(from + "-" + to + " limit " + limit + " reverse " + reverse,
+                    TestDatabases.expect(samples, from, to, limit, reverse),
+                    TestDatabases.query(db, SERIES, from, to, limit, reverse));
+        }
+        assertEquals(samples.size(), db.count(SERIES, 0, end));
+    }
+
+    private void writeLegacy(ChecksumOutputStream out, long ts) throws IOException {
+        out.write(Utils.SAMPLE_HEADER);
+        Utils.write4ByteUnsigned(out, ts);
+        Utils.writeCompactInt(out, 8);
+        out.write(toBytes(ts));
+        out.writeSum();
+        samples.put(ts, (double) ts);
+    }
+
+    private void writeTrailed(ChecksumOutputStream out, long ts) throws IOException {
+        DataShard._writeSample(out, ts, toBytes(ts), 0, 8);
+        samples.put(ts, (double) ts);
+    }
+
+    private static byte[] toBytes(double value) {
+        ByteArrayBuilder b = new ByteArrayBuilder();
+        TestDatabases.DOUBLES.toByteArray(b, value, 0);
+        byte[] data = new byte[b.getAvailable()];
+        b.get(data);
+        return data;
+    }
+}
@@ -0,0 +1,153 @@
+package org.etsdb.impl;
+
+import org.etsdb.TimeRange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeriesSummaryTest {
+    private static final String SERIES = "s";
+
+    private final List<File> dirs = new ArrayList<>();
+    private final TreeMap<Long, Double> samples = new TreeMap<>();
+    private File summaryFile;
+    private DatabaseImpl<Double> db;
+
+    @Before
+    public void setUp() throws IOException {
+        dirs.add(TestDatabases.createDir());
+        summaryFile = new File(Utils.getSeriesDir(dirs.get(0), SERIES), SeriesSummary.FILENAME);
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        for (int shard = 1; shard < 4; shard++) {
+            for (int i = 0; i < 1000; i++) {
+                write(Utils.getTimestamp(shard, 100 + i * 3), i);
+            }
+        }
+        db.close();
+        db = null;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (db != null) {
+            db.close();
+        }
+        for (File dir : dirs) {
+            TestDatabases.delete(dir);
+        }
+    }
+
+    @Test
+    public void savedOnClose() throws IOException {
+        assertTrue(summaryFile.exists());
+        byte[] saved = Files.readAllBytes(summaryFile.toPath());
+
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        check();
+        db.close();
+        db = null;
+
+        // Nothing changed, so the file is the same.
+        assertArrayEquals(saved, Files.readAllBytes(summaryFile.toPath()));
+    }
+
+    @Test
+    public void rebuiltWithoutFile() throws IOException {
+        Files.delete(summaryFile.toPath());
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        check();
+        db.close();
+        db = null;
+        assertTrue(summaryFile.exists());
+
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        check();
+    }
+
+    @Test
+    public void rebuiltFromDamagedFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(summaryFile, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        check();
+    }
+
+    @Test
+    public void changesAfterCrash() throws IOException {
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        write(Utils.getTimestamp(3, 100000), -1);
+        write(Utils.getTimestamp(5, 0), -1);
+        write(Utils.getTimestamp(2, 101), -1);
+        delete(Utils.getTimestamp(1, 0), Utils.getTimestamp(1, 500));
+
+        // The file was deleted with the first change, so a crash can't leave one that doesn't match the shards.
+        assertFalse(summaryFile.exists());
+        File crashed = TestDatabases.crash(dirs.get(0));
+        dirs.add(crashed);
+        db.close();
+
+        db = TestDatabases.open(crashed, TestDatabases.createConfig());
+        check();
+    }
+
+    @Test
+    public void changes() throws IOException {
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        write(Utils.getTimestamp(0, 5), -1);
+        delete(Utils.getTimestamp(3, 0), Utils.getTimestamp(3, 10000));
+        delete(Utils.getTimestamp(2, 400), Utils.getTimestamp(2, 500));
+        check();
+        db.close();
+
+        db = TestDatabases.open(dirs.get(0), TestDatabases.createConfig());
+        check();
+    }
+
+    //
+    //
+    // Private
+    //
+    private void write(long ts, double value) {
+        db.write(SERIES, ts, value);
+        samples.put(ts, value);
+    }
+
+    private void delete(long fromTs, long toTs) {
+        assertEquals(samples.subMap(fromTs, true, toTs, true).size(), db.delete(SERIES, fromTs, toTs));
+        samples.subMap(fromTs, true, toTs, true).clear();
+    }
+
+    private void check() {
+        TimeRange range = db.getTimeRange(Collections.singletonList(SERIES));
+        assertEquals((long) samples.firstKey(), range.getFrom());
+        assertEquals((long) samples.lastKey(), range.getTo());
+        assertEquals(samples.size(), db.count(SERIES, 0, Long.MAX_VALUE));
+        for (int shard = 0; shard < 6; shard++) {
+            long from = Utils.getTimestamp(shard, 0);
+            long to = Utils.getTimestamp(shard + 1, 0);
+            assertEquals(samples.subMap(from, to).size(), db.count(SERIES, from, to));
+            assertEquals(samples.subMap(from + 200, to).size(), db.count(SERIES, from + 200, to));
+        }
+        assertEquals(TestDatabases.expect(samples, 0, Long.MAX_VALUE, 1, true),
+                TestDatabases.query(db, SERIES, 0, Long.MAX_VALUE, 1, true));
+    }
+}
@@ -0,0 +1,153 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.DatabaseFactory;
+import org.etsdb.DbConfig;
+import org.etsdb.QueryCallback;
+import org.etsdb.Serializer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+
+/**
+ * Helpers for tests that run against a database in a temporary directory.
+ */
+class TestDatabases {
+    static final Serializer<Double> DOUBLES = new Serializer<Double>() {
+        @Override
+        public void toByteArray(ByteArrayBuilder b, Double value, long ts) {
+            b.putDouble(value);
+        }
+
+        @Override
+        public Double fromByteArray(ByteArrayBuilder b, long ts) {
+            return b.getDouble();
+        }
+    };
+
+    static File createDir() throws IOException {
+        return Files.createTempDirectory("etsdb").toFile();
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    static DbConfig createConfig() {
+        DbConfig config = new DbConfig();
+        config.setAddShutdownHook(false);
+        config.setBackdateStartDelay(0);
+        return config;
+    }
+
+    static DatabaseImpl<Double> open(File dir, DbConfig config) {
+        return DatabaseFactory.createDatabase(dir, DOUBLES, config);
+    }
+
+    /**
+     * Copies the directory of an open database as it would be found after a crash, i.e. without the lock file and
+     * without anything that is only held in memory.
+     */
+    static File crash(File dir) throws IOException {
+        File copy = createDir();
+        copy(dir, copy);
+        return copy;
+    }
+
+    /**
+     * @return the files with the given suffix anywhere in the directory.
+     */
+    static List<File> find(File dir, String suffix) {
+        List<File> found = new ArrayList<>();
+        find(dir, suffix, found);
+        return found;
+    }
+
+    static List<String> query(DatabaseImpl<Double> db, String seriesId, long fromTs, long toTs, int limit,
+            boolean reverse) {
+        final List<String> samples = new ArrayList<>();
+        db.query(seriesId, fromTs, toTs, limit, reverse, new QueryCallback<Double>() {
+            @Override
+            public void sample(String seriesId, long ts, Double value) {
+                samples.add(ts + "=" + value);
+            }
+        });
+        return samples;
+    }
+
+    /**
+     * @return what {@link #query} is expected to return for a series that holds the given samples.
+     */
+    static List<String> expect(NavigableMap<Long, Double> samples, long fromTs, long toTs, int limit,
+            boolean reverse) {
+        NavigableMap<Long, Double> range = samples.subMap(fromTs, true, toTs, false);
+        if (reverse) {
+            range = range.descendingMap();
+        }
+        List<String> expected = new ArrayList<>();
+        for (Long ts : range.keySet()) {
+            if (expected.size() >= limit) {
+                break;
+            }
+            expected.add(ts + "=" + range.get(ts));
+        }
+        return expected;
+    }
+
+    //
+    //
+    // Private
+    //
+    private static void copy(File from, File to) throws IOException {
+        File[] files = from.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            File target = new File(to, f.getName());
+            if (f.isDirectory()) {
+                target.mkdir();
+                copy(f, target);
+            } else if (!f.getName().equals(".lock.db")) {
+                FileInputStream in = new FileInputStream(f);
+                FileOutputStream out = new FileOutputStream(target);
+                try {
+                    byte[] b = new byte[8192];
+                    int count;
+                    while ((count = in.read(b)) != -1) {
+                        out.write(b, 0, count);
+                    }
+                } finally {
+                    Utils.closeQuietly(in);
+                    Utils.closeQuietly(out);
+                }
+            }
+        }
+    }
+
+    private static void find(File dir, String suffix, List<File> found) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                find(f, suffix, found);
+            } else if (f.getName().endsWith(suffix)) {
+                found.add(f);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.etsdb.impl;
+
+import org.etsdb.DbConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TombstonesTest {
+    private static final String SERIES = "s";
+    private static final int ROWS = 1000;
+
+    private final TreeMap<Long, Double> samples = new TreeMap<>();
+    private File dir;
+    private File seriesDir;
+    private DatabaseImpl<Double> db;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestDatabases.createDir();
+        seriesDir = Utils.getSeriesDir(dir, SERIES);
+        db = TestDatabases.open(dir, TestDatabases.createConfig());
+        for (int shard = 0; shard < 3; shard++) {
+            for (int i = 0; i < ROWS; i++) {
+                write(ts(shard, i), i);
+            }
+        }
+        db.close();
+        db = TestDatabases.open(dir, TestDatabases.createConfig());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        db.close();
+        TestDatabases.delete(dir);
+    }
+
+    @Test
+    public void deleteOldest() throws IOException {
+        // As a purge would, one row at a time.
+        long deleted = 0;
+        for (int i = 0; i < ROWS + 10; i++) {
+            long from = db.getTimeRange(Collections.singletonList(SERIES)).getFrom();
+            deleted += delete(from, from);
+        }
+        assertEquals(ROWS + 10, deleted);
+        assertEquals(ts(1, 10), db.getTimeRange(Collections.singletonList(SERIES)).getFrom());
+        assertFalse(new File(seriesDir, "0.data").exists());
+        assertTrue(new File(seriesDir, "1.tomb").length() <= Tombstones.MAX_SIZE * 16);
+        check();
+    }
+
+    @Test
+    public void deleteRanges() throws IOException {
+        assertEquals(10, delete(ts(1, 100), ts(1, 109)));
+        assertEquals(0, delete(ts(1, 100), ts(1, 109)));
+        // Across shards.
+        assertEquals(20, delete(ts(1, ROWS - 10), ts(2, 9)));
+        assertTrue(new File(seriesDir, "1.tomb").exists());
+        check();
+
+        // A delete past the last row doesn't delete rows written after it.
+        assertEquals(10, delete(ts(2, ROWS - 10), ts(2, ROWS + 100)));
+        write(ts(2, ROWS + 50), -1);
+        check();
+
+        db.close();
+        db = TestDatabases.open(dir, TestDatabases.createConfig());
+        check();
+    }
+
+    @Test
+    public void backdateIntoDeletedRange() throws IOException {
+        backdateIntoDeletedRange(TestDatabases.createConfig());
+    }
+
+    @Test
+    public void backdateIntoDeletedRangeRewrite() throws IOException {
+        DbConfig config = TestDatabases.createConfig();
+        config.setOverlayMergeSize(0);
+        backdateIntoDeletedRange(config);
+    }
+
+    @Test
+    public void metaFileRecreatedAfterDeletingTail() throws IOException {
+        assertEquals(ROWS / 2, delete(ts(2, ROWS / 2), ts(2, ROWS - 1)));
+        db.close();
+        assertTrue(new File(seriesDir, "2.meta").delete());
+
+        // The latest time is still that of the last row in the file, so this is a backdate rather than an append.
+        db = TestDatabases.open(dir, TestDatabases.createConfig());
+        write(ts(2, ROWS / 2 + 50) + 1, -1);
+        db.close();
+
+        db = TestDatabases.open(dir, TestDatabases.createConfig());
+        check();
+        long from = ts(2, 0);
+        long to = ts(2, ROWS / 2 + 100);
+        for (boolean reverse : new boolean[] {false, true}) {
+            assertEquals(TestDatabases.expect(samples, from, to, Integer.MAX_VALUE, reverse),
+                    TestDatabases.query(db, SERIES, from, to, Integer.MAX_VALUE, reverse));
+        }
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        for (int i = 0; i < Tombstones.MAX_SIZE; i++) {
+            delete(ts(1, i * 3), ts(1, i * 3));
+        }
+        long dataLength = new File(seriesDir, "1.data").length();
+        assertEquals(Tombstones.MAX_SIZE * 16, new File(seriesDir, "1.tomb").length());
+        check();
+
+        // One more applies the tombstones to the data file.
+        delete(ts(1, 500), ts(1, 500));
+        assertFalse(new File(seriesDir, "1.tomb").exists());
+        assertTrue(new File(seriesDir, "1.data").length() < dataLength);
+        check();
+
+        db.close();
+        db = TestDatabases.open(dir, TestDatabases.createConfig());
+        check();
+    }
+
+    @Test
+    public void deleteAll() throws IOException {
+        delete(ts(1, 0), ts(1, 99));
+        assertEquals(samples.size(), delete(0, Long.MAX_VALUE));
+        assertNull(db.getTimeRange(Collections.singletonList(SERIES)));
+        assertEquals(0, db.count(SERIES, 0, Long.MAX_VALUE));
+    }
+
+    //
+    //
+    // Private
+    //
+    private void backdateIntoDeletedRange(DbConfig config) throws IOException {
+        db.close();
+        db = TestDatabases.open(dir, config);
+        assertEquals(100, delete(ts(1, 200), ts(1, 299)));
+        write(ts(1, 250), -1);
+        db.close();
+
+        // Closing waited for the backdate to be inserted.
+        db = TestDatabases.open(dir, config);
+        check();
+    }
+
+    private static long ts(int shard, int i) {
+        return Utils.getTimestamp(shard, i * 2);
+    }
+
+    private void write(long ts, double value) {
+        db.write(SERIES, ts, value);
+        samples.put(ts, value);
+    }
+
+    private long delete(long fromTs, long toTs) {
+        long count = db.delete(SERIES, fromTs, toTs);
+        assertEquals(samples.subMap(fromTs, true, toTs, true).size(), count);
+        samples.subMap(fromTs, true, toTs, true).clear();
+        return count;
+    }
+
+    private void check() {
+        long end = Utils.getTimestamp(3, 0);
+        for (boolean reverse : new boolean[] {false, true}) {
+            assertEquals(TestDatabases.expect(samples, 0, end, Integer.MAX_VALUE, reverse),
+                    TestDatabases.query(db, SERIES, 0, end, Integer.MAX_VALUE, reverse));
+            for (int shard = 0; shard < 3; shard++) {
+                long from = ts(shard, 95);
+                long to = ts(shard, 305);
+                assertEquals(TestDatabases.expect(samples, from, to, 5, reverse),
+                        TestDatabases.query(db, SERIES, from, to, 5, reverse));
+            }
+        }
+        assertEquals(samples.size(), db.count(SERIES, 0, end));
+        assertEquals(samples.subMap(ts(1, 95), ts(1, 305)).size(), db.count(SERIES, ts(1, 95), ts(1, 305)));
+    }
+}
@@ -0,0 +1,227 @@
+package org.etsdb.impl;
+
+import org.etsdb.DbConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteAheadLogTest {
+    private static final int SERIES = 4;
+    private static final int ROWS = 4000;
+    /**
+     * The exit status of the process that is killed by {@link #main}.
+     */
+    private static final int KILLED = 3;
+
+    private final List<File> dirs = new ArrayList<>();
+    private DatabaseImpl<Double> db;
+
+    @Before
+    public void setUp() throws IOException {
+        dirs.add(TestDatabases.createDir());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (db != null) {
+            db.close();
+        }
+        for (File dir : dirs) {
+            TestDatabases.delete(dir);
+        }
+    }
+
+    @Test
+    public void replayPastQueueSize() throws IOException {
+        db = TestDatabases.open(dirs.get(0), createConfig());
+        for (int i = 0; i < ROWS / 2; i++) {
+            db.write("s" + (i % SERIES), i, (double) i);
+        }
+        db.flush(true);
+        for (int i = ROWS / 2; i < ROWS; i++) {
+            db.write("s" + (i % SERIES), i, (double) i);
+        }
+        // Deletes of queued rows and of rows that were already written to the shards.
+        db.delete("s0", ROWS - 400, ROWS);
+        db.delete("s1", 0, 399);
+        File crashed = crash();
+
+        // The replayed rows are many more than the queue holds.
+        DbConfig config = createConfig();
+        config.setQueueMaxQueueSize(100);
+        config.setQueueDiscardQueueSize(500);
+        db = TestDatabases.open(crashed, config);
+        assertTrue(TestDatabases.find(crashed, ".wal").isEmpty());
+        assertCounts();
+        assertEquals("[3999=3999.0]", TestDatabases.query(db, "s3", 0, ROWS, 1, true).toString());
+        assertEquals("[3599=3599.0]", TestDatabases.query(db, "s3", 0, ROWS - 400, 1, true).toString());
+        assertEquals("[401=401.0]", TestDatabases.query(db, "s1", 0, ROWS, 1, false).toString());
+        db.close();
+
+        // The replayed rows were persisted, so there is nothing more to replay.
+        db = TestDatabases.open(crashed, config);
+        assertCounts();
+    }
+
+    @Test
+    public void replayStopsAtDamagedRecord() throws IOException {
+        db = TestDatabases.open(dirs.get(0), createConfig());
+        for (int i = 0; i < ROWS; i++) {
+            db.write("s" + (i % SERIES), i, (double) i);
+        }
+        File crashed = crash();
+
+        List<File> logs = TestDatabases.find(crashed, ".wal");
+        assertEquals(1, logs.size());
+        RandomAccessFile raf = new RandomAccessFile(logs.get(0), "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        db = TestDatabases.open(crashed, createConfig());
+        assertEquals(ROWS / SERIES - 1, db.count("s3", 0, ROWS));
+        assertEquals(ROWS / SERIES, db.count("s2", 0, ROWS));
+        assertEquals("[3998=3998.0]", TestDatabases.query(db, "s2", 0, ROWS, 1, true).toString());
+    }
+
+    @Test
+    public void segmentsKeptWhileRowsAreQueued() throws IOException {
+        db = TestDatabases.open(dirs.get(0), createConfig());
+        db.write("a", 1, 1.0);
+        // The rows aren't due, so they stay queued.
+        db.flush(false);
+        db.write("b", 1, 1.0);
+        db.write("a", 2, 2.0);
+        db.flush(false);
+        assertEquals(2, TestDatabases.find(dirs.get(0), ".wal").size());
+
+        // The oldest row of "b" is in the second segment, so only the first is deleted. The third holds the delete.
+        db.delete("a", 0, 10);
+        db.flush(false);
+        assertEquals(2, TestDatabases.find(dirs.get(0), ".wal").size());
+        assertTrue(new File(dirs.get(0), "1.wal").exists());
+
+        db.flush(true);
+        assertTrue(TestDatabases.find(dirs.get(0), ".wal").isEmpty());
+    }
+
+    @Test
+    public void replayAfterKill() throws Exception {
+        File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+        Process process = new ProcessBuilder(java.getPath(), "-cp", System.getProperty("java.class.path"),
+                WriteAheadLogTest.class.getName(), dirs.get(0).getPath()).inheritIO().start();
+        assertEquals(KILLED, waitFor(process, 60000));
+
+        // The queued rows come back, including the one at the same time as the last row that was written.
+        db = TestDatabases.open(dirs.get(0), createConfig());
+        assertTrue(TestDatabases.find(dirs.get(0), ".wal").isEmpty());
+        assertEquals(151, db.count("s", 0, ROWS));
+        assertEquals("[98=98.0, 99=99.0, 99=-1.0, 100=100.0]", TestDatabases.query(db, "s", 98, 101, 10, false)
+                .toString());
+        assertEquals("[149=149.0]", TestDatabases.query(db, "s", 0, ROWS, 1, true).toString());
+        assertEquals(151, TestDatabases.query(db, "s", 0, ROWS, Integer.MAX_VALUE, false).size());
+        db.close();
+
+        db = TestDatabases.open(dirs.get(0), createConfig());
+        assertEquals(151, db.count("s", 0, ROWS));
+    }
+
+    @Test
+    public void replaySkipsWrittenRowsAtLatestTime() throws IOException {
+        db = TestDatabases.open(dirs.get(0), createConfig());
+        db.write("s", 5, 1.0);
+        db.write("s", 5, 2.0);
+        File queued = crash(dirs.get(0));
+        db.flush(true);
+        db.write("s", 5, 3.0);
+        File crashed = crash();
+
+        // As if the process was killed after the flush wrote the shard, but before it deleted the old segment.
+        for (File log : TestDatabases.find(queued, ".wal")) {
+            Files.copy(log.toPath(), new File(crashed, log.getName()).toPath());
+        }
+        assertEquals(2, TestDatabases.find(crashed, ".wal").size());
+
+        db = TestDatabases.open(crashed, createConfig());
+        assertEquals("[5=2.0, 5=3.0]", TestDatabases.query(db, "s", 0, ROWS, 10, false).toString());
+    }
+
+    /**
+     * Writes rows to the database in the given directory, and kills the process while some of them are only queued.
+     */
+    public static void main(String[] args) throws IOException {
+        DatabaseImpl<Double> db = TestDatabases.open(new File(args[0]), createConfig());
+        for (int i = 0; i < 100; i++) {
+            db.write("s", i, (double) i);
+        }
+        db.flush(true);
+
+        db.write("s", 99, -1.0);
+        for (int i = 100; i < 150; i++) {
+            db.write("s", i, (double) i);
+        }
+        Runtime.getRuntime().halt(KILLED);
+    }
+
+    //
+    //
+    // Private
+    //
+    private static DbConfig createConfig() {
+        DbConfig config = TestDatabases.createConfig();
+        config.setUseWriteQueue(true);
+        config.setWriteAheadLog(true);
+        return config;
+    }
+
+    /**
+     * @return the exit status of the process, which is destroyed if it doesn't exit in time.
+     */
+    private static int waitFor(Process process, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                // Still running.
+            }
+            if (System.currentTimeMillis() > deadline) {
+                process.destroy();
+                throw new AssertionError("The process did not exit within " + timeout + "ms");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private File crash() throws IOException {
+        File crashed = crash(dirs.get(0));
+        db.close();
+        db = null;
+        return crashed;
+    }
+
+    private File crash(File dir) throws IOException {
+        File crashed = TestDatabases.crash(dir);
+        dirs.add(crashed);
+        return crashed;
+    }
+
+    private void assertCounts() {
+        assertEquals(ROWS / SERIES - 100, db.count("s0", 0, ROWS));
+        assertEquals(ROWS / SERIES - 100, db.count("s1", 0, ROWS));
+        assertEquals(ROWS / SERIES, db.count("s2", 0, ROWS));
+        assertEquals(ROWS / SERIES, db.count("s3", 0, ROWS));
+    }
+}
@@ -0,0 +1,165 @@
+package org.etsdb.impl;
+
+import org.etsdb.DbConfig;
+import org.etsdb.QueueFullException;
+import org.etsdb.QueueOverflowPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteQueueOverflowTest {
+    private static final int QUEUE_SIZE = 10;
+
+    private File dir;
+    private DatabaseImpl<Double> db;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestDatabases.createDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (db != null) {
+            db.close();
+        }
+        TestDatabases.delete(dir);
+    }
+
+    @Test
+    public void discard() {
+        open(QueueOverflowPolicy.DISCARD, 0);
+        fill();
+        db.write("s", QUEUE_SIZE, 0.0);
+        assertEquals(1, db.getDiscardCount());
+        assertEquals(QUEUE_SIZE, db.getQueueSize());
+        assertEquals(QUEUE_SIZE, db.count("s", 0, 100));
+    }
+
+    @Test
+    public void blockTimesOut() {
+        open(QueueOverflowPolicy.BLOCK, 100);
+        fill();
+        try {
+            db.write("s", QUEUE_SIZE, 0.0);
+            throw new AssertionError("The write did not time out");
+        } catch (QueueFullException e) {
+            // Expected
+        }
+        assertTrue(db.getBlockedMillis() >= 100);
+        assertEquals(0, db.getDiscardCount());
+        assertEquals(QUEUE_SIZE, db.count("s", 0, 100));
+    }
+
+    @Test
+    public void blockUntilFlushed() throws Exception {
+        open(QueueOverflowPolicy.BLOCK, 60000);
+        fill();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    db.write("s", QUEUE_SIZE, 0.0);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        writer.start();
+        // Give the writer time to start waiting. If it hasn't yet, it finds room and doesn't wait at all.
+        Thread.sleep(200);
+        db.flush(true);
+        writer.join(10000);
+        assertFalse(writer.isAlive());
+        assertEquals(null, failure.get());
+        assertEquals(0, db.getDiscardCount());
+        assertEquals(QUEUE_SIZE + 1, db.count("s", 0, 100));
+    }
+
+    @Test
+    public void flush() {
+        open(QueueOverflowPolicy.FLUSH, 0);
+        fill();
+        db.write("s", QUEUE_SIZE, 0.0);
+        assertEquals(0, db.getDiscardCount());
+        assertEquals(0, db.getQueueSize());
+        assertTrue(new File(Utils.getSeriesDir(dir, "s"), "0.data").length() > 0);
+        assertEquals(QUEUE_SIZE + 1, db.count("s", 0, 100));
+    }
+
+    @Test
+    public void rewritesUnderBlock() {
+        open(QueueOverflowPolicy.BLOCK, 100);
+        rewrite();
+        db.write("s", 1, 0.0);
+        assertEquals(0, db.getBlockedMillis());
+        assertEquals(2, db.getQueueSize());
+        assertEquals(2, db.count("s", 0, 100));
+    }
+
+    @Test
+    public void rewritesUnderFlush() {
+        open(QueueOverflowPolicy.FLUSH, 0);
+        rewrite();
+        assertTrue(db.tryWrite("s", 1, 0.0));
+        db.write("s", 2, 0.0);
+        assertEquals(3, db.getQueueSize());
+        assertFalse(new File(Utils.getSeriesDir(dir, "s"), "0.data").exists());
+        assertEquals(3, db.count("s", 0, 100));
+    }
+
+    @Test
+    public void tryWrite() {
+        open(QueueOverflowPolicy.FLUSH, 0);
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            assertTrue(db.tryWrite("s", i, (double) i));
+        }
+        assertFalse(db.tryWrite("s", QUEUE_SIZE, 0.0));
+        assertEquals(QUEUE_SIZE, db.getQueueSize());
+        assertEquals(0, db.getDiscardCount());
+        assertEquals(QUEUE_SIZE, db.count("s", 0, 100));
+    }
+
+    //
+    //
+    // Private
+    //
+    private void open(QueueOverflowPolicy policy, int blockTimeout) {
+        // The flush process only drains the queue when it is forced, so that the queue stays full.
+        DbConfig config = TestDatabases.createConfig();
+        config.setUseWriteQueue(true);
+        config.setQueueExpireMinimum(3600000);
+        config.setQueueExpireMaximum(3600000);
+        config.setQueueShardQueueSizeMinimum(QUEUE_SIZE);
+        config.setQueueShardQueueSizeMaximum(QUEUE_SIZE);
+        config.setQueueMaxQueueSize(QUEUE_SIZE);
+        config.setQueueDiscardQueueSize(QUEUE_SIZE);
+        config.setQueueOverflowPolicy(policy);
+        config.setQueueBlockTimeout(blockTimeout);
+        db = TestDatabases.open(dir, config);
+    }
+
+    private void fill() {
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            db.write("s", i, (double) i);
+        }
+        assertEquals(QUEUE_SIZE, db.getQueueSize());
+    }
+
+    private void rewrite() {
+        for (int i = 0; i < QUEUE_SIZE * 3; i++) {
+            db.write("s", 0, (double) i);
+        }
+        assertEquals(1, db.getQueueSize());
+        assertEquals(0, db.getDiscardCount());
+    }
+}
@@ -0,0 +1,413 @@
+package org.dsa.iot.etsdb.tool;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.etsdb.serializer.ByteData;
+import org.dsa.iot.etsdb.serializer.ValueSerializer;
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.DatabaseFactory;
+import org.etsdb.QueryCallback;
+import org.etsdb.Serializer;
+import org.etsdb.WriteBatch;
+import org.etsdb.impl.DatabaseImpl;
+import org.etsdb.impl.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads history from a local file into a database, writing whole shards directly to the shard files rather than
+ * through the write queue, where samples older than the latest of their series would all become backdates.
+ * <p>
+ * The input doesn't need to be sorted. It is first split by series and shard into temporary bucket files, buffering as
+ * much as fits in memory. Then the series are loaded in parallel, each shard with a single write, and each shard is
+ * read back through the checksummed read path and compared with what was loaded.
+ * <p>
+ * Input formats:
+ * <ul>
+ * <li>csv: lines of <code>series,timestamp,value</code>, where the value is true, false, a number or a string. Blank
+ * lines and lines starting with # are skipped.</li>
+ * <li>bin: records of a series id as written by DataOutput.writeUTF, a long timestamp and a double value.</li>
+ * </ul>
+ */
+public class BulkLoad {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkLoad.class);
+
+    /**
+     * The number of bytes of samples that are buffered before they are written to the bucket files.
+     */
+    private static final long BUFFER_LIMIT = 64 * 1024 * 1024;
+    private static final String BUCKET_SUFFIX = ".run";
+
+    private final File dbDir;
+    private final File input;
+    private final boolean csv;
+    private final int threads;
+    private File tempDir;
+
+    private final Map<String, Integer> seriesIndexes = new HashMap<>();
+    private final List<String> seriesIds = new ArrayList<>();
+    private final Map<Bucket, ByteArrayOutputStream> buffers = new HashMap<>();
+    private final ValueSerializer valueSerializer = new ValueSerializer();
+    private final ByteArrayBuilder valueBuffer = new ByteArrayBuilder();
+    private final ByteData valueData = new ByteData();
+    private long buffered;
+    private long read;
+
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public BulkLoad(File dbDir, File input, boolean csv, int threads) {
+        this.dbDir = dbDir;
+        this.input = input;
+        this.csv = csv;
+        this.threads = threads;
+    }
+
+    /**
+     * Arguments: &lt;dbDir&gt; &lt;input&gt; [csv|bin] [threads]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            LOGGER.error("Usage: load <dbDir> <input> [csv|bin] [threads]");
+            System.exit(2);
+        }
+
+        String format = args.length > 2 ? args[2] : "csv";
+        if (!"csv".equals(format) && !"bin".equals(format)) {
+            LOGGER.error("Unknown input format: {}", format);
+            System.exit(2);
+        }
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        BulkLoad load = new BulkLoad(new File(args[0]), new File(args[1]), "csv".equals(format), threads);
+        if (!load.run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return true if all samples were loaded and verified.
+     */
+    public boolean run() throws Exception {
+        // A fresh directory next to the database, so that the buckets are on the same disk and nothing that is
+        // already there gets deleted.
+        File abs = dbDir.getAbsoluteFile();
+        tempDir = Files.createTempDirectory(abs.getParentFile().toPath(), abs.getName() + ".load").toFile();
+
+        try {
+            long start = System.currentTimeMillis();
+            split();
+            LOGGER.info("Split {} samples of {} series in {}ms", read, seriesIds.size(),
+                    System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            load();
+            LOGGER.info("Loaded and verified {} samples in {}ms", loaded.get(), System.currentTimeMillis() - start);
+        } finally {
+            Utils.delete(tempDir);
+        }
+
+        if (failures.get() > 0) {
+            LOGGER.error("{} shards failed to load or verify", failures.get());
+            return false;
+        }
+        return true;
+    }
+
+    //
+    //
+    // Split
+    //
+    private void split() throws IOException {
+        if (csv) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input),
+                    StandardCharsets.UTF_8));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] parts = line.split(",", 3);
+                    if (parts.length < 3) {
+                        throw new IOException("Bad line " + lineNumber + ": " + line);
+                    }
+                    long ts;
+                    try {
+                        ts = Long.parseLong(parts[1].trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad timestamp on line " + lineNumber + ": " + line);
+                    }
+                    add(parts[0].trim(), ts, parseValue(parts[2].trim()));
+                }
+            } finally {
+                Utils.closeQuietly(in);
+            }
+        } else {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input)));
+            try {
+                while (true) {
+                    String seriesId;
+                    try {
+                        seriesId = in.readUTF();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    long ts = in.readLong();
+                    add(seriesId, ts, new Value(in.readDouble()));
+                }
+            } finally {
+                Utils.closeQuietly(in);
+            }
+        }
+        flushBuffers();
+    }
+
+    private static Value parseValue(String s) {
+        if ("true".equalsIgnoreCase(s) || "false".equalsIgnoreCase(s)) {
+            return new Value(Boolean.parseBoolean(s));
+        }
+        try {
+            return new Value(Double.parseDouble(s));
+        } catch (NumberFormatException e) {
+            return new Value(s);
+        }
+    }
+
+    private void add(String seriesId, long ts, Value value) throws IOException {
+        Integer index = seriesIndexes.get(seriesId);
+        if (index == null) {
+            index = seriesIds.size();
+            seriesIds.add(seriesId);
+            seriesIndexes.put(seriesId, index);
+        }
+
+        Bucket bucket = new Bucket(index, Utils.getShardId(ts));
+        ByteArrayOutputStream buffer = buffers.get(bucket);
+        if (buffer == null) {
+            buffer = new ByteArrayOutputStream();
+            buffers.put(bucket, buffer);
+        }
+
+        valueBuffer.clear();
+        valueData.setValue(value);
+        valueSerializer.toByteArray(valueBuffer, valueData, ts);
+
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeLong(ts);
+        out.writeInt(valueBuffer.getAvailable());
+        out.write(valueBuffer.getBuffer(), valueBuffer.getReadOffset(), valueBuffer.getAvailable());
+        buffered += 12 + valueBuffer.getAvailable();
+        read++;
+
+        if (buffered >= BUFFER_LIMIT) {
+            flushBuffers();
+        }
+    }
+
+    /**
+     * Appends the buffered samples to their bucket files. Samples stay in input order within a bucket.
+     */
+    private void flushBuffers() throws IOException {
+        for (Map.Entry<Bucket, ByteArrayOutputStream> e : buffers.entrySet()) {
+            File file = getBucketFile(e.getKey());
+            if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Failed to create directory " + file.getParentFile());
+            }
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                e.getValue().writeTo(out);
+                out.close();
+            } finally {
+                Utils.closeQuietly(out);
+            }
+        }
+        buffers.clear();
+        buffered = 0;
+    }
+
+    private File getBucketFile(Bucket bucket) {
+        return new File(new File(tempDir, Integer.toString(bucket.series)), bucket.shardId + BUCKET_SUFFIX);
+    }
+
+    //
+    //
+    // Load
+    //
+    private void load() throws IOException, InterruptedException {
+        final DatabaseImpl<byte[]> db = DatabaseFactory.createDatabase(dbDir, new RawSerializer());
+        try {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < seriesIds.size(); i++) {
+                final int series = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadSeries(db, series);
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void loadSeries(DatabaseImpl<byte[]> db, int series) {
+        String seriesId = seriesIds.get(series);
+        File dir = new File(tempDir, Integer.toString(series));
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+
+        long[] shardIds = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            shardIds[i] = Long.parseLong(names[i].substring(0, names[i].length() - BUCKET_SUFFIX.length()));
+        }
+        Arrays.sort(shardIds);
+
+        for (long shardId : shardIds) {
+            File file = getBucketFile(new Bucket(series, shardId));
+            try {
+                TreeMap<Long, byte[]> rows = readBucket(file);
+                WriteBatch<byte[]> batch = new WriteBatch<>();
+                for (Map.Entry<Long, byte[]> e : rows.entrySet()) {
+                    batch.add(seriesId, e.getKey(), e.getValue());
+                }
+                db.load(batch);
+
+                int bad = verify(db, seriesId, rows);
+                if (bad > 0) {
+                    LOGGER.error("Series {}, shard {}: {} of {} samples don't match after the load", seriesId,
+                            shardId, bad, rows.size());
+                    failures.incrementAndGet();
+                } else {
+                    loaded.addAndGet(rows.size());
+                }
+            } catch (Exception e) {
+                LOGGER.error("Failed to load series " + seriesId + ", shard " + shardId, e);
+                failures.incrementAndGet();
+            } finally {
+                try {
+                    Utils.delete(file);
+                } catch (IOException e) {
+                    // Removed with the temp directory.
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the samples of the bucket by time. Of samples with the same time, the last in the input wins.
+     */
+    private static TreeMap<Long, byte[]> readBucket(File file) throws IOException {
+        TreeMap<Long, byte[]> rows = new TreeMap<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                long ts;
+                try {
+                    ts = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                rows.put(ts, data);
+            }
+        } finally {
+            Utils.closeQuietly(in);
+        }
+        return rows;
+    }
+
+    /**
+     * Reads the range of the loaded samples back. The read path checks the checksums of the rows, and fails on a bad
+     * one.
+     *
+     * @return the number of loaded samples that are missing or differ.
+     */
+    private static int verify(DatabaseImpl<byte[]> db, String seriesId, final TreeMap<Long, byte[]> rows) {
+        final int[] matched = new int[1];
+        db.query(seriesId, rows.firstKey(), rows.lastKey() + 1, new QueryCallback<byte[]>() {
+            @Override
+            public void sample(String seriesId, long ts, byte[] value) {
+                byte[] expected = rows.get(ts);
+                if (expected != null && Arrays.equals(expected, value)) {
+                    matched[0]++;
+                }
+            }
+        });
+        return rows.size() - matched[0];
+    }
+
+    /**
+     * Passes serialized values through as they are, so that the values are only serialized once, while splitting.
+     */
+    private static class RawSerializer extends Serializer<byte[]> {
+        @Override
+        public void toByteArray(ByteArrayBuilder b, byte[] data, long ts) {
+            b.put(data);
+        }
+
+        @Override
+        public byte[] fromByteArray(ByteArrayBuilder b, long ts) {
+            byte[] data = new byte[b.getAvailable()];
+            b.get(data);
+            return data;
+        }
+    }
+
+    private static class Bucket {
+        final int series;
+        final long shardId;
+
+        Bucket(int series, long shardId) {
+            this.series = series;
+            this.shardId = shardId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Bucket that = (Bucket) o;
+            return series == that.series && shardId == that.shardId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * series + (int) (shardId ^ (shardId >>> 32));
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -27,6 +28,11 @@ public class Main {
         LOGGER.info("etsdb.timestamp_bit_shift = {}", bits);
         Utils.setShardBits(bits);
 
+        if (args.length > 0 && "load".equals(args[0])) {
+            BulkLoad.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         File file = new File("test_db");
         Serializer<ByteData> ser = new ValueSerializer();
         Database<ByteData> db = DatabaseFactory.createDatabase(file, ser);